@@ -0,0 +1,202 @@
+package search;
+
+import java.util.Arrays;
+
+/**
+ * This class ranks the documents in which any of a set of keywords occur by BM25, and
+ * finds the top K with early termination, so that most postings are never scored.
+ *
+ * A keyword's score in a document is
+ * <pre>
+ *   idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * dl / avgdl))
+ * </pre>
+ * where tf is the keyword's frequency in the document, dl is the document's length (its
+ * number of keyword occurrences, see DocumentTable), avgdl is the average length, and
+ * idf = log((N + 1) / (df + 0.5)), N being the number of documents and df the number of
+ * postings of the keyword. A document's score is the total over the query's keywords.
+ *
+ * The score rises with tf and falls with dl, so a posting list in descending order of
+ * frequency is also in descending order of an upper bound on its scores: the score of the
+ * current frequency in the shortest document of the list (see PostingList.minLength). The
+ * lists are walked together, always taking the next posting from the list whose bound is
+ * highest, in the manner of the threshold algorithm and MaxScore. A document is scored in
+ * full the first time it is seen, by looking up its frequency in the other lists (in their
+ * document order, see PostingList.docOrder). Once the bounds of all the lists add up to
+ * less than the K-th best score, no document that has not been seen can make it into the
+ * top K, and the search stops.
+ *
+ */
+class BM25Search {
+
+	/**
+	 * How much a keyword's frequency counts before its score saturates.
+	 */
+	static final double K1 = 1.2;
+
+	/**
+	 * How much a document's length is normalized for (0 is not at all, 1 is fully).
+	 */
+	static final double B = 0.75;
+
+	/**
+	 * Slack added to the upper bounds, so rounding cannot make a score exceed its bound.
+	 */
+	private static final double BOUND_SLACK = 1 + 1e-9;
+
+	private final IndexSnapshot snapshot;
+
+	/**
+	 * The constant part of the denominator of a score, and the factor of the document
+	 * length in it: K1 * (1 - B), and K1 * B / avgdl.
+	 */
+	private final double norm;
+	private final double lengthNorm;
+
+	/**
+	 * Each keyword's idf times (K1 + 1), and its lists (one per layer of the index).
+	 */
+	private final double[] weights;
+	private final PostingList[][] lists;
+
+	/**
+	 * Cursors, one per list: the keyword it belongs to, the list, the position in it (in
+	 * descending order of frequency), the length of the list's shortest document, and the
+	 * bound on the score of the postings from the position on (0 once it is exhausted).
+	 */
+	private final int[] keywordOf;
+	private final PostingList[] cursorList;
+	private final int[] pos;
+	private final int[] minLengths;
+	private final double[] bounds;
+
+	private BM25Search(IndexSnapshot snapshot, String[] keywords) {
+		this.snapshot = snapshot;
+		DocumentTable documents = snapshot.documents;
+		double avgdl = documents.averageLength();
+		norm = K1 * (1 - B);
+		lengthNorm = K1 * B / (avgdl > 0 ? avgdl : 1);
+		int n = documents.liveCount();
+
+		weights = new double[keywords.length];
+		lists = new PostingList[keywords.length][];
+		int cursors = 0;
+		for (int k = 0; k < keywords.length; k++) {
+			lists[k] = snapshot.layers(keywords[k]);
+			long df = 0;
+			for (PostingList postings : lists[k]) {
+				df += postings.size();
+			}
+			// lists still hold the postings of removed documents until they are compacted
+			weights[k] = Math.log((n + 1) / (Math.min(df, n) + 0.5)) * (K1 + 1);
+			cursors += lists[k].length;
+		}
+
+		keywordOf = new int[cursors];
+		cursorList = new PostingList[cursors];
+		pos = new int[cursors];
+		minLengths = new int[cursors];
+		bounds = new double[cursors];
+		int c = 0;
+		for (int k = 0; k < keywords.length; k++) {
+			for (PostingList postings : lists[k]) {
+				keywordOf[c] = k;
+				cursorList[c] = postings;
+				minLengths[c] = postings.minLength(documents);
+				bound(c);
+				c++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the ids of the top k documents in which any of the keywords occur, in
+	 * descending order of BM25 score. Ties in score are broken in favor of the document
+	 * that was indexed first.
+	 *
+	 * @param snapshot Snapshot of the posting lists of the keywords
+	 * @param keywords Keywords (lower case)
+	 * @param k Maximum number of documents
+	 * @return Document ids, at most k of them
+	 */
+	static int[] search(IndexSnapshot snapshot, String[] keywords, int k) {
+		BM25Search search = new BM25Search(snapshot, keywords);
+		TopDocs top = new TopDocs(k);
+		DocIdSet seen = new DocIdSet();
+		while (true) {
+			int best = -1;
+			double total = 0;
+			for (int c = 0; c < search.bounds.length; c++) {
+				total += search.bounds[c];
+				if (search.bounds[c] > 0 && (best < 0 || search.bounds[c] > search.bounds[best])) {
+					best = c;
+				}
+			}
+			// an unseen document that ties with the K-th score could still get in on its id
+			if (best < 0 || (top.isFull() && total < top.minScore())) {
+				break;
+			}
+			int doc = search.cursorList[best].doc(search.pos[best]);
+			search.pos[best]++;
+			search.bound(best);
+			if (seen.add(doc) && snapshot.isVisible(doc)) {
+				top.offer(doc, search.score(doc));
+			}
+		}
+		return top.docs();
+	}
+
+	/**
+	 * Returns the BM25 scores of documents, such as those found by search.
+	 *
+	 * @param snapshot Snapshot of the posting lists of the keywords
+	 * @param keywords Keywords (lower case)
+	 * @param docs Document ids
+	 * @return Score of each document
+	 */
+	static double[] scores(IndexSnapshot snapshot, String[] keywords, int[] docs) {
+		BM25Search search = new BM25Search(snapshot, keywords);
+		double[] scores = new double[docs.length];
+		for (int i = 0; i < docs.length; i++) {
+			scores[i] = search.score(docs[i]);
+		}
+		return scores;
+	}
+
+	/**
+	 * Updates the bound of a cursor after it has moved.
+	 */
+	private void bound(int c) {
+		PostingList postings = cursorList[c];
+		if (pos[c] == postings.size()) {
+			bounds[c] = 0;
+		} else {
+			bounds[c] = score(weights[keywordOf[c]], postings.frequency(pos[c]), minLengths[c]) * BOUND_SLACK;
+		}
+	}
+
+	/**
+	 * Returns the score of a document over all the keywords.
+	 */
+	private double score(int doc) {
+		int length = snapshot.documents.length(doc);
+		double score = 0;
+		for (int k = 0; k < lists.length; k++) {
+			for (PostingList postings : lists[k]) {
+				PostingList.DocOrder byDoc = postings.docOrder();
+				int i = Arrays.binarySearch(byDoc.docs, 0, byDoc.size, doc);
+				if (i >= 0) {
+					// the length is at least the frequency, unless it is not known
+					int tf = byDoc.freqs[i];
+					score += score(weights[k], tf, Math.max(tf, length));
+					// a document is in only one layer
+					break;
+				}
+			}
+		}
+		return score;
+	}
+
+	private double score(double weight, int tf, int length) {
+		return weight * tf / (tf + norm + lengthNorm * length);
+	}
+}
@@ -0,0 +1,556 @@
+package search;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Benchmarks each stage of indexing and querying on a synthetic corpus (see SyntheticCorpus):
+ * <pre>
+ *   makeIndex                    makeIndex on one thread
+ *   makeIndex.parallel           makeIndex on all processors
+ *   makeIndex.external           makeIndexExternal, spilling postings to several runs
+ *   makeIndex.warm               makeIndex over unchanged documents, from the scan snapshot
+ *   loadKeyWords                 loadKeyWords for one document
+ *   getKeyWord                   getKeyWord for each word of a document
+ *   insertLastOccurrence         insertLastOccurrence into a sorted list of 256 occurrences
+ *   top5search                   top5search with the query cache off
+ *   top5search.cached            top5search with the query cache on
+ *   top5search.misses            top5search with the cache on, queries that always miss it
+ *   top5search.misses.uncached   the same queries with the cache off
+ *   top5search.logged            top5search with the cache off and queries logged
+ *   topSearchBatch               the top5search queries in one batch, on one thread
+ *   topSearchBatch.parallel      the same batch on all processors
+ *   top5search.mapped            top5search on the index saved and reopened with openIndex
+ *   topSearchBatch.mapped        topSearchBatch on that index
+ *   top5search.sharded           top5search on a ShardedSearchEngine
+ *   rankedSearch                 rankedSearch for the top 5 by BM25
+ *   wildcardSearch               wildcardSearch for "abc*", abc starting a keyword
+ * </pre>
+ *
+ * Each benchmark is run for a number of warmup iterations, whose results are thrown away,
+ * and then for a number of measured iterations of about a second each. It reports the
+ * mean throughput with its standard deviation, and the bytes allocated per operation
+ * (when the JVM can count the bytes a thread allocates).
+ *
+ * The results can be saved to a baseline file, and a later run compared against it: a
+ * benchmark whose throughput has dropped by more than the tolerance is reported as a
+ * regression, and the driver exits with status 1.
+ *
+ * Usage: BenchmarkDriver [name=value ...], with these settings (defaults in brackets):
+ * <pre>
+ *   docs       number of documents [500]
+ *   vocab      vocabulary size [20000]
+ *   words      words per document [1000]
+ *   zipf       exponent of the Zipfian distribution [1.0]
+ *   dir        directory the corpus is written to [bench-corpus]
+ *   warmup     warmup iterations [3]
+ *   iterations measured iterations [5]
+ *   only       run only the benchmarks whose names contain this
+ *   save       file to save the results to, as a baseline
+ *   baseline   baseline file to compare the results with
+ *   tolerance  fraction by which throughput may drop before it is a regression [0.10]
+ *   metrics    true to collect metrics in every engine benchmarked (see enableMetrics) [false]
+ * </pre>
+ */
+public class BenchmarkDriver {
+
+	/**
+	 * A benchmark. Each call to run does some operations and returns how many it did.
+	 */
+	static abstract class Benchmark {
+		final String name;
+		final String unit;
+
+		Benchmark(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		/**
+		 * Prepares for the benchmark, before its warmup.
+		 */
+		void setup() throws IOException {
+		}
+
+		/**
+		 * Cleans up after the benchmark.
+		 */
+		void teardown() throws IOException {
+		}
+
+		abstract int run() throws IOException;
+	}
+
+	/**
+	 * Consumes benchmark results, so the JIT cannot drop the work that produced them.
+	 */
+	static long sink;
+
+	private static final long ITERATION_NANOS = 1000000000L;
+
+	public static void main(String[] args) throws IOException {
+		HashMap<String,String> settings = new HashMap<String,String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				throw new IllegalArgumentException("Expected name=value: " + arg);
+			}
+			settings.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		int docs = Integer.parseInt(get(settings, "docs", "500"));
+		int vocab = Integer.parseInt(get(settings, "vocab", "20000"));
+		int words = Integer.parseInt(get(settings, "words", "1000"));
+		double zipf = Double.parseDouble(get(settings, "zipf", "1.0"));
+		int warmup = Integer.parseInt(get(settings, "warmup", "3"));
+		int iterations = Integer.parseInt(get(settings, "iterations", "5"));
+		double tolerance = Double.parseDouble(get(settings, "tolerance", "0.10"));
+		String only = settings.get("only");
+		boolean metrics = Boolean.parseBoolean(get(settings, "metrics", "false"));
+
+		System.out.println("Generating " + docs + " documents of " + words + " words, vocabulary "
+			+ vocab + ", zipf " + zipf);
+		SyntheticCorpus corpus = new SyntheticCorpus(docs, vocab, words, zipf, 42);
+		String[] files = corpus.write(new File(get(settings, "dir", "bench-corpus")));
+
+		Properties results = new Properties();
+		System.out.println(String.format("%-28s %16s %10s %14s", "benchmark", "throughput", "+-", "bytes/op"));
+		for (Benchmark b : benchmarks(corpus, files[0], files[1], metrics)) {
+			if (only != null && !b.name.contains(only)) {
+				continue;
+			}
+			measure(b, warmup, iterations, results);
+		}
+
+		if (settings.containsKey("save")) {
+			FileOutputStream out = new FileOutputStream(settings.get("save"));
+			try {
+				results.store(out, "LittleSearchEngine benchmark baseline");
+			} finally {
+				out.close();
+			}
+			System.out.println("Saved results to " + settings.get("save"));
+		}
+		if (settings.containsKey("baseline")) {
+			Properties baseline = new Properties();
+			FileInputStream in = new FileInputStream(settings.get("baseline"));
+			try {
+				baseline.load(in);
+			} finally {
+				in.close();
+			}
+			if (compare(baseline, results, tolerance) > 0) {
+				System.exit(1);
+			}
+		}
+	}
+
+	private static String get(HashMap<String,String> settings, String name, String value) {
+		String v = settings.get(name);
+		return v == null ? value : v;
+	}
+
+	/**
+	 * Returns the benchmarks to run.
+	 */
+	static ArrayList<Benchmark> benchmarks(final SyntheticCorpus corpus, final String docsFile, final String noiseWordsFile,
+			final boolean metrics)
+	throws IOException {
+		final LittleSearchEngine engine = new LittleSearchEngine();
+		if (metrics) {
+			engine.enableMetrics();
+		}
+		engine.makeIndex(docsFile, noiseWordsFile);
+		final ArrayList<String> docs = new ArrayList<String>();
+		Scanner sc = new Scanner(new File(docsFile));
+		while (sc.hasNext()) {
+			docs.add(sc.next());
+		}
+		sc.close();
+
+		Random r = new Random(7);
+		final String[] rawWords = new String[4096];
+		for (int i = 0; i < rawWords.length; i++) {
+			rawWords[i] = corpus.word(r);
+		}
+		final String[][] queries = new String[1024][];
+		for (int i = 0; i < queries.length; i++) {
+			queries[i] = new String[] {corpus.word(r).toLowerCase(), corpus.word(r).toLowerCase()};
+		}
+		// queries that repeat less often than the query cache can hold, so the cached benchmark only misses
+		Random missRandom = new Random(11);
+		final String[][] missQueries = new String[1 << 16][];
+		for (int i = 0; i < missQueries.length; i++) {
+			missQueries[i] = new String[] {corpus.word(missRandom).toLowerCase(), corpus.word(missRandom).toLowerCase()};
+		}
+		// a sorted list of occurrences, and frequencies to insert into it
+		final ArrayList<Occurrence> sorted = new ArrayList<Occurrence>();
+		for (int i = 0; i < 256; i++) {
+			sorted.add(new Occurrence("doc" + i, 1000 - 3 * i));
+		}
+		final int[] inserts = new int[1024];
+		for (int i = 0; i < inserts.length; i++) {
+			inserts[i] = r.nextInt(1000);
+		}
+		// the same queries as top5search, so the two can be compared
+		final List<String[]> batch = Arrays.asList(queries);
+
+		ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new Benchmark("makeIndex", "docs/s") {
+			int run() throws IOException {
+				LittleSearchEngine e = new LittleSearchEngine();
+				if (metrics) {
+					e.enableMetrics();
+				}
+				e.makeIndex(docsFile, noiseWordsFile);
+				sink += e.keywordsIndex.size();
+				return docs.size();
+			}
+		});
+		benchmarks.add(new Benchmark("makeIndex.parallel", "docs/s") {
+			int run() throws IOException {
+				LittleSearchEngine e = new LittleSearchEngine();
+				if (metrics) {
+					e.enableMetrics();
+				}
+				e.makeIndex(docsFile, noiseWordsFile, Runtime.getRuntime().availableProcessors());
+				sink += e.keywordsIndex.size();
+				return docs.size();
+			}
+		});
+		// with a budget small enough that the postings are spilled to several runs
+		final File externalFile = new File(docsFile + ".external");
+		benchmarks.add(new Benchmark("makeIndex.external", "docs/s") {
+			int run() throws IOException {
+				LittleSearchEngine e = new LittleSearchEngine();
+				if (metrics) {
+					e.enableMetrics();
+				}
+				e.makeIndexExternal(docsFile, noiseWordsFile, externalFile.getPath(),
+					externalFile.getAbsoluteFile().getParent(), 4 << 20);
+				sink += e.mappedIndex.size();
+				return docs.size();
+			}
+			void teardown() {
+				externalFile.delete();
+			}
+		});
+		// a restart over documents that have not changed, which are all taken from the snapshot
+		final File snapshotFile = new File(docsFile + ".scans");
+		benchmarks.add(new Benchmark("makeIndex.warm", "docs/s") {
+			void setup() throws IOException {
+				LittleSearchEngine e = new LittleSearchEngine();
+				e.enableScanSnapshot(snapshotFile.getPath());
+				e.makeIndex(docsFile, noiseWordsFile);
+				e.saveScanSnapshot();
+			}
+			int run() throws IOException {
+				LittleSearchEngine e = new LittleSearchEngine();
+				if (metrics) {
+					e.enableMetrics();
+				}
+				e.enableScanSnapshot(snapshotFile.getPath());
+				e.makeIndex(docsFile, noiseWordsFile);
+				sink += e.keywordsIndex.size();
+				return docs.size();
+			}
+			void teardown() {
+				snapshotFile.delete();
+			}
+		});
+		benchmarks.add(new Benchmark("loadKeyWords", "docs/s") {
+			int next = 0;
+			int run() throws IOException {
+				sink += engine.loadKeyWords(docs.get(next++ % docs.size())).size();
+				return 1;
+			}
+		});
+		benchmarks.add(new Benchmark("getKeyWord", "words/s") {
+			int run() {
+				for (String word : rawWords) {
+					String kw = engine.getKeyWord(word);
+					if (kw != null) {
+						sink += kw.length();
+					}
+				}
+				return rawWords.length;
+			}
+		});
+		benchmarks.add(new Benchmark("insertLastOccurrence", "ops/s") {
+			int next = 0;
+			int run() {
+				// includes copying the 256-entry list, so the method always gets a sorted list
+				ArrayList<Occurrence> occs = new ArrayList<Occurrence>(sorted.size() + 1);
+				occs.addAll(sorted);
+				occs.add(new Occurrence("new", inserts[next++ % inserts.length]));
+				sink += engine.insertLastOccurrence(occs).size();
+				return 1;
+			}
+		});
+		benchmarks.add(new Benchmark("top5search", "queries/s") {
+			int next = 0;
+			void setup() {
+				engine.setQueryCacheSize(0);
+			}
+			int run() {
+				return top5search(engine, queries, next++);
+			}
+		});
+		benchmarks.add(new Benchmark("top5search.cached", "queries/s") {
+			int next = 0;
+			void setup() {
+				engine.setQueryCacheSize(LittleSearchEngine.DEFAULT_QUERY_CACHE_SIZE);
+			}
+			int run() {
+				return top5search(engine, queries, next++);
+			}
+		});
+		benchmarks.add(new Benchmark("top5search.misses", "queries/s") {
+			int next = 0;
+			void setup() {
+				engine.setQueryCacheSize(LittleSearchEngine.DEFAULT_QUERY_CACHE_SIZE);
+			}
+			int run() {
+				return top5search(engine, missQueries, next++);
+			}
+		});
+		benchmarks.add(new Benchmark("top5search.misses.uncached", "queries/s") {
+			int next = 0;
+			void setup() {
+				engine.setQueryCacheSize(0);
+			}
+			int run() {
+				return top5search(engine, missQueries, next++);
+			}
+		});
+		benchmarks.add(new Benchmark("top5search.logged", "queries/s") {
+			int next = 0;
+			File log = new File(docsFile + ".querylog");
+			void setup() throws IOException {
+				engine.setQueryCacheSize(0);
+				engine.enableQueryLog(log.getPath());
+			}
+			int run() {
+				return top5search(engine, queries, next++);
+			}
+			void teardown() throws IOException {
+				engine.disableQueryLog();
+				log.delete();
+			}
+		});
+		benchmarks.add(new Benchmark("topSearchBatch", "queries/s") {
+			int run() {
+				return topSearchBatch(engine, batch, 1);
+			}
+		});
+		benchmarks.add(new Benchmark("topSearchBatch.parallel", "queries/s") {
+			int run() {
+				return topSearchBatch(engine, batch, Runtime.getRuntime().availableProcessors());
+			}
+		});
+		// engines on the index saved to a file, whose lists are read from it on every query
+		final File indexFile = new File(docsFile + ".index");
+		benchmarks.add(new Benchmark("top5search.mapped", "queries/s") {
+			int next = 0;
+			LittleSearchEngine mapped;
+			void setup() throws IOException {
+				mapped = openMapped(engine, indexFile);
+			}
+			int run() {
+				return top5search(mapped, queries, next++);
+			}
+			void teardown() {
+				mapped = null;
+				indexFile.delete();
+			}
+		});
+		benchmarks.add(new Benchmark("topSearchBatch.mapped", "queries/s") {
+			LittleSearchEngine mapped;
+			void setup() throws IOException {
+				mapped = openMapped(engine, indexFile);
+			}
+			int run() {
+				return topSearchBatch(mapped, batch, 1);
+			}
+			void teardown() {
+				mapped = null;
+				indexFile.delete();
+			}
+		});
+		benchmarks.add(new Benchmark("top5search.sharded", "queries/s") {
+			int next = 0;
+			ShardedSearchEngine sharded;
+			void setup() throws IOException {
+				int threads = Runtime.getRuntime().availableProcessors();
+				sharded = new ShardedSearchEngine(Math.max(threads, 2), threads);
+				sharded.makeIndex(docsFile, noiseWordsFile);
+			}
+			int run() {
+				String[] q = queries[next++ % queries.length];
+				ArrayList<String> results = sharded.top5search(q[0], q[1]);
+				if (results != null) {
+					sink += results.size();
+				}
+				return 1;
+			}
+			void teardown() {
+				sharded.close();
+				sharded = null;
+			}
+		});
+		benchmarks.add(new Benchmark("rankedSearch", "queries/s") {
+			int next = 0;
+			int run() {
+				String[] q = queries[next++ % queries.length];
+				ArrayList<String> results = engine.rankedSearch(5, q[0], q[1]);
+				if (results != null) {
+					sink += results.size();
+				}
+				return 1;
+			}
+		});
+		benchmarks.add(new Benchmark("wildcardSearch", "queries/s") {
+			int next = 0;
+			int run() {
+				String kw = queries[next++ % queries.length][0];
+				String pattern = kw.substring(0, Math.min(3, kw.length())) + "*";
+				ArrayList<String> results = engine.wildcardSearch(pattern, 5);
+				if (results != null) {
+					sink += results.size();
+				}
+				return 1;
+			}
+		});
+		return benchmarks;
+	}
+
+	/**
+	 * Runs one top5search.
+	 */
+	private static int top5search(LittleSearchEngine engine, String[][] queries, int n) {
+		String[] q = queries[n % queries.length];
+		ArrayList<String> results = engine.top5search(q[0], q[1]);
+		if (results != null) {
+			sink += results.size();
+		}
+		return 1;
+	}
+
+	/**
+	 * Saves the index of an engine to a file, and opens it in a new engine with no query cache.
+	 */
+	private static LittleSearchEngine openMapped(LittleSearchEngine engine, File indexFile)
+	throws IOException {
+		engine.saveIndex(indexFile.getPath());
+		LittleSearchEngine mapped = new LittleSearchEngine();
+		mapped.openIndex(indexFile.getPath());
+		mapped.setQueryCacheSize(0);
+		return mapped;
+	}
+
+	/**
+	 * Runs one batch of top 5 searches.
+	 */
+	private static int topSearchBatch(LittleSearchEngine engine, List<String[]> batch, int threads) {
+		for (ArrayList<String> results : engine.topSearchBatch(5, batch, threads)) {
+			if (results != null) {
+				sink += results.size();
+			}
+		}
+		return batch.size();
+	}
+
+	/**
+	 * Runs a benchmark, prints its results and adds them to the results properties.
+	 */
+	static void measure(Benchmark b, int warmup, int iterations, Properties results)
+	throws IOException {
+		b.setup();
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int c) {
+			}
+			public void write(byte[] buf, int off, int len) {
+			}
+		}));
+		double[] rates = new double[iterations];
+		long ops = 0;
+		long bytes = 0;
+		try {
+			for (int i = 0; i < warmup + iterations; i++) {
+				long allocated = allocatedBytes();
+				long n = 0;
+				long start = System.nanoTime();
+				long elapsed;
+				do {
+					n += b.run();
+					elapsed = System.nanoTime() - start;
+				} while (elapsed < ITERATION_NANOS);
+				long used = allocatedBytes() - allocated;
+				if (i >= warmup) {
+					rates[i - warmup] = n * 1e9 / elapsed;
+					ops += n;
+					bytes += used;
+				}
+			}
+		} finally {
+			System.setOut(out);
+			b.teardown();
+		}
+
+		double mean = 0;
+		for (double rate : rates) {
+			mean += rate;
+		}
+		mean /= iterations;
+		double var = 0;
+		for (double rate : rates) {
+			var += (rate - mean) * (rate - mean);
+		}
+		double stddev = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+		double bytesPerOp = allocatedBytes() < 0 ? -1 : (double)bytes / ops;
+
+		System.out.println(String.format("%-28s %16.1f %10.1f %14s  %s", b.name, mean, stddev,
+			bytesPerOp < 0 ? "n/a" : String.format("%.0f", bytesPerOp), b.unit));
+		results.setProperty(b.name + ".throughput", String.valueOf(mean));
+		results.setProperty(b.name + ".bytesPerOp", String.valueOf(bytesPerOp));
+	}
+
+	/**
+	 * Compares results with a baseline, printing the change in each benchmark's throughput.
+	 *
+	 * @return Number of regressions
+	 */
+	static int compare(Properties baseline, Properties results, double tolerance) {
+		int regressions = 0;
+		System.out.println();
+		System.out.println(String.format("%-28s %16s %16s %9s", "benchmark", "baseline", "now", "change"));
+		for (String key : new TreeSet<String>(results.stringPropertyNames())) {
+			if (!key.endsWith(".throughput") || baseline.getProperty(key) == null) {
+				continue;
+			}
+			double before = Double.parseDouble(baseline.getProperty(key));
+			double now = Double.parseDouble(results.getProperty(key));
+			double change = (now - before) / before;
+			boolean regressed = change < -tolerance;
+			if (regressed) {
+				regressions++;
+			}
+			System.out.println(String.format("%-28s %16.1f %16.1f %+8.1f%%%s",
+				key.substring(0, key.length() - ".throughput".length()), before, now, 100 * change,
+				regressed ? "  REGRESSION" : ""));
+		}
+		return regressions;
+	}
+
+	/**
+	 * Returns the number of bytes allocated by this thread so far, or -1 if the JVM cannot tell.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,281 @@
+package search;
+
+import java.util.ArrayList;
+
+/**
+ * This class evaluates boolean keyword queries such as "alice AND rabbit NOT queen".
+ *
+ * A query is a sequence of keywords joined by the operators AND, OR and NOT (in upper case).
+ * Keywords with no operator between them are joined by OR, AND binds tighter than OR, and
+ * NOT applies to the keyword that follows it, which must then not occur in the document
+ * ("a NOT b" means a AND NOT b). So the query is an OR of clauses, each of which is an
+ * AND of keywords that must occur and keywords that must not.
+ *
+ * Each clause is evaluated by walking its posting lists in ascending order of document id,
+ * leapfrogging between them with galloping search, so no intermediate lists are built.
+ * A document's score in a clause is the total frequency of the clause's keywords in it, and
+ * its score for the query is its best clause score. The top K documents are returned in
+ * descending order of score, with ties in favor of the document indexed first.
+ *
+ */
+class BooleanQuery {
+
+	/**
+	 * Keywords that must occur, and keywords that must not, for each clause.
+	 */
+	private final ArrayList<ArrayList<String>> includes;
+	private final ArrayList<ArrayList<String>> excludes;
+
+	private BooleanQuery() {
+		includes = new ArrayList<ArrayList<String>>();
+		excludes = new ArrayList<ArrayList<String>>();
+	}
+
+	/**
+	 * Parses a boolean query.
+	 *
+	 * @param query Query string
+	 * @return Parsed query
+	 * @throws IllegalArgumentException If the query is empty, misplaces an operator, or has
+	 *         a clause in which every keyword is negated
+	 */
+	static BooleanQuery parse(String query) {
+		BooleanQuery q = new BooleanQuery();
+		String[] tokens = query.trim().split("\\s+");
+		boolean and = false;
+		boolean or = false;
+		boolean not = false;
+		for (String token : tokens) {
+			if (token.length() == 0) {
+				continue;
+			}
+			if (token.equals("AND")) {
+				and = true;
+			} else if (token.equals("OR")) {
+				or = true;
+			} else if (token.equals("NOT")) {
+				not = true;
+			} else {
+				if (and && or) {
+					throw new IllegalArgumentException("AND and OR together in: " + query);
+				}
+				// a keyword starts a new clause unless it is joined by AND or NOT
+				if (q.includes.isEmpty() || or || !(and || not)) {
+					q.includes.add(new ArrayList<String>());
+					q.excludes.add(new ArrayList<String>());
+				}
+				int c = q.includes.size() - 1;
+				(not ? q.excludes : q.includes).get(c).add(token.toLowerCase());
+				and = false;
+				or = false;
+				not = false;
+			}
+		}
+		if (and || or || not) {
+			throw new IllegalArgumentException("Query ends with an operator: " + query);
+		}
+		if (q.includes.isEmpty()) {
+			throw new IllegalArgumentException("Empty query");
+		}
+		for (ArrayList<String> clause : q.includes) {
+			if (clause.isEmpty()) {
+				throw new IllegalArgumentException("Every keyword is negated in a clause of: " + query);
+			}
+		}
+		return q;
+	}
+
+	/**
+	 * Returns all the keywords in this query, negated or not.
+	 *
+	 * @return Keywords
+	 */
+	ArrayList<String> keywords() {
+		ArrayList<String> kws = new ArrayList<String>();
+		for (int c = 0; c < includes.size(); c++) {
+			kws.addAll(includes.get(c));
+			kws.addAll(excludes.get(c));
+		}
+		return kws;
+	}
+
+	/**
+	 * Returns the ids of the top k documents that match this query.
+	 *
+	 * @param snapshot Snapshot of the posting lists of this query's keywords
+	 * @param k Maximum number of documents
+	 * @return Document ids in descending order of score, at most k of them
+	 */
+	int[] search(IndexSnapshot snapshot, int k) {
+		ArrayList<Conjunction> clauses = new ArrayList<Conjunction>();
+		for (int c = 0; c < includes.size(); c++) {
+			Conjunction clause = Conjunction.of(snapshot, includes.get(c), excludes.get(c));
+			if (clause != null && clause.next()) {
+				clauses.add(clause);
+			}
+		}
+
+		TopDocs top = new TopDocs(k);
+		while (!clauses.isEmpty()) {
+			int doc = Integer.MAX_VALUE;
+			for (Conjunction clause : clauses) {
+				doc = Math.min(doc, clause.doc);
+			}
+			int score = 0;
+			for (int c = clauses.size() - 1; c >= 0; c--) {
+				Conjunction clause = clauses.get(c);
+				if (clause.doc == doc) {
+					score = Math.max(score, clause.score);
+					if (!clause.next()) {
+						clauses.remove(c);
+					}
+				}
+			}
+			top.offer(doc, score);
+		}
+		return top.docs();
+	}
+
+	/**
+	 * Returns the first index at or after from where a[index] >= target, or size if there is none.
+	 * The distance is doubled until the target is passed, then binary search finishes the job,
+	 * so skipping over n entries costs O(log n).
+	 */
+	static int gallop(int[] a, int from, int size, int target) {
+		if (from >= size || a[from] >= target) {
+			return from;
+		}
+		int low = from;
+		int step = 1;
+		int high = from + 1;
+		while (high < size && a[high] < target) {
+			low = high;
+			step <<= 1;
+			high = from + step;
+		}
+		if (high > size) {
+			high = size;
+		}
+		// a[low] < target, and a[high] >= target (or high == size)
+		while (high - low > 1) {
+			int mid = (low + high) >>> 1;
+			if (a[mid] < target) {
+				low = mid;
+			} else {
+				high = mid;
+			}
+		}
+		return high;
+	}
+
+	/**
+	 * Cursor over the documents that match one clause, in ascending order of id.
+	 */
+	private static class Conjunction {
+		int[][] docs, freqs, notDocs;
+		int[] sizes, pos, notSizes, notPos;
+		IndexSnapshot snapshot;
+
+		/**
+		 * Current matching document, and its score.
+		 */
+		int doc;
+		int score;
+
+		/**
+		 * Returns a cursor for the clause, or null if it cannot match any document.
+		 */
+		static Conjunction of(IndexSnapshot snapshot, ArrayList<String> include, ArrayList<String> exclude) {
+			ArrayList<PostingList.DocOrder> lists = new ArrayList<PostingList.DocOrder>();
+			for (String kw : include) {
+				PostingList.DocOrder postings = snapshot.docOrder(kw);
+				if (postings == null || postings.size == 0) {
+					return null;
+				}
+				lists.add(postings);
+			}
+			// drive the walk from the shortest list
+			for (int i = 1; i < lists.size(); i++) {
+				for (int j = i; j > 0 && lists.get(j).size < lists.get(j-1).size; j--) {
+					PostingList.DocOrder temp = lists.get(j);
+					lists.set(j, lists.get(j-1));
+					lists.set(j-1, temp);
+				}
+			}
+
+			Conjunction c = new Conjunction();
+			c.snapshot = snapshot;
+			int n = lists.size();
+			c.docs = new int[n][];
+			c.freqs = new int[n][];
+			c.sizes = new int[n];
+			c.pos = new int[n];
+			for (int i = 0; i < n; i++) {
+				PostingList.DocOrder order = lists.get(i);
+				c.docs[i] = order.docs;
+				c.freqs[i] = order.freqs;
+				c.sizes[i] = order.size;
+			}
+
+			ArrayList<PostingList.DocOrder> notLists = new ArrayList<PostingList.DocOrder>();
+			for (String kw : exclude) {
+				PostingList.DocOrder postings = snapshot.docOrder(kw);
+				if (postings != null && postings.size > 0) {
+					notLists.add(postings);
+				}
+			}
+			c.notDocs = new int[notLists.size()][];
+			c.notSizes = new int[notLists.size()];
+			c.notPos = new int[notLists.size()];
+			for (int i = 0; i < notLists.size(); i++) {
+				PostingList.DocOrder order = notLists.get(i);
+				c.notDocs[i] = order.docs;
+				c.notSizes[i] = order.size;
+			}
+			return c;
+		}
+
+		/**
+		 * Moves to the next matching document.
+		 *
+		 * @return True if there is one, false if the clause has no more matches
+		 */
+		boolean next() {
+			int n = docs.length;
+			search:
+			while (pos[0] < sizes[0]) {
+				int target = docs[0][pos[0]];
+				for (int i = 1; i < n; i++) {
+					pos[i] = gallop(docs[i], pos[i], sizes[i], target);
+					if (pos[i] == sizes[i]) {
+						pos[0] = sizes[0];
+						return false;
+					}
+					if (docs[i][pos[i]] > target) {
+						pos[0] = gallop(docs[0], pos[0], sizes[0], docs[i][pos[i]]);
+						continue search;
+					}
+				}
+				for (int i = 0; i < notDocs.length; i++) {
+					notPos[i] = gallop(notDocs[i], notPos[i], notSizes[i], target);
+					if (notPos[i] < notSizes[i] && notDocs[i][notPos[i]] == target) {
+						pos[0]++;
+						continue search;
+					}
+				}
+				if (!snapshot.isVisible(target)) {
+					pos[0]++;
+					continue search;
+				}
+				doc = target;
+				score = 0;
+				for (int i = 0; i < n; i++) {
+					score += freqs[i][pos[i]];
+				}
+				pos[0]++;
+				return true;
+			}
+			return false;
+		}
+	}
+}
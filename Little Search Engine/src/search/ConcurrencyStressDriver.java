@@ -0,0 +1,238 @@
+package search;
+import java.util.*;
+import java.io.*;
+
+/**
+ * Stress test for concurrent reads. One writer thread removes, re-adds and updates documents
+ * while reader threads run top-K and boolean searches, recording the version each search saw
+ * and its result. Afterwards the writer's operations are replayed on a second engine, one thread
+ * only, and each recorded result is checked against the result of the same search at the same
+ * version.
+ *
+ * If a directory is given, both engines are segmented (see SegmentedIndex), with segment files
+ * in subdirectories of it, so flushes and background merges run during the test as well.
+ *
+ * Usage: ConcurrencyStressDriver [docsFile] [noiseWordsFile] [readers] [operations] [segmentDirectory]
+ */
+public class ConcurrencyStressDriver {
+
+	/**
+	 * A search run by a reader, the version it saw, and its result.
+	 */
+	static class Search {
+		final int version;
+		final String query;
+		final String result;
+
+		Search(int version, String query, String result) {
+			this.version = version;
+			this.query = query;
+			this.result = result;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String docsFile = args.length > 0 ? args[0] : "docs.txt";
+		String noiseWordsFile = args.length > 1 ? args[1] : "noisewords.txt";
+		int readers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		final int operations = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+		String segmentDirectory = args.length > 4 ? args[4] : null;
+
+		final LittleSearchEngine engine = new LittleSearchEngine();
+		if (segmentDirectory != null) {
+			engine.enableSegments(new File(segmentDirectory, "engine").getPath(), 16, 4);
+		}
+		engine.makeIndex(docsFile, noiseWordsFile);
+		engine.enableConcurrentReads();
+
+		final ArrayList<String> docs = new ArrayList<String>();
+		Scanner sc = new Scanner(new File(docsFile));
+		while (sc.hasNext()) {
+			docs.add(sc.next());
+		}
+		sc.close();
+		ArrayList<String> keys = new ArrayList<String>(new TreeSet<String>(engine.keywordsIndex.keySet()));
+		final String[] words = new String[Math.min(500, keys.size())];
+		Random pick = new Random(7);
+		for (int i = 0; i < words.length; i++) {
+			words[i] = keys.get(pick.nextInt(keys.size()));
+		}
+
+		// the writer logs each operation as "+doc", "-doc" or "*doc"
+		final ArrayList<String> log = new ArrayList<String>();
+		final int[] versions = new int[operations];
+		final boolean[] done = new boolean[1];
+		final int[] errors = new int[1];
+		Thread writer = new Thread() {
+			public void run() {
+				Random r = new Random(11);
+				ArrayList<String> live = new ArrayList<String>(docs);
+				ArrayList<String> removed = new ArrayList<String>();
+				try {
+					for (int i = 0; i < operations; i++) {
+						int op = r.nextInt(3);
+						if (op == 0 && live.size() > 1) {
+							String doc = live.remove(r.nextInt(live.size()));
+							engine.removeDocument(doc);
+							removed.add(doc);
+							log.add("-" + doc);
+						} else if (op == 1 && !removed.isEmpty()) {
+							String doc = removed.remove(r.nextInt(removed.size()));
+							engine.addDocument(doc);
+							live.add(doc);
+							log.add("+" + doc);
+						} else {
+							String doc = live.get(r.nextInt(live.size()));
+							engine.updateDocument(doc);
+							log.add("*" + doc);
+						}
+						versions[i] = engine.documents.version();
+					}
+				} catch (FileNotFoundException e) {
+					throw new IllegalStateException(e);
+				} finally {
+					synchronized (done) {
+						done[0] = true;
+					}
+				}
+			}
+		};
+
+		final ArrayList<ArrayList<Search>> results = new ArrayList<ArrayList<Search>>();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < readers; t++) {
+			final ArrayList<Search> searches = new ArrayList<Search>();
+			results.add(searches);
+			final long seed = t;
+			threads.add(new Thread() {
+				public void run() {
+					Random r = new Random(seed);
+					while (true) {
+						synchronized (done) {
+							if (done[0]) {
+								return;
+							}
+						}
+						String query = randomQuery(r, words);
+						try {
+							IndexSnapshot snapshot = snapshotFor(engine, query);
+							searches.add(new Search(snapshot.version, query, search(snapshot, query)));
+						} catch (RuntimeException e) {
+							synchronized (done) {
+								if (errors[0]++ < 5) {
+									System.out.println("Failed on " + query + ": " + e);
+								}
+							}
+						}
+					}
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		for (Thread t : threads) {
+			t.start();
+		}
+		writer.start();
+		writer.join();
+		for (Thread t : threads) {
+			t.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// replay the operations on one thread, checking the searches at each version
+		ArrayList<Search> all = new ArrayList<Search>();
+		for (ArrayList<Search> searches : results) {
+			all.addAll(searches);
+		}
+		Collections.sort(all, new Comparator<Search>() {
+			public int compare(Search a, Search b) {
+				return a.version < b.version ? -1 : (a.version == b.version ? 0 : 1);
+			}
+		});
+		LittleSearchEngine oracle = new LittleSearchEngine();
+		if (segmentDirectory != null) {
+			oracle.enableSegments(new File(segmentDirectory, "replay").getPath(), 16, 4);
+		}
+		oracle.makeIndex(docsFile, noiseWordsFile);
+		int next = 0;
+		int mismatches = 0;
+		for (Search s : all) {
+			while (oracle.documents.version() < s.version) {
+				String op = log.get(next);
+				String doc = op.substring(1);
+				if (op.charAt(0) == '-') {
+					oracle.removeDocument(doc);
+				} else if (op.charAt(0) == '+') {
+					oracle.addDocument(doc);
+				} else {
+					oracle.updateDocument(doc);
+				}
+				if (oracle.documents.version() != versions[next]) {
+					throw new IllegalStateException("Replay is at version " + oracle.documents.version()
+						+ " after operation " + next + ", expected " + versions[next]);
+				}
+				next++;
+			}
+			String expected = search(snapshotFor(oracle, s.query), s.query);
+			if (!expected.equals(s.result)) {
+				if (mismatches++ < 5) {
+					System.out.println("Mismatch at version " + s.version + " for " + s.query
+						+ ": " + s.result + ", expected " + expected);
+				}
+			}
+		}
+
+		System.out.println(operations + " operations, " + all.size() + " searches on " + readers
+			+ " readers in " + (elapsed / 1000000) + " ms, " + mismatches + " mismatches, "
+			+ errors[0] + " failed searches");
+		if (mismatches > 0 || errors[0] > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Returns a random top-K query ("top a b c") or boolean query ("bool a AND b NOT c").
+	 */
+	static String randomQuery(Random r, String[] words) {
+		String a = words[r.nextInt(words.length)];
+		String b = words[r.nextInt(words.length)];
+		String c = words[r.nextInt(words.length)];
+		switch (r.nextInt(4)) {
+		case 0:
+			return "top " + a;
+		case 1:
+			return "top " + a + " " + b + " " + c;
+		case 2:
+			return "bool " + a + " AND " + b;
+		default:
+			return "bool " + a + " OR " + b + " NOT " + c;
+		}
+	}
+
+	static IndexSnapshot snapshotFor(LittleSearchEngine engine, String query) {
+		if (query.startsWith("top ")) {
+			return engine.snapshot(Arrays.asList(query.substring(4).split(" ")));
+		}
+		return engine.snapshot(BooleanQuery.parse(query.substring(5)).keywords());
+	}
+
+	static String search(IndexSnapshot snapshot, String query) {
+		int[] docs;
+		if (query.startsWith("top ")) {
+			String[] kws = query.substring(4).split(" ");
+			PostingList[] lists = new PostingList[kws.length];
+			for (int i = 0; i < kws.length; i++) {
+				lists[i] = snapshot.get(kws[i]);
+			}
+			docs = TopKSearch.search(snapshot, lists, 10);
+		} else {
+			docs = BooleanQuery.parse(query.substring(5)).search(snapshot, 10);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int doc : docs) {
+			sb.append(snapshot.documents.name(doc)).append(' ');
+		}
+		return sb.toString();
+	}
+}
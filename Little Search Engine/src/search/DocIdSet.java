@@ -0,0 +1,63 @@
+package search;
+
+/**
+ * This class is an open-addressing set of document ids, used by searches to take each
+ * document once however many posting lists it is in.
+ *
+ */
+class DocIdSet {
+
+	/**
+	 * Ids plus one, so that 0 marks an empty slot.
+	 */
+	private int[] slots;
+	private int count;
+
+	/**
+	 * Initializes an empty set.
+	 */
+	DocIdSet() {
+		slots = new int[16];
+		count = 0;
+	}
+
+	/**
+	 * Adds a document id to the set.
+	 *
+	 * @param doc Document id
+	 * @return True if the id was added, false if it was already in the set
+	 */
+	boolean add(int doc) {
+		int key = doc + 1;
+		int mask = slots.length - 1;
+		int slot = hash(key) & mask;
+		while (slots[slot] != 0) {
+			if (slots[slot] == key) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = key;
+		count++;
+		if (count * 2 > slots.length) {
+			int[] old = slots;
+			slots = new int[old.length * 2];
+			mask = slots.length - 1;
+			for (int i = 0; i < old.length; i++) {
+				if (old[i] != 0) {
+					int s = hash(old[i]) & mask;
+					while (slots[s] != 0) {
+						s = (s + 1) & mask;
+					}
+					slots[s] = old[i];
+				}
+			}
+		}
+		return true;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,305 @@
+package search;
+
+import java.util.HashMap;
+
+/**
+ * This class maps document names to dense integer ids (0, 1, 2, ...), in the order in which
+ * the documents are added, so that posting lists can refer to documents by id.
+ *
+ * A removed document keeps its id, which is marked deleted (a tombstone) so that postings
+ * referring to it can be skipped until they are compacted away. Ids are never reused: a
+ * document that is added again after being removed gets a new id.
+ *
+ * Additions and removals are stamped with the version of the table they become visible in.
+ * A writer stamps its changes with version()+1 and then calls publish, so a reader that
+ * reads version() once sees a fixed set of documents (see isVisible) no matter what writers
+ * do meanwhile. Only one thread at a time may change the table.
+ *
+ * The table also keeps the length of each document (its number of keyword occurrences),
+ * and the total length of the documents not removed, for ranking by BM25 (see BM25Search),
+ * and, when positions are recorded, the number of words in each document, which bounds
+ * where a phrase can occur in it (see PhraseQuery).
+ *
+ */
+class DocumentTable {
+
+	/**
+	 * Id of each document name that has not been removed. Only used by writers.
+	 */
+	private final HashMap<String,Integer> ids;
+
+	/**
+	 * Name of each document id, the versions in which it was added and removed (0 if it has
+	 * not been removed), its length, and its number of words (0 if it is not known). The
+	 * arrays are replaced together when they grow.
+	 */
+	private static class Columns {
+		final String[] names;
+		final int[] addedIn;
+		final int[] removedIn;
+		final int[] lengths;
+		final int[] words;
+
+		Columns(int capacity) {
+			names = new String[capacity];
+			addedIn = new int[capacity];
+			removedIn = new int[capacity];
+			lengths = new int[capacity];
+			words = new int[capacity];
+		}
+	}
+
+	/**
+	 * Columns of all ids. Entries 0..count-1 are in use. Readers read this field once per
+	 * call, so they never mix the arrays of two capacities, and see a grown copy's contents
+	 * through the volatile write that publishes it.
+	 */
+	private volatile Columns columns;
+	private int count;
+
+	/**
+	 * Number of documents not removed, and their total length. Writers keep these up to
+	 * date as they go, so readers see them as of the latest change, not of their version.
+	 */
+	private volatile int liveDocs;
+	private volatile long totalLength;
+
+	/**
+	 * Latest published version.
+	 */
+	private volatile int version;
+
+	/**
+	 * Initializes an empty document table.
+	 */
+	DocumentTable() {
+		ids = new HashMap<String,Integer>();
+		columns = new Columns(16);
+		count = 0;
+		version = 0;
+	}
+
+	/**
+	 * Returns the id of a document, adding the document to the table if it is not in it.
+	 * A new document becomes visible in the next version.
+	 *
+	 * @param name Document name
+	 * @return Document id
+	 */
+	int add(String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = append(name);
+			ids.put(name, id);
+			liveDocs++;
+		}
+		return id;
+	}
+
+	/**
+	 * Adds the id of a removed document, as when a table is read back from an index file.
+	 *
+	 * @param name Name the document had
+	 * @return Document id, which is marked deleted
+	 */
+	int addDeleted(String name) {
+		int id = append(name);
+		Columns c = columns;
+		c.removedIn[id] = c.addedIn[id];
+		return id;
+	}
+
+	private int append(String name) {
+		Columns c = columns;
+		if (count == c.names.length) {
+			Columns grown = new Columns(count * 2);
+			System.arraycopy(c.names, 0, grown.names, 0, count);
+			System.arraycopy(c.addedIn, 0, grown.addedIn, 0, count);
+			System.arraycopy(c.removedIn, 0, grown.removedIn, 0, count);
+			System.arraycopy(c.lengths, 0, grown.lengths, 0, count);
+			System.arraycopy(c.words, 0, grown.words, 0, count);
+			columns = grown;
+			c = grown;
+		}
+		int id = count++;
+		c.names[id] = name;
+		c.addedIn[id] = version + 1;
+		return id;
+	}
+
+	/**
+	 * Returns the id of a document.
+	 *
+	 * @param name Document name
+	 * @return Document id, or -1 if the document is not in the table (or has been removed)
+	 */
+	int id(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Returns the name of a document.
+	 *
+	 * @param id Document id
+	 * @return Document name
+	 */
+	String name(int id) {
+		return columns.names[id];
+	}
+
+	/**
+	 * Removes a document, marking its id deleted as of the next version.
+	 *
+	 * @param name Document name
+	 * @return Id the document had, or -1 if it was not in the table
+	 */
+	int remove(String name) {
+		Integer id = ids.remove(name);
+		if (id == null) {
+			return -1;
+		}
+		Columns c = columns;
+		c.removedIn[id] = version + 1;
+		liveDocs--;
+		totalLength -= c.lengths[id];
+		return id;
+	}
+
+	/**
+	 * Sets the length of a document.
+	 *
+	 * @param id Document id
+	 * @param length Number of keyword occurrences in the document
+	 */
+	void setLength(int id, int length) {
+		Columns c = columns;
+		if (c.removedIn[id] == 0) {
+			totalLength += length - c.lengths[id];
+		}
+		c.lengths[id] = length;
+	}
+
+	/**
+	 * Returns the length of a document.
+	 *
+	 * @param id Document id
+	 * @return Number of keyword occurrences in the document, 0 if it is not known
+	 */
+	int length(int id) {
+		// ids added after the last version this thread read may not be in the array it sees
+		int[] l = columns.lengths;
+		return id < l.length ? l[id] : 0;
+	}
+
+	/**
+	 * Sets the number of words in a document.
+	 *
+	 * @param id Document id
+	 * @param words Number of words in the document, counting noise words
+	 */
+	void setWords(int id, int words) {
+		columns.words[id] = words;
+	}
+
+	/**
+	 * Returns the number of words in a document.
+	 *
+	 * @param id Document id
+	 * @return Number of words in the document, 0 if it is not known
+	 */
+	int words(int id) {
+		int[] w = columns.words;
+		return id < w.length ? w[id] : 0;
+	}
+
+	/**
+	 * Returns the average length of the documents that have not been removed.
+	 *
+	 * @return Average number of keyword occurrences per document, 0 if there are no documents
+	 */
+	double averageLength() {
+		int n = liveDocs;
+		return n == 0 ? 0 : (double)totalLength / n;
+	}
+
+	/**
+	 * Returns true if the document with the given id has been removed (by a writer).
+	 *
+	 * @param id Document id
+	 * @return True if the id is a tombstone
+	 */
+	boolean isDeleted(int id) {
+		return columns.removedIn[id] != 0;
+	}
+
+	/**
+	 * Returns true if the document with the given id is in the given version of the table,
+	 * that is, it was added in or before that version, and not removed by then.
+	 *
+	 * @param id Document id
+	 * @param version Version read from version()
+	 * @return True if the document is visible in the version
+	 */
+	boolean isVisible(int id, int version) {
+		// ids added after the version may not be in the arrays this thread sees
+		Columns c = columns;
+		if (id >= c.addedIn.length) {
+			return false;
+		}
+		int a = c.addedIn[id];
+		int r = c.removedIn[id];
+		return a != 0 && a <= version && (r == 0 || r > version);
+	}
+
+	/**
+	 * Returns true if the document with the given id was removed in or before the given
+	 * version of the table.
+	 *
+	 * @param id Document id
+	 * @param version Version read from version()
+	 * @return True if the document is removed in the version
+	 */
+	boolean isRemoved(int id, int version) {
+		int[] removed = columns.removedIn;
+		if (id >= removed.length) {
+			return false;
+		}
+		int r = removed[id];
+		return r != 0 && r <= version;
+	}
+
+	/**
+	 * Returns the latest published version.
+	 *
+	 * @return Version
+	 */
+	int version() {
+		return version;
+	}
+
+	/**
+	 * Makes all additions and removals since the last call visible to readers.
+	 */
+	void publish() {
+		version = version + 1;
+	}
+
+	/**
+	 * Returns the number of ids handed out, including those of removed documents.
+	 *
+	 * @return Number of ids
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of documents in the table that have not been removed.
+	 *
+	 * @return Number of live documents
+	 */
+	int liveCount() {
+		return liveDocs;
+	}
+}
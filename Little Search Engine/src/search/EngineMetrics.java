@@ -0,0 +1,260 @@
+package search;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class collects the metrics of an engine once LittleSearchEngine.enableMetrics has been
+ * called: counters of the documents, words and keywords indexed, the time spent in each stage
+ * of indexing, histograms of the time taken to scan each document and to answer each kind of
+ * query, and (when the metrics are dumped) the distribution of posting list lengths. They can
+ * be dumped in JSON or in the Prometheus text format.
+ *
+ * Counters and histograms take no locks, so they can be updated from any thread. To keep
+ * the cost of timing fast queries (two clock reads) out of the queries themselves, only one
+ * query in QUERY_SAMPLE is timed, picked at random; every query is counted.
+ *
+ */
+class EngineMetrics {
+
+	/**
+	 * Kinds of query, and their names in dumps.
+	 */
+	static final int TOP = 0;
+	static final int RANKED = 1;
+	static final int BOOLEAN = 2;
+	static final int PHRASE = 3;
+	static final int WILDCARD = 4;
+	static final String[] QUERY_KINDS = { "top", "ranked", "boolean", "phrase", "wildcard" };
+
+	/**
+	 * Stages of indexing, and their names in dumps.
+	 */
+	static final int SCAN = 0;
+	static final int MERGE = 1;
+	static final int SORT = 2;
+	static final int FLUSH = 3;
+	private static final String[] STAGES = { "scan", "merge", "sort", "flush" };
+
+	/**
+	 * One query in this many is timed.
+	 */
+	static final int QUERY_SAMPLE = 8;
+
+	final LongAdder documentsIndexed = new LongAdder();
+	final LongAdder documentsRemoved = new LongAdder();
+	final LongAdder documentsReused = new LongAdder();
+	final LongAdder tokens = new LongAdder();
+	final LongAdder keywords = new LongAdder();
+	final LongAdder noiseWords = new LongAdder();
+
+	private final LongAdder[] queries = new LongAdder[QUERY_KINDS.length];
+	private final Histogram[] latencies = new Histogram[QUERY_KINDS.length];
+	private final LongAdder[] stageNanos = new LongAdder[STAGES.length];
+
+	/**
+	 * Time taken to scan each document, in nanoseconds.
+	 */
+	final Histogram scanNanos = new Histogram();
+
+	EngineMetrics() {
+		for (int i = 0; i < QUERY_KINDS.length; i++) {
+			queries[i] = new LongAdder();
+			latencies[i] = new Histogram();
+		}
+		for (int i = 0; i < STAGES.length; i++) {
+			stageNanos[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Counts a scanned document.
+	 *
+	 * @param nanos Time taken to scan it
+	 * @param tokens Number of words in it
+	 * @param keywords Number of keyword occurrences in it
+	 * @param noiseWords Number of noise words in it
+	 */
+	void scanned(long nanos, int tokens, int keywords, int noiseWords) {
+		scanNanos.record(nanos);
+		stageNanos[SCAN].add(nanos);
+		this.tokens.add(tokens);
+		this.keywords.add(keywords);
+		this.noiseWords.add(noiseWords);
+	}
+
+	/**
+	 * Counts a document whose keywords were taken from the scan snapshot instead of scanning it.
+	 *
+	 * @param nanos Time taken to check and decode it
+	 */
+	void reused(long nanos) {
+		documentsReused.increment();
+		stageNanos[SCAN].add(nanos);
+	}
+
+	/**
+	 * Adds time spent in a stage of indexing.
+	 *
+	 * @param stage Stage (SCAN, MERGE, SORT or FLUSH)
+	 * @param nanos Time spent
+	 */
+	void stage(int stage, long nanos) {
+		stageNanos[stage].add(nanos);
+	}
+
+	/**
+	 * Starts a query, deciding whether it is timed.
+	 *
+	 * @return Start time if the query is timed, otherwise 0
+	 */
+	long queryStart() {
+		if (ThreadLocalRandom.current().nextInt(QUERY_SAMPLE) != 0) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		return start == 0 ? 1 : start;
+	}
+
+	/**
+	 * Counts a finished query, and records its latency if it was timed.
+	 *
+	 * @param kind Kind of query
+	 * @param start What queryStart returned for it
+	 */
+	void queryEnd(int kind, long start) {
+		queries[kind].increment();
+		if (start != 0) {
+			latencies[kind].record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Counts queries that were not timed, such as those of a batch.
+	 *
+	 * @param kind Kind of query
+	 * @param n Number of queries
+	 */
+	void queries(int kind, long n) {
+		queries[kind].add(n);
+	}
+
+	/**
+	 * Dumps the metrics as a JSON object.
+	 *
+	 * @param postingLengths Lengths of the posting lists in the index
+	 * @param cacheHits Query cache hits
+	 * @param cacheMisses Query cache misses
+	 * @return JSON text
+	 */
+	String toJson(Histogram.Snapshot postingLengths, long cacheHits, long cacheMisses) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n  \"counters\": {");
+		sb.append("\n    \"documents_indexed\": ").append(documentsIndexed.sum());
+		sb.append(",\n    \"documents_removed\": ").append(documentsRemoved.sum());
+		sb.append(",\n    \"documents_reused\": ").append(documentsReused.sum());
+		sb.append(",\n    \"tokens\": ").append(tokens.sum());
+		sb.append(",\n    \"keywords\": ").append(keywords.sum());
+		sb.append(",\n    \"noise_words\": ").append(noiseWords.sum());
+		sb.append(",\n    \"query_cache_hits\": ").append(cacheHits);
+		sb.append(",\n    \"query_cache_misses\": ").append(cacheMisses);
+		for (int i = 0; i < QUERY_KINDS.length; i++) {
+			sb.append(",\n    \"queries_").append(QUERY_KINDS[i]).append("\": ").append(queries[i].sum());
+		}
+		for (int i = 0; i < STAGES.length; i++) {
+			sb.append(",\n    \"index_").append(STAGES[i]).append("_nanos\": ").append(stageNanos[i].sum());
+		}
+		sb.append("\n  },\n  \"histograms\": {");
+		json(sb, "document_scan_nanos", scanNanos.snapshot());
+		for (int i = 0; i < QUERY_KINDS.length; i++) {
+			sb.append(',');
+			json(sb, "query_" + QUERY_KINDS[i] + "_nanos", latencies[i].snapshot());
+		}
+		sb.append(',');
+		json(sb, "posting_list_length", postingLengths);
+		sb.append("\n  }\n}\n");
+		return sb.toString();
+	}
+
+	private static void json(StringBuilder sb, String name, Histogram.Snapshot h) {
+		sb.append("\n    \"").append(name).append("\": {\"count\": ").append(h.count)
+			.append(", \"mean\": ").append(String.format(Locale.ROOT, "%.1f", h.mean()))
+			.append(", \"max\": ").append(h.max)
+			.append(", \"p50\": ").append(h.quantile(0.5))
+			.append(", \"p90\": ").append(h.quantile(0.9))
+			.append(", \"p99\": ").append(h.quantile(0.99))
+			.append(", \"p999\": ").append(h.quantile(0.999))
+			.append('}');
+	}
+
+	/**
+	 * Dumps the metrics in the Prometheus text format. Times are in seconds, as Prometheus
+	 * expects, and histograms are summaries with quantiles.
+	 *
+	 * @param postingLengths Lengths of the posting lists in the index
+	 * @param cacheHits Query cache hits
+	 * @param cacheMisses Query cache misses
+	 * @return Prometheus text
+	 */
+	String toPrometheus(Histogram.Snapshot postingLengths, long cacheHits, long cacheMisses) {
+		StringBuilder sb = new StringBuilder();
+		counter(sb, "lse_documents_indexed_total", "Documents indexed", documentsIndexed.sum());
+		counter(sb, "lse_documents_removed_total", "Documents removed", documentsRemoved.sum());
+		counter(sb, "lse_documents_reused_total", "Documents taken from the scan snapshot", documentsReused.sum());
+		counter(sb, "lse_tokens_total", "Words scanned", tokens.sum());
+		counter(sb, "lse_keywords_total", "Keyword occurrences indexed", keywords.sum());
+		counter(sb, "lse_noise_words_total", "Noise words filtered", noiseWords.sum());
+		counter(sb, "lse_query_cache_hits_total", "Query cache hits", cacheHits);
+		counter(sb, "lse_query_cache_misses_total", "Query cache misses", cacheMisses);
+		sb.append("# HELP lse_queries_total Queries answered\n# TYPE lse_queries_total counter\n");
+		for (int i = 0; i < QUERY_KINDS.length; i++) {
+			sb.append("lse_queries_total{kind=\"").append(QUERY_KINDS[i]).append("\"} ")
+				.append(queries[i].sum()).append('\n');
+		}
+		sb.append("# HELP lse_index_stage_seconds_total Time spent in each stage of indexing\n")
+			.append("# TYPE lse_index_stage_seconds_total counter\n");
+		for (int i = 0; i < STAGES.length; i++) {
+			sb.append("lse_index_stage_seconds_total{stage=\"").append(STAGES[i]).append("\"} ")
+				.append(seconds(stageNanos[i].sum())).append('\n');
+		}
+		summaryHeader(sb, "lse_document_scan_seconds", "Time taken to scan a document");
+		summary(sb, "lse_document_scan_seconds", "", scanNanos.snapshot(), true);
+		summaryHeader(sb, "lse_query_seconds", "Latency of sampled queries");
+		for (int i = 0; i < QUERY_KINDS.length; i++) {
+			summary(sb, "lse_query_seconds", "kind=\"" + QUERY_KINDS[i] + "\"", latencies[i].snapshot(), true);
+		}
+		summaryHeader(sb, "lse_posting_list_length", "Number of postings in each posting list");
+		summary(sb, "lse_posting_list_length", "", postingLengths, false);
+		return sb.toString();
+	}
+
+	private static void counter(StringBuilder sb, String name, String help, long value) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" counter\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void summaryHeader(StringBuilder sb, String name, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" summary\n");
+	}
+
+	private static void summary(StringBuilder sb, String name, String labels, Histogram.Snapshot h, boolean nanos) {
+		double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+		String sep = labels.length() == 0 ? "" : labels + ",";
+		for (double q : quantiles) {
+			long value = h.quantile(q);
+			sb.append(name).append('{').append(sep).append("quantile=\"").append(q).append("\"} ")
+				.append(nanos ? seconds(value) : Long.toString(value)).append('\n');
+		}
+		String braces = labels.length() == 0 ? "" : "{" + labels + "}";
+		sb.append(name).append("_sum").append(braces).append(' ')
+			.append(nanos ? seconds(h.sum) : Long.toString(h.sum)).append('\n');
+		sb.append(name).append("_count").append(braces).append(' ').append(h.count).append('\n');
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+	}
+}
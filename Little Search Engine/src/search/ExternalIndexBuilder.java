@@ -0,0 +1,382 @@
+package search;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * This class builds an index file (see MappedIndex) over more documents than fit in memory,
+ * in the manner of single-pass in-memory indexing (SPIMI). Documents are added in order of
+ * id, and their postings are appended to a run: a table from each keyword to its postings,
+ * in document order. Once the estimated size of the run reaches the memory budget, it is
+ * written to a run file in a temporary directory, with its keywords sorted by their UTF-8
+ * bytes, and a new run is started.
+ *
+ * At the end, the runs are merged into the index file. The run files are read together,
+ * one keyword at a time in the same order, and a keyword's postings from each run are
+ * concatenated (runs hold consecutive ranges of document ids, so they stay in document
+ * order), sorted by frequency and written. Only the postings of one keyword and a buffer
+ * per run are in memory. If there are more than MAX_MERGE runs, groups of consecutive runs
+ * are first merged into larger runs, so that no more than MAX_MERGE files are open at a time.
+ *
+ * A run file starts with its number of keywords, as an int. Then, for each keyword: varint
+ * length, UTF-8 bytes, varint number of postings, and for each posting the varint gap from
+ * the previous document id (from 0 for the first) and the varint frequency.
+ *
+ */
+class ExternalIndexBuilder {
+
+	/**
+	 * Most runs merged at a time.
+	 */
+	static final int MAX_MERGE = 64;
+
+	/**
+	 * Estimated number of bytes that a keyword takes in a run, besides its letters (the String,
+	 * its entry in the table and an empty posting list), and that a posting takes.
+	 */
+	static final int TERM_BYTES = 160;
+	static final int POSTING_BYTES = 12;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File directory;
+	private final long memoryBudget;
+	private final EngineMetrics metrics;
+
+	/**
+	 * The run being filled, and its estimated size in bytes.
+	 */
+	private HashMap<String,PostingList> run;
+	private long runBytes;
+
+	/**
+	 * Files of the runs written so far, in order of document id.
+	 */
+	private final ArrayList<File> runs;
+
+	/**
+	 * Initializes a builder with no documents.
+	 *
+	 * @param directory Directory in which run files are written
+	 * @param memoryBudget Estimated number of bytes that a run may take before it is written
+	 * @param metrics Metrics that the time spent in each stage is added to, or null
+	 */
+	ExternalIndexBuilder(File directory, long memoryBudget, EngineMetrics metrics) {
+		this.directory = directory;
+		this.memoryBudget = memoryBudget;
+		this.metrics = metrics;
+		run = new HashMap<String,PostingList>(1000,2.0f);
+		runs = new ArrayList<File>();
+	}
+
+	/**
+	 * Adds the keywords of a document. Documents must be added in ascending order of id.
+	 *
+	 * @param doc Document id
+	 * @param kws Keywords of the document, each with its occurrence
+	 * @throws IOException If the run had to be written, and could not be
+	 */
+	void add(int doc, HashMap<String,Occurrence> kws)
+	throws IOException {
+		long start = metrics == null ? 0 : System.nanoTime();
+		for (Map.Entry<String,Occurrence> e : kws.entrySet()) {
+			PostingList postings = run.get(e.getKey());
+			if (postings == null) {
+				postings = new PostingList();
+				run.put(e.getKey(), postings);
+				runBytes += TERM_BYTES + e.getKey().length();
+			}
+			postings.add(doc, e.getValue().frequency);
+			runBytes += POSTING_BYTES;
+		}
+		if (metrics != null) {
+			metrics.stage(EngineMetrics.MERGE, System.nanoTime() - start);
+		}
+		if (runBytes >= memoryBudget) {
+			flush();
+		}
+	}
+
+	/**
+	 * Returns the number of runs written so far.
+	 *
+	 * @return Number of run files
+	 */
+	int runs() {
+		return runs.size();
+	}
+
+	/**
+	 * Writes the run being filled to a run file, and starts a new one.
+	 *
+	 * @throws IOException If the run file cannot be written
+	 */
+	private void flush()
+	throws IOException {
+		if (run.isEmpty()) {
+			return;
+		}
+		long start = metrics == null ? 0 : System.nanoTime();
+		byte[][] terms = new byte[run.size()][];
+		final PostingList[] lists = new PostingList[run.size()];
+		int t = 0;
+		for (Map.Entry<String,PostingList> e : run.entrySet()) {
+			terms[t] = e.getKey().getBytes(UTF8);
+			lists[t] = e.getValue();
+			t++;
+		}
+		Integer[] order = new Integer[terms.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		final byte[][] sortTerms = terms;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return MappedIndex.compareBytes(sortTerms[a], sortTerms[b]);
+			}
+		});
+
+		File file = newRunFile();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		try {
+			out.writeInt(terms.length);
+			for (int i = 0; i < order.length; i++) {
+				writeTerm(out, terms[order[i]], lists[order[i]]);
+			}
+		} finally {
+			out.close();
+		}
+		run = new HashMap<String,PostingList>(1000,2.0f);
+		runBytes = 0;
+		if (metrics != null) {
+			metrics.stage(EngineMetrics.FLUSH, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Merges the runs into an index file, and deletes them.
+	 *
+	 * @param documents Documents referred to by the postings
+	 * @param noiseWords Noise words used to build the index
+	 * @param codec Codec to write the posting lists with
+	 * @param indexFile Name of the index file to be written
+	 * @throws IOException If a run file cannot be read, or the index file cannot be written
+	 */
+	void finish(DocumentTable documents, Map<String,String> noiseWords, PostingCodec codec, String indexFile)
+	throws IOException {
+		try {
+			flush();
+			long start = metrics == null ? 0 : System.nanoTime();
+			while (runs.size() > MAX_MERGE) {
+				// merge consecutive runs, so that the merged runs still cover ranges of ids in order
+				ArrayList<File> inputs = new ArrayList<File>(runs);
+				for (int from = 0; from < inputs.size(); from += MAX_MERGE) {
+					List<File> group = inputs.subList(from, Math.min(inputs.size(), from + MAX_MERGE));
+					merge(group, newRunFile(), null);
+				}
+				for (File file : inputs) {
+					file.delete();
+				}
+				runs.removeAll(inputs);
+			}
+			MappedIndex.IndexWriter writer = new MappedIndex.IndexWriter(indexFile, codec);
+			try {
+				merge(runs, null, writer);
+				writer.finish(documents, noiseWords);
+			} finally {
+				writer.close();
+			}
+			if (metrics != null) {
+				metrics.stage(EngineMetrics.FLUSH, System.nanoTime() - start);
+			}
+		} finally {
+			delete();
+		}
+	}
+
+	/**
+	 * Deletes the run files written so far.
+	 */
+	void delete() {
+		for (File file : runs) {
+			file.delete();
+		}
+		runs.clear();
+	}
+
+	private File newRunFile()
+	throws IOException {
+		File file = File.createTempFile("run", ".tmp", directory);
+		// added before it is written, so that it is deleted if writing it fails
+		runs.add(file);
+		return file;
+	}
+
+	/**
+	 * Merges runs, either into a larger run or into an index file.
+	 *
+	 * @param group Runs to merge, in order of document id
+	 * @param runFile File of the merged run, or null to write the index file
+	 * @param writer Index file writer, if runFile is null
+	 */
+	private static void merge(List<File> group, File runFile, MappedIndex.IndexWriter writer)
+	throws IOException {
+		ArrayList<RunReader> readers = new ArrayList<RunReader>(group.size());
+		DataOutputStream out = null;
+		try {
+			for (int r = 0; r < group.size(); r++) {
+				readers.add(new RunReader(group.get(r), r));
+			}
+			int terms = 0;
+			if (runFile != null) {
+				// the number of keywords is only known at the end, and is written then
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), BUFFER_SIZE));
+				out.writeInt(0);
+			}
+			PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(group.size(), 1));
+			for (RunReader reader : readers) {
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+			ArrayList<RunReader> same = new ArrayList<RunReader>(group.size());
+			while (!queue.isEmpty()) {
+				byte[] term = queue.peek().term;
+				int count = 0;
+				while (!queue.isEmpty() && Arrays.equals(queue.peek().term, term)) {
+					RunReader reader = queue.poll();
+					same.add(reader);
+					count += reader.count;
+				}
+				// the queue breaks ties by run, so the postings come out in order of document id
+				PostingList postings = new PostingList(count);
+				for (RunReader reader : same) {
+					reader.readPostings(postings);
+					if (reader.next()) {
+						queue.add(reader);
+					}
+				}
+				same.clear();
+				if (out != null) {
+					writeTerm(out, term, postings);
+				} else {
+					postings.sort();
+					writer.add(term, postings);
+				}
+				terms++;
+			}
+			if (out != null) {
+				out.close();
+				out = null;
+				RandomAccessFile raf = new RandomAccessFile(runFile, "rw");
+				try {
+					raf.writeInt(terms);
+				} finally {
+					raf.close();
+				}
+			}
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+			for (RunReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes a keyword and its postings, in document order, to a run file.
+	 */
+	private static void writeTerm(DataOutputStream out, byte[] term, PostingList postings)
+	throws IOException {
+		MappedIndex.writeVarint(out, term.length);
+		out.write(term);
+		MappedIndex.writeVarint(out, postings.size());
+		int last = 0;
+		for (int i = 0; i < postings.size(); i++) {
+			MappedIndex.writeVarint(out, postings.doc(i) - last);
+			MappedIndex.writeVarint(out, postings.frequency(i));
+			last = postings.doc(i);
+		}
+	}
+
+	/**
+	 * Reads a run file one keyword at a time. Readers are ordered by their current keyword,
+	 * and then by run.
+	 */
+	private static class RunReader implements Comparable<RunReader> {
+		private final DataInputStream in;
+		private final int run;
+		private int left;
+
+		/**
+		 * Current keyword, and its number of postings, which are read by readPostings.
+		 */
+		byte[] term;
+		int count;
+
+		RunReader(File file, int run)
+		throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+			this.run = run;
+			left = in.readInt();
+		}
+
+		/**
+		 * Reads the next keyword, once the postings of the current one have been read.
+		 *
+		 * @return False if there are no more keywords
+		 */
+		boolean next()
+		throws IOException {
+			if (left == 0) {
+				return false;
+			}
+			left--;
+			term = new byte[readVarint(in)];
+			in.readFully(term);
+			count = readVarint(in);
+			return true;
+		}
+
+		/**
+		 * Appends the postings of the current keyword to a list.
+		 */
+		void readPostings(PostingList postings)
+		throws IOException {
+			int doc = 0;
+			for (int i = 0; i < count; i++) {
+				doc += readVarint(in);
+				postings.add(doc, readVarint(in));
+			}
+		}
+
+		public int compareTo(RunReader other) {
+			int c = MappedIndex.compareBytes(term, other.term);
+			return c != 0 ? c : run - other.run;
+		}
+
+		void close()
+		throws IOException {
+			in.close();
+		}
+	}
+
+	private static int readVarint(DataInput in)
+	throws IOException {
+		int value = 0;
+		int shift = 0;
+		while (true) {
+			byte x = in.readByte();
+			value |= (x & 0x7f) << shift;
+			if (x >= 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+}
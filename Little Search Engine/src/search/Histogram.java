@@ -0,0 +1,160 @@
+package search;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a histogram of non-negative values, such as latencies in nanoseconds, with
+ * buckets laid out the way HdrHistogram lays them out: values below 2^SUB_BUCKET_BITS have a
+ * bucket each, and every power of two above that is split into 2^(SUB_BUCKET_BITS-1) equal
+ * buckets. So a value is recorded to within 1/64 of itself (about 1.6%), over the whole
+ * range of a long, in a fixed 30KB of counts.
+ *
+ * Values may be recorded by any number of threads. Each thread records into a stripe of its
+ * own, which only it writes, so recording is an array store with no contention; a snapshot
+ * adds the stripes up.
+ *
+ */
+class Histogram {
+
+	static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF = SUB_BUCKETS >> 1;
+
+	/**
+	 * Number of buckets: the exact ones, then HALF for each power of two from 2^SUB_BUCKET_BITS
+	 * up to 2^62 (the highest power of two in a long).
+	 */
+	static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF;
+
+	/**
+	 * Slots of a stripe after its buckets: the sum and the largest of the values it recorded.
+	 */
+	private static final int SUM = BUCKETS;
+	private static final int MAX = BUCKETS + 1;
+
+	/**
+	 * All stripes, and the one of the current thread.
+	 */
+	private final CopyOnWriteArrayList<AtomicLongArray> stripes = new CopyOnWriteArrayList<AtomicLongArray>();
+	private final ThreadLocal<AtomicLongArray> stripe = new ThreadLocal<AtomicLongArray>() {
+		protected AtomicLongArray initialValue() {
+			AtomicLongArray counts = new AtomicLongArray(BUCKETS + 2);
+			stripes.add(counts);
+			return counts;
+		}
+	};
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value Value, which is taken as 0 if it is negative
+	 */
+	void record(long value) {
+		value = Math.max(value, 0);
+		AtomicLongArray counts = stripe.get();
+		// only this thread writes the stripe, so ordered writes are enough
+		int bucket = bucket(value);
+		counts.lazySet(bucket, counts.get(bucket) + 1);
+		counts.lazySet(SUM, counts.get(SUM) + value);
+		if (value > counts.get(MAX)) {
+			counts.lazySet(MAX, value);
+		}
+	}
+
+	/**
+	 * Returns the bucket of a value.
+	 */
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS + 1;
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * HALF + (int)(value >>> shift) - HALF;
+	}
+
+	/**
+	 * Returns the largest value in a bucket.
+	 */
+	static long highest(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - SUB_BUCKETS) / HALF + SUB_BUCKET_BITS;
+		int shift = exponent - SUB_BUCKET_BITS + 1;
+		long low = (long)((bucket - SUB_BUCKETS) % HALF + HALF) << shift;
+		return low + (1L << shift) - 1;
+	}
+
+	/**
+	 * Returns the values recorded so far, added up over all threads.
+	 *
+	 * @return Snapshot of this histogram
+	 */
+	Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long sum = 0;
+		long max = 0;
+		for (AtomicLongArray s : stripes) {
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] += s.get(i);
+			}
+			sum += s.get(SUM);
+			max = Math.max(max, s.get(MAX));
+		}
+		return new Snapshot(counts, sum, max);
+	}
+
+	/**
+	 * Values recorded by a histogram up to some point.
+	 */
+	static class Snapshot {
+		private final long[] counts;
+		final long count;
+		final long sum;
+		final long max;
+
+		Snapshot(long[] counts, long sum, long max) {
+			this.counts = counts;
+			long n = 0;
+			for (long c : counts) {
+				n += c;
+			}
+			this.count = n;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * Returns the mean of the values.
+		 *
+		 * @return Mean, or 0 if there are no values
+		 */
+		double mean() {
+			return count == 0 ? 0 : (double)sum / count;
+		}
+
+		/**
+		 * Returns a value that the given fraction of the values are at or below (to within
+		 * the precision of the buckets, and never more than the largest value).
+		 *
+		 * @param q Fraction, from 0 to 1
+		 * @return Quantile, or 0 if there are no values
+		 */
+		long quantile(double q) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long)Math.ceil(q * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(highest(i), max);
+				}
+			}
+			return max;
+		}
+	}
+}
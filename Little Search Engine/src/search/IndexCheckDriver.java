@@ -0,0 +1,288 @@
+package search;
+import java.util.*;
+import java.io.*;
+
+/**
+ * Checks that an index gives the same results however it is built, saved and reopened. Each
+ * check builds indexes of a corpus in two ways and compares the results of the same queries
+ * on both, printing how many queries differed. The exit status is 1 if any check failed.
+ *
+ * Usage: IndexCheckDriver [docsFile] [noiseWordsFile] [indexFile]
+ */
+public class IndexCheckDriver {
+
+	private static int failures;
+
+	public static void main(String[] args) throws IOException {
+		String docsFile = args.length > 0 ? args[0] : "docs.txt";
+		String noiseWordsFile = args.length > 1 ? args[1] : "noisewords.txt";
+		String indexFile = args.length > 2 ? args[2] : docsFile + ".check";
+
+		checkSaveOverOpen(docsFile, noiseWordsFile, indexFile);
+		checkIncremental(docsFile, noiseWordsFile);
+		checkPhrases(docsFile, noiseWordsFile);
+		checkScanSnapshot(docsFile, noiseWordsFile, indexFile + ".scans");
+		checkCacheKeys(docsFile, noiseWordsFile);
+
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Saves an opened index, with a document removed, over the file it was opened from, and
+	 * compares it with an index built without that document.
+	 */
+	private static void checkSaveOverOpen(String docsFile, String noiseWordsFile, String indexFile)
+	throws IOException {
+		ArrayList<String> docs = readDocs(docsFile);
+		LittleSearchEngine built = new LittleSearchEngine();
+		built.makeIndex(docsFile, noiseWordsFile);
+		built.saveIndex(indexFile);
+
+		LittleSearchEngine opened = new LittleSearchEngine();
+		opened.openIndex(indexFile);
+		opened.removeDocument(docs.get(0));
+		opened.saveIndex(indexFile);
+		built.removeDocument(docs.get(0));
+
+		LittleSearchEngine reopened = new LittleSearchEngine();
+		reopened.openIndex(indexFile);
+		String[] words = keywords(built);
+		int differ = compare(built, opened, words) + compare(built, reopened, words);
+		new File(indexFile).delete();
+		report("save over open index", differ, 2 * words.length);
+	}
+
+	/**
+	 * Builds an index one document at a time with addDocument, and compares it with one
+	 * built by makeIndex, which ranks ties the same way (in the order documents were added).
+	 * A document is then updated in both, which moves it after the others.
+	 */
+	private static void checkIncremental(String docsFile, String noiseWordsFile)
+	throws IOException {
+		ArrayList<String> docs = readDocs(docsFile);
+		File firstFile = new File(docsFile + ".first");
+		PrintWriter first = new PrintWriter(new FileWriter(firstFile));
+		first.println(docs.get(0));
+		first.close();
+
+		LittleSearchEngine batch = new LittleSearchEngine();
+		batch.makeIndex(docsFile, noiseWordsFile);
+		LittleSearchEngine incremental = new LittleSearchEngine();
+		incremental.makeIndex(firstFile.getPath(), noiseWordsFile);
+		firstFile.delete();
+		HashSet<String> added = new HashSet<String>();
+		added.add(docs.get(0));
+		for (String doc : docs) {
+			if (added.add(doc)) {
+				incremental.addDocument(doc);
+			}
+		}
+		String[] words = keywords(batch);
+		int differ = compare(batch, incremental, words);
+
+		String updated = docs.get(docs.size() / 2);
+		batch.updateDocument(updated);
+		incremental.updateDocument(updated);
+		differ += compare(batch, incremental, words);
+		report("incremental build", differ, 2 * words.length);
+	}
+
+	/**
+	 * Runs phrase searches for words taken from the documents, with a noise word before and
+	 * after them, and compares the results with counts made by matching the phrase at every
+	 * word of every document. Phrases are taken from the start and the end of documents as
+	 * well, where the noise words would fall outside the document.
+	 */
+	private static void checkPhrases(String docsFile, String noiseWordsFile)
+	throws IOException {
+		ArrayList<String> docs = new ArrayList<String>(new LinkedHashSet<String>(readDocs(docsFile)));
+		ArrayList<String> noise = readDocs(noiseWordsFile);
+		LittleSearchEngine engine = new LittleSearchEngine();
+		engine.enablePositions();
+		engine.makeIndex(docsFile, noiseWordsFile);
+
+		// the words of each document, and the keyword each is (null if it is not one)
+		ArrayList<String[]> docWords = new ArrayList<String[]>(docs.size());
+		ArrayList<String[]> docKeywords = new ArrayList<String[]>(docs.size());
+		for (String doc : docs) {
+			String[] words = readWords(doc);
+			String[] kws = new String[words.length];
+			for (int i = 0; i < words.length; i++) {
+				kws[i] = engine.getKeyWord(words[i]);
+			}
+			docWords.add(words);
+			docKeywords.add(kws);
+		}
+
+		Random r = new Random(17);
+		int queries = 0;
+		int differ = 0;
+		while (queries < 1000) {
+			int d = r.nextInt(docs.size());
+			String[] words = docWords.get(d);
+			if (words.length < 2) {
+				continue;
+			}
+			int choice = r.nextInt(4);
+			int at = choice == 0 ? 0 : choice == 1 ? words.length - 2 : r.nextInt(words.length - 1);
+			String[] phrase = {
+				noise.get(r.nextInt(noise.size())), words[at], words[at + 1], noise.get(r.nextInt(noise.size()))
+			};
+			String[] phraseKeywords = new String[phrase.length];
+			boolean any = false;
+			for (int i = 0; i < phrase.length; i++) {
+				phraseKeywords[i] = engine.getKeyWord(phrase[i]);
+				any |= phraseKeywords[i] != null;
+			}
+			if (!any) {
+				continue;
+			}
+			queries++;
+
+			// documents in descending order of count, ties in the order they were indexed
+			final int[] counts = new int[docs.size()];
+			Integer[] order = new Integer[docs.size()];
+			for (int doc = 0; doc < docs.size(); doc++) {
+				order[doc] = doc;
+				String[] kws = docKeywords.get(doc);
+				for (int start = 0; start + phrase.length <= kws.length; start++) {
+					boolean match = true;
+					for (int i = 0; i < phrase.length && match; i++) {
+						match = phraseKeywords[i] == null || phraseKeywords[i].equals(kws[start + i]);
+					}
+					if (match) {
+						counts[doc]++;
+					}
+				}
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return counts[b] - counts[a];
+				}
+			});
+			ArrayList<String> expected = new ArrayList<String>();
+			for (int i = 0; i < order.length && counts[order[i]] > 0; i++) {
+				expected.add(docs.get(order[i]));
+			}
+			StringBuilder sb = new StringBuilder();
+			for (String word : phrase) {
+				sb.append(word).append(' ');
+			}
+			ArrayList<String> actual = engine.phraseSearch(sb.toString(), docs.size());
+			if (!String.valueOf(expected.isEmpty() ? null : expected).equals(String.valueOf(actual))) {
+				differ++;
+			}
+		}
+		report("phrases with noise words at the ends", differ, queries);
+	}
+
+	/**
+	 * Saves a scan snapshot before any document is indexed, and again after, and compares an
+	 * index built with the documents taken from the snapshot with one built without it.
+	 */
+	private static void checkScanSnapshot(String docsFile, String noiseWordsFile, String snapshotFile)
+	throws IOException {
+		new File(snapshotFile).delete();
+		LittleSearchEngine cold = new LittleSearchEngine();
+		cold.enableScanSnapshot(snapshotFile);
+		cold.saveScanSnapshot();
+		cold.makeIndex(docsFile, noiseWordsFile);
+		cold.saveScanSnapshot();
+
+		LittleSearchEngine warm = new LittleSearchEngine();
+		warm.enableScanSnapshot(snapshotFile);
+		warm.makeIndex(docsFile, noiseWordsFile);
+		LittleSearchEngine built = new LittleSearchEngine();
+		built.makeIndex(docsFile, noiseWordsFile);
+		String[] words = keywords(built);
+		int differ = compare(built, cold, words) + compare(built, warm, words);
+		new File(snapshotFile).delete();
+		report("scan snapshot saved before indexing", differ, 2 * words.length);
+	}
+
+	/**
+	 * Searches for a keyword with a space in it, made of two keywords, before searching for
+	 * the two keywords, on an engine with a query cache, and compares the results of the
+	 * second search with those of an engine without one.
+	 */
+	private static void checkCacheKeys(String docsFile, String noiseWordsFile)
+	throws IOException {
+		LittleSearchEngine cached = new LittleSearchEngine();
+		cached.makeIndex(docsFile, noiseWordsFile);
+		LittleSearchEngine uncached = new LittleSearchEngine();
+		uncached.makeIndex(docsFile, noiseWordsFile);
+		uncached.setQueryCacheSize(0);
+		String[] words = keywords(uncached);
+		int differ = 0;
+		for (int i = 0; i < words.length; i++) {
+			String kw1 = words[i];
+			String kw2 = words[(i + 1) % words.length];
+			cached.topSearch(5, kw1 + " " + kw2);
+			if (!String.valueOf(uncached.topSearch(5, kw1, kw2)).equals(String.valueOf(cached.topSearch(5, kw1, kw2)))) {
+				differ++;
+			}
+		}
+		report("query cache keys of keywords with spaces", differ, words.length);
+	}
+
+	/**
+	 * Runs a top 5 search for each keyword, with the next one, on two engines, and returns
+	 * how many results differ.
+	 */
+	private static int compare(LittleSearchEngine expected, LittleSearchEngine actual, String[] words) {
+		int differ = 0;
+		for (int i = 0; i < words.length; i++) {
+			String kw1 = words[i];
+			String kw2 = words[(i + 1) % words.length];
+			if (!String.valueOf(expected.top5search(kw1, kw2)).equals(String.valueOf(actual.top5search(kw1, kw2)))) {
+				differ++;
+			}
+		}
+		return differ;
+	}
+
+	private static String[] keywords(LittleSearchEngine engine) {
+		return new TreeSet<String>(engine.keywordsIndex.keySet()).toArray(new String[0]);
+	}
+
+	private static ArrayList<String> readDocs(String docsFile)
+	throws FileNotFoundException {
+		ArrayList<String> docs = new ArrayList<String>();
+		Scanner sc = new Scanner(new File(docsFile));
+		while (sc.hasNext()) {
+			docs.add(sc.next());
+		}
+		sc.close();
+		return docs;
+	}
+
+	/**
+	 * Returns the words of a document, split at whitespace as the tokenizer splits them.
+	 */
+	private static String[] readWords(String docFile)
+	throws IOException {
+		StringBuilder sb = new StringBuilder();
+		BufferedReader in = new BufferedReader(new FileReader(docFile));
+		try {
+			char[] buffer = new char[1 << 13];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				sb.append(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		String text = sb.toString().trim();
+		return text.length() == 0 ? new String[0] : text.split("\\s+");
+	}
+
+	private static void report(String check, int differ, int queries) {
+		System.out.println(check + ": " + differ + " of " + queries + " queries differ");
+		if (differ > 0) {
+			failures++;
+		}
+	}
+}
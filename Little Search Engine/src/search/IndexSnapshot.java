@@ -0,0 +1,172 @@
+package search;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This class is a consistent view of the posting lists of the keywords in one query, as of
+ * one version of the documents table. Postings of documents that are not visible in that
+ * version (added later, or removed by then) are skipped by searches, so a query sees the
+ * index as it was at that version even while documents are being merged or removed.
+ *
+ * When the index is split into segments, a keyword has one list per segment it occurs in
+ * (its layers, oldest first), which are merged into one list when the whole list is needed.
+ * Segments cover ascending ranges of document ids, so the layers' postings in document
+ * order only have to be put end to end, without sorting, for boolean queries.
+ *
+ * When positions are enabled, the snapshot also holds the keywords' position lists.
+ *
+ */
+class IndexSnapshot {
+
+	private static final PostingList[] NONE = new PostingList[0];
+
+	/**
+	 * Documents table, and the version of it that this snapshot sees.
+	 */
+	final DocumentTable documents;
+	final int version;
+
+	/**
+	 * Posting lists of the keywords in the query, per layer (keywords not in the index are
+	 * left out), and the merged lists built so far.
+	 */
+	private final HashMap<String,PostingList[]> layers;
+	private final HashMap<String,PostingList> merged;
+
+	/**
+	 * Postings of the keywords in ascending order of document id, built so far.
+	 */
+	private final HashMap<String,PostingList.DocOrder> docOrders;
+
+	/**
+	 * Position lists of the keywords in the query (keywords not in the index are left out),
+	 * or null if positions are not enabled.
+	 */
+	private final HashMap<String,PositionList> positions;
+
+	IndexSnapshot(DocumentTable documents, int version, HashMap<String,PostingList[]> layers,
+			HashMap<String,PositionList> positions) {
+		this.documents = documents;
+		this.version = version;
+		this.layers = layers;
+		this.merged = new HashMap<String,PostingList>();
+		this.docOrders = new HashMap<String,PostingList.DocOrder>();
+		this.positions = positions;
+	}
+
+	/**
+	 * Returns the posting list of a keyword.
+	 *
+	 * @param kw Keyword (lower case)
+	 * @return Postings of the keyword, or null if it is not in the index
+	 */
+	PostingList get(String kw) {
+		PostingList postings = merged.get(kw);
+		if (postings == null) {
+			PostingList[] lists = layers.get(kw);
+			if (lists == null) {
+				return null;
+			}
+			postings = lists.length == 1 ? lists[0] : PostingList.merge(lists);
+			merged.put(kw, postings);
+		}
+		return postings;
+	}
+
+	/**
+	 * Returns the postings of a keyword in ascending order of document id. A list that is
+	 * in one layer is returned as it is kept with the list (see PostingList.docOrder); the
+	 * layers of a list that is in several are put end to end.
+	 *
+	 * @param kw Keyword (lower case)
+	 * @return Postings of the keyword in document order, or null if it is not in the index
+	 */
+	PostingList.DocOrder docOrder(String kw) {
+		PostingList.DocOrder order = docOrders.get(kw);
+		if (order != null) {
+			return order;
+		}
+		PostingList[] lists = layers.get(kw);
+		if (lists == null) {
+			return null;
+		}
+		if (lists.length == 1) {
+			order = lists[0].docOrder();
+		} else {
+			int total = 0;
+			for (PostingList postings : lists) {
+				total += postings.size();
+			}
+			int[] docs = new int[total];
+			int[] freqs = new int[total];
+			int n = 0;
+			for (PostingList postings : lists) {
+				PostingList.DocOrder layer = postings.docOrder();
+				if (layer.size > 0 && n > 0 && layer.docs[0] <= docs[n-1]) {
+					// layers out of document order; not expected, but sorting is still right
+					order = get(kw).docOrder();
+					break;
+				}
+				System.arraycopy(layer.docs, 0, docs, n, layer.size);
+				System.arraycopy(layer.freqs, 0, freqs, n, layer.size);
+				n += layer.size;
+			}
+			if (order == null) {
+				order = new PostingList.DocOrder(docs, freqs, n);
+			}
+		}
+		docOrders.put(kw, order);
+		return order;
+	}
+
+	/**
+	 * Returns the posting lists of a keyword in each layer of the index, oldest first.
+	 *
+	 * @param kw Keyword (lower case)
+	 * @return Postings of the keyword per layer, empty if it is not in the index
+	 */
+	PostingList[] layers(String kw) {
+		PostingList[] lists = layers.get(kw);
+		return lists == null ? NONE : lists;
+	}
+
+	/**
+	 * Returns the frequency of a keyword in a document.
+	 *
+	 * @param kw Keyword (lower case)
+	 * @param doc Document id
+	 * @return Frequency, or 0 if the keyword does not occur in the document
+	 */
+	int frequency(String kw, int doc) {
+		for (PostingList postings : layers(kw)) {
+			PostingList.DocOrder byDoc = postings.docOrder();
+			int i = Arrays.binarySearch(byDoc.docs, 0, byDoc.size, doc);
+			if (i >= 0) {
+				// a document is in only one layer
+				return byDoc.freqs[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the position list of a keyword.
+	 *
+	 * @param kw Keyword (lower case)
+	 * @return Positions of the keyword, or null if it is not in the index or positions are not enabled
+	 */
+	PositionList positions(String kw) {
+		return positions == null ? null : positions.get(kw);
+	}
+
+	/**
+	 * Returns true if a document is visible in this snapshot.
+	 *
+	 * @param doc Document id
+	 * @return True if the document is visible
+	 */
+	boolean isVisible(int doc) {
+		return documents.isVisible(doc, version);
+	}
+}
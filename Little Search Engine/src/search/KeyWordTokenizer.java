@@ -0,0 +1,376 @@
+package search;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+
+/**
+ * This class scans a document for keywords without going through Scanner. The document
+ * is decoded through a reusable char buffer, and each word is lower-cased and stripped of
+ * trailing punctuation in a reusable token buffer, applying the same rules as
+ * LittleSearchEngine.getKeyWord. A String is only created the first time a keyword is seen
+ * in a document (noise words are tested in the token buffer, see NoiseWordSet); repeated
+ * words are counted by looking the token buffer up directly in an open-addressing table.
+ * When positions are enabled, the position of every occurrence is recorded as well (see
+ * PositionalOccurrence).
+ *
+ * A tokenizer keeps state between calls, so it must not be shared between threads.
+ *
+ */
+class KeyWordTokenizer {
+
+	/**
+	 * Size of the byte and char buffers used to read a document.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Marks a word in the table that is not a keyword (noise word, or fails the keyword test).
+	 */
+	private static final Occurrence NOT_KEYWORD = new Occurrence(null, 0);
+
+	/**
+	 * Engine whose keyword rules (and noise words) this tokenizer applies.
+	 */
+	private final LittleSearchEngine engine;
+
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+	private final CharsetDecoder decoder;
+
+	/**
+	 * Current token: lower-cased characters, and whether any of them is not ASCII.
+	 */
+	private char[] token = new char[64];
+	private int tokenLength;
+	private boolean tokenAscii;
+
+	/**
+	 * Open-addressing table of the distinct words seen in the current document. Slot i
+	 * holds words[i] with hash hashes[i], mapped to its occurrence (or NOT_KEYWORD).
+	 */
+	private String[] words;
+	private int[] hashes;
+	private Occurrence[] occs;
+	private int count;
+
+	/**
+	 * Name of the document being scanned.
+	 */
+	private String docFile;
+
+	/**
+	 * Whether positions are recorded in the document being scanned, and the position of
+	 * the next word in it.
+	 */
+	private boolean positional;
+	private int position;
+
+	/**
+	 * Number of keyword occurrences and of noise words in the document being scanned.
+	 */
+	private int keywordCount;
+	private int noiseCount;
+
+	/**
+	 * Initializes a tokenizer for the given engine.
+	 *
+	 * @param engine Engine whose noise words and keyword rules are applied
+	 */
+	KeyWordTokenizer(LittleSearchEngine engine) {
+		this.engine = engine;
+		decoder = Charset.defaultCharset().newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		allocateTable(256);
+	}
+
+	/**
+	 * Scans a document, and loads all keywords found into a hash table of keyword occurrences
+	 * in the document. The result is the same as that of LittleSearchEngine.loadKeyWords.
+	 *
+	 * @param docFile Name of the document file to be scanned and loaded
+	 * @return Hash table of keywords in the given document, each associated with an Occurrence object
+	 * @throws FileNotFoundException If the document file is not found on disk
+	 */
+	HashMap<String,Occurrence> scan(String docFile)
+	throws FileNotFoundException {
+		this.docFile = docFile;
+		positional = engine.positionsIndex != null;
+		position = 0;
+		keywordCount = 0;
+		noiseCount = 0;
+		clearTable();
+		tokenLength = 0;
+		tokenAscii = true;
+
+		FileInputStream in = new FileInputStream(docFile);
+		try {
+			FileChannel channel = in.getChannel();
+			decoder.reset();
+			bytes.clear();
+			boolean eof = false;
+			while (!eof) {
+				eof = channel.read(bytes) < 0;
+				bytes.flip();
+				decoder.decode(bytes, chars, eof);
+				if (eof) {
+					decoder.flush(chars);
+				}
+				bytes.compact();
+				chars.flip();
+				consume();
+				chars.clear();
+			}
+			endToken();
+		} catch (IOException e) {
+			throw new IllegalStateException("Error reading " + docFile, e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// nothing more to read, ignore
+			}
+		}
+
+		HashMap<String,Occurrence> keywords = new HashMap<String,Occurrence>(count * 2);
+		for (int i = 0; i < words.length; i++) {
+			if (words[i] != null && occs[i] != NOT_KEYWORD) {
+				keywords.put(words[i], occs[i]);
+				if (positional) {
+					((PositionalOccurrence)occs[i]).words = position;
+				}
+			}
+		}
+		return keywords;
+	}
+
+	/**
+	 * Splits the decoded characters into tokens at whitespace, the same as Scanner does.
+	 */
+	private void consume() {
+		char[] buf = chars.array();
+		int end = chars.limit();
+		for (int i = chars.position(); i < end; i++) {
+			char ch = buf[i];
+			if (Character.isWhitespace(ch)) {
+				endToken();
+			} else {
+				if (tokenLength == token.length) {
+					char[] bigger = new char[token.length * 2];
+					System.arraycopy(token, 0, bigger, 0, tokenLength);
+					token = bigger;
+				}
+				if (ch < 0x80) {
+					if (ch >= 'A' && ch <= 'Z') {
+						ch += 'a' - 'A';
+					}
+				} else {
+					tokenAscii = false;
+				}
+				token[tokenLength++] = ch;
+			}
+		}
+	}
+
+	/**
+	 * Applies the keyword test to the current token, and counts it if it is a keyword.
+	 */
+	private void endToken() {
+		int len = tokenLength;
+		boolean ascii = tokenAscii;
+		tokenLength = 0;
+		tokenAscii = true;
+
+		if (len == 0) {
+			return;
+		}
+		position++;
+		if (!ascii) {
+			// String.toLowerCase can change the length of non-ASCII words,
+			// so leave those to getKeyWord
+			String word = engine.getKeyWord(new String(token, 0, len));
+			if (word != null) {
+				count(word);
+			}
+			return;
+		}
+		if (len == 1) {
+			return;
+		}
+
+		// strip trailing punctuation
+		while (len > 0 && !isLetter(token[len-1])) {
+			char ch = token[len-1];
+			if (ch == '.' || ch == ',' || ch == '?' || ch == ':' || ch == ';' || ch == '!') {
+				len--;
+			} else {
+				return;
+			}
+		}
+		if (len == 0) {
+			return;
+		}
+		for (int i = 0; i < len-1; i++) {
+			if (!isLetter(token[i])) {
+				return;
+			}
+		}
+
+		int hash = 0;
+		for (int i = 0; i < len; i++) {
+			hash = 31*hash + token[i];
+		}
+		int mask = words.length - 1;
+		int slot = spread(hash) & mask;
+		while (words[slot] != null) {
+			if (hashes[slot] == hash && matches(words[slot], len)) {
+				if (occs[slot] != NOT_KEYWORD) {
+					counted(occs[slot]);
+				} else {
+					noiseCount++;
+				}
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		// first time this word is seen in the document; a noise word is
+		// tested in the token buffer, and its String is the noise word set's own
+		String noise = engine.noiseWordSet.get(token, 0, len, hash);
+		if (noise != null) {
+			put(slot, noise, hash, NOT_KEYWORD);
+			noiseCount++;
+		} else {
+			put(slot, new String(token, 0, len), hash, newOccurrence());
+		}
+	}
+
+	/**
+	 * Counts a keyword that was produced by getKeyWord.
+	 */
+	private void count(String word) {
+		int hash = word.hashCode();
+		int mask = words.length - 1;
+		int slot = spread(hash) & mask;
+		while (words[slot] != null) {
+			if (hashes[slot] == hash && words[slot].equals(word)) {
+				counted(occs[slot]);
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		put(slot, word, hash, newOccurrence());
+	}
+
+	/**
+	 * Returns the occurrence of a keyword seen for the first time at the current word.
+	 */
+	private Occurrence newOccurrence() {
+		keywordCount++;
+		return positional ? new PositionalOccurrence(docFile, position - 1) : new Occurrence(docFile, 1);
+	}
+
+	/**
+	 * Counts another occurrence of a keyword, at the current word.
+	 */
+	private void counted(Occurrence occ) {
+		keywordCount++;
+		if (positional) {
+			((PositionalOccurrence)occ).add(position - 1);
+		} else {
+			occ.frequency++;
+		}
+	}
+
+	/**
+	 * Returns the number of words in the document last scanned.
+	 *
+	 * @return Number of words
+	 */
+	int tokens() {
+		return position;
+	}
+
+	/**
+	 * Returns the number of keyword occurrences in the document last scanned.
+	 *
+	 * @return Number of keyword occurrences
+	 */
+	int keywords() {
+		return keywordCount;
+	}
+
+	/**
+	 * Returns the number of noise words in the document last scanned.
+	 *
+	 * @return Number of noise words
+	 */
+	int noiseWords() {
+		return noiseCount;
+	}
+
+	private static boolean isLetter(char ch) {
+		return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private boolean matches(String word, int len) {
+		if (word.length() != len) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (word.charAt(i) != token[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void put(int slot, String word, int hash, Occurrence occ) {
+		words[slot] = word;
+		hashes[slot] = hash;
+		occs[slot] = occ;
+		count++;
+		if (count * 2 > words.length) {
+			String[] oldWords = words;
+			int[] oldHashes = hashes;
+			Occurrence[] oldOccs = occs;
+			allocateTable(oldWords.length * 2);
+			int mask = words.length - 1;
+			for (int i = 0; i < oldWords.length; i++) {
+				if (oldWords[i] != null) {
+					int s = spread(oldHashes[i]) & mask;
+					while (words[s] != null) {
+						s = (s + 1) & mask;
+					}
+					words[s] = oldWords[i];
+					hashes[s] = oldHashes[i];
+					occs[s] = oldOccs[i];
+				}
+			}
+		}
+	}
+
+	private void allocateTable(int capacity) {
+		words = new String[capacity];
+		hashes = new int[capacity];
+		occs = new Occurrence[capacity];
+	}
+
+	private void clearTable() {
+		for (int i = 0; i < words.length; i++) {
+			words[i] = null;
+			occs[i] = null;
+		}
+		count = 0;
+	}
+}
@@ -2,105 +2,1194 @@ package search;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
- * This class encapsulates an occurrence of a keyword in a document. It stores the
- * document name, and the frequency of occurrence in that document. Occurrences are
- * associated with keywords in an index hash table.
- * 
- * @author Sesh Venugopal
- * 
+ * This class builds an index of keywords. Each keyword maps to a set of documents in
+ * which it occurs, with frequency of occurrence in each document. Once the index is built,
+ * the documents can searched on for keywords.
+ *
  */
-class Occurrence {
+public class LittleSearchEngine {
+	
+	/**
+	 * This is a hash table of all keywords. The key is the actual keyword, and the associated value is
+	 * the posting list of all occurrences of the keyword in documents. The posting list is maintained in
+	 * descending order of occurrence frequencies, and refers to documents by their ids in the documents table.
+	 * It is a ConcurrentHashMap once enableConcurrentReads has been called. When the index is segmented,
+	 * it only holds the documents merged since the last segment was flushed.
+	 */
+	volatile Map<String,PostingList> keywordsIndex;
+	
+	/**
+	 * Ids of all indexed documents.
+	 */
+	DocumentTable documents;
+	
+	/**
+	 * The hash table of all noise words - mapping is from word to itself.
+	 */
+	HashMap<String,String> noiseWords;
+	
+	/**
+	 * The same noise words, in the set that getKeyWord and the tokenizers test words against.
+	 * It is rebuilt whenever noiseWords is loaded.
+	 */
+	NoiseWordSet noiseWordSet;
+	
+	/**
+	 * Index file opened by openIndex, or null if there is none. Its keywords are looked up
+	 * along with those in keywordsIndex.
+	 */
+	MappedIndex mappedIndex;
+	
+	/**
+	 * Segments that documents are flushed to once enableSegments has been called, or null.
+	 */
+	SegmentedIndex segmented;
+	
+	/**
+	 * Position lists of all keywords once enablePositions has been called, or null. Workers
+	 * of the parallel makeIndex add to the lists of different keywords at the same time.
+	 */
+	ConcurrentHashMap<String,PositionList> positionsIndex;
+	
+	/**
+	 * Sorted dictionary of all keywords, which expands the patterns of wildcardSearch.
+	 * Writers replace it whenever keywords are added to the index.
+	 */
+	volatile TermDictionary terms;
+	
+	/**
+	 * Codec that index and segment files are written with (see PostingCodec).
+	 */
+	volatile PostingCodec postingCodec = PostingCodec.VARINT;
+	
+	/**
+	 * Metrics collected since enableMetrics was called, or null if they are not collected.
+	 */
+	volatile EngineMetrics metrics;
+	
+	/**
+	 * Log that queries are written to since enableQueryLog was called, or null if they are not logged.
+	 */
+	volatile QueryLog queryLog;
+	
+	/**
+	 * Snapshot of scanned documents that loadKeyWords takes keywords from and records them in
+	 * since enableScanSnapshot was called, or null.
+	 */
+	volatile ScanSnapshot scanSnapshot;
+	
+	/**
+	 * Number of documents merged into keywordsIndex since the last segment was flushed.
+	 */
+	int bufferedDocs;
+	
+	/**
+	 * Number of documents indexed per second by the most recent call to makeIndex.
+	 */
+	double indexRate;
+	
+	/**
+	 * Cache of recent topSearch results.
+	 */
+	volatile QueryCache queryCache;
+	
+	/**
+	 * Number of results that the query cache holds unless setQueryCacheSize is called.
+	 */
+	static final int DEFAULT_QUERY_CACHE_SIZE = 1024;
+	
+	/**
+	 * Number of distinct queries that topSearchBatch hands to a thread at a time.
+	 */
+	static final int BATCH_CHUNK = 64;
+	
+	/**
+	 * Number of documents removed since the index was last compacted. Their postings are
+	 * still in the posting lists, and are skipped by searches.
+	 */
+	int tombstones;
+	
+	/**
+	 * True once enableConcurrentReads has been called. Writers then never change a posting list
+	 * that readers can see, but put a changed copy in its place.
+	 */
+	boolean concurrent;
+	
+	/**
+	 * Number of times that compact, or a segment flush or merge, has started or finished
+	 * replacing posting lists. It is odd while lists are being replaced, and readers taking
+	 * a snapshot retry if it changes under them.
+	 */
+	private volatile int layoutChanges;
+	
+	/**
+	 * Per-thread tokenizers used by loadKeyWords, so their buffers are reused across documents.
+	 */
+	private final ThreadLocal<KeyWordTokenizer> tokenizers = new ThreadLocal<KeyWordTokenizer>() {
+		protected KeyWordTokenizer initialValue() {
+			return new KeyWordTokenizer(LittleSearchEngine.this);
+		}
+	};
+	
+	/**
+	 * Creates the keyWordsIndex and noiseWords hash tables, and the documents table.
+	 */
+	public LittleSearchEngine() {
+		keywordsIndex = new HashMap<String,PostingList>(1000,2.0f);
+		documents = new DocumentTable();
+		noiseWords = new HashMap<String,String>(100,2.0f);
+		noiseWordSet = new NoiseWordSet(noiseWords.keySet());
+		queryCache = new QueryCache(DEFAULT_QUERY_CACHE_SIZE);
+		terms = TermDictionary.EMPTY;
+	}
+	
+	/**
+	 * Lets searches run on any number of threads while one thread at a time adds, removes or
+	 * updates documents. Writer methods are synchronized on the engine; searches take no lock,
+	 * and each sees the index as of the last version of the documents table published when it
+	 * started (see IndexSnapshot). This must be called before the engine is shared between threads.
+	 */
+	public synchronized void enableConcurrentReads() {
+		if (!concurrent) {
+			keywordsIndex = new ConcurrentHashMap<String,PostingList>(keywordsIndex);
+			concurrent = true;
+		}
+	}
+	
+	/**
+	 * Sets the number of results kept by the query cache (see QueryCache), dropping those
+	 * cached so far. The cache is bypassed if the size is 0.
+	 * 
+	 * @param entries Maximum number of cached results
+	 */
+	public synchronized void setQueryCacheSize(int entries) {
+		if (entries < 0) {
+			throw new IllegalArgumentException("entries must not be negative: " + entries);
+		}
+		queryCache = new QueryCache(entries);
+	}
+	
+	/**
+	 * Returns the number of topSearch calls answered from the query cache.
+	 * 
+	 * @return Cache hits since the cache was last resized
+	 */
+	public long getCacheHits() {
+		return queryCache.hits();
+	}
+	
+	/**
+	 * Returns the number of topSearch calls that were not answered from the query cache.
+	 * 
+	 * @return Cache misses since the cache was last resized
+	 */
+	public long getCacheMisses() {
+		return queryCache.misses();
+	}
+	
+	/**
+	 * Starts collecting metrics (see EngineMetrics): counters of documents, words, keywords
+	 * and noise words indexed, time spent in each stage of indexing, and histograms of the
+	 * time taken to scan each document and to answer each kind of query. Collecting them
+	 * costs a little on every document and query; when they are not collected, it costs
+	 * nothing but a check.
+	 */
+	public synchronized void enableMetrics() {
+		if (metrics == null) {
+			metrics = new EngineMetrics();
+		}
+	}
+	
+	/**
+	 * Stops collecting metrics, and drops those collected so far.
+	 */
+	public synchronized void disableMetrics() {
+		metrics = null;
+	}
+	
+	/**
+	 * Dumps the metrics collected so far, along with the distribution of the lengths of all
+	 * posting lists in the index (which takes a pass over the keywords).
+	 * 
+	 * @param format "json" for a JSON object, or "prometheus" for the Prometheus text format
+	 * @return Metrics in the given format
+	 * @throws IllegalArgumentException If the format is not known
+	 * @throws IllegalStateException If metrics are not being collected
+	 */
+	public synchronized String dumpMetrics(String format) {
+		EngineMetrics m = metrics;
+		if (m == null) {
+			throw new IllegalStateException("Metrics are not enabled");
+		}
+		if (!format.equals("json") && !format.equals("prometheus")) {
+			throw new IllegalArgumentException("Unknown metrics format: " + format);
+		}
+		Histogram lengths = new Histogram();
+		for (String key : new HashSet<String>(keyWords())) {
+			lengths.record(postingsCount(key));
+		}
+		Histogram.Snapshot snapshot = lengths.snapshot();
+		return format.equals("json") 
+			? m.toJson(snapshot, getCacheHits(), getCacheMisses()) 
+			: m.toPrometheus(snapshot, getCacheHits(), getCacheMisses());
+	}
+	
+	/**
+	 * Starts logging every query answered to a file (see QueryLog), one line per query with
+	 * its kind, text, latency and results. Queries only hand their entries to a background
+	 * thread, which writes them in batches; if it falls behind, entries are dropped rather
+	 * than holding up queries. If queries were already being logged to another file, that
+	 * log is closed.
+	 * 
+	 * @param logFile Name of the log file, which is appended to if it exists
+	 * @throws IOException If the log file cannot be opened, or the previous log could not be written
+	 */
+	public synchronized void enableQueryLog(String logFile) 
+	throws IOException {
+		QueryLog old = queryLog;
+		queryLog = new QueryLog(logFile);
+		if (old != null) {
+			old.close();
+		}
+	}
+	
+	/**
+	 * Stops logging queries, writing out those logged so far and closing the log file. Queries
+	 * that are still running may not be logged.
+	 * 
+	 * @throws IOException If the log could not be written
+	 */
+	public synchronized void disableQueryLog() 
+	throws IOException {
+		QueryLog log = queryLog;
+		if (log != null) {
+			queryLog = null;
+			log.close();
+		}
+	}
+	
+	/**
+	 * Returns the number of queries left out of the query log since it was enabled, because
+	 * they came in faster than the log file could take them.
+	 * 
+	 * @return Number of queries dropped, 0 if queries are not logged
+	 */
+	public long getQueryLogDropped() {
+		QueryLog log = queryLog;
+		return log == null ? 0 : log.dropped();
+	}
+	
+	/**
+	 * Sets the codec that posting lists are compressed with in the files written from now on
+	 * by saveIndex, and in segment files (see PostingCodec): "varint" (the default) writes the
+	 * gaps between document ids as varints, "pfor" bit-packs them in blocks, and "roaring"
+	 * writes the ids as Roaring bitmaps. Files already written keep their codec, which
+	 * openIndex reads from the file.
+	 * 
+	 * @param name Name of the codec
+	 * @throws IllegalArgumentException If there is no codec with the name
+	 */
+	public void setPostingCodec(String name) {
+		postingCodec = PostingCodec.forName(name);
+	}
+	
+	/**
+	 * Splits the index into immutable segments from now on (see SegmentedIndex). Documents
+	 * are merged into keywordsIndex as before, and every flushDocs documents it is written
+	 * to a segment file in the given directory and emptied. Segments are merged in the
+	 * background. Segments are not reopened after a restart: the documents must be indexed
+	 * again. This must be called before any documents are indexed.
+	 * 
+	 * @param directory Directory for the segment files, which is created if need be
+	 * @param flushDocs Number of documents in each flushed segment
+	 * @param mergeFactor Number of segments of about the same size that are merged together
+	 * @throws IOException If the directory cannot be created
+	 * @throws IllegalStateException If documents have already been indexed
+	 */
+	public synchronized void enableSegments(String directory, int flushDocs, int mergeFactor) 
+	throws IOException {
+		if (flushDocs < 1) {
+			throw new IllegalArgumentException("flushDocs must be at least 1: " + flushDocs);
+		}
+		if (mergeFactor < 2) {
+			throw new IllegalArgumentException("mergeFactor must be at least 2: " + mergeFactor);
+		}
+		if (documents.size() > 0 || mappedIndex != null) {
+			throw new IllegalStateException("Segments must be enabled before any documents are indexed");
+		}
+		if (positionsIndex != null) {
+			throw new IllegalStateException("Segments do not store positions");
+		}
+		File dir = new File(directory);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create directory: " + directory);
+		}
+		segmented = new SegmentedIndex(this, dir, flushDocs, mergeFactor);
+	}
+	
+	/**
+	 * Records the position of every keyword occurrence from now on, so that phraseSearch can
+	 * be used. Positions are kept in memory, apart from the posting lists, so an index without
+	 * them takes no more memory than before; they are not written by saveIndex, and cannot be
+	 * combined with segments. This must be called before any documents are indexed.
+	 * 
+	 * @throws IllegalStateException If documents have already been indexed, or the index is segmented
+	 */
+	public synchronized void enablePositions() {
+		if (documents.size() > 0 || mappedIndex != null) {
+			throw new IllegalStateException("Positions must be enabled before any documents are indexed");
+		}
+		if (segmented != null) {
+			throw new IllegalStateException("Segments do not store positions");
+		}
+		if (scanSnapshot != null) {
+			throw new IllegalStateException("Scan snapshots do not store positions");
+		}
+		if (positionsIndex == null) {
+			positionsIndex = new ConcurrentHashMap<String,PositionList>(1000,2.0f);
+		}
+	}
+	
+	/**
+	 * Keeps the keywords of every document that loadKeyWords scans in a snapshot, with the
+	 * document's size, modification time and checksum, and takes the keywords of documents
+	 * that have not changed since they were scanned from it instead of scanning them again
+	 * (see ScanSnapshot). If the snapshot file exists, as when the same documents were indexed
+	 * before a restart, the documents recorded in it are used; an engine that indexes them
+	 * again then only scans those that have changed. Nothing is written to the file until
+	 * saveScanSnapshot is called.
+	 * 
+	 * @param snapshotFile Name of the snapshot file, which need not exist
+	 * @throws IOException If the snapshot file cannot be read, or is not a snapshot file
+	 * @throws IllegalStateException If positions are enabled
+	 */
+	public synchronized void enableScanSnapshot(String snapshotFile) 
+	throws IOException {
+		if (positionsIndex != null) {
+			throw new IllegalStateException("Scan snapshots do not store positions");
+		}
+		ScanSnapshot snapshot = new ScanSnapshot(new File(snapshotFile));
+		if (!noiseWords.isEmpty()) {
+			snapshot.noiseWords(noiseWords.keySet());
+		}
+		scanSnapshot = snapshot;
+	}
+	
+	/**
+	 * Writes the keywords of the documents scanned, or taken from the snapshot, since
+	 * enableScanSnapshot was called to the snapshot file, replacing it.
+	 * 
+	 * @throws IOException If the snapshot file cannot be written
+	 * @throws IllegalStateException If enableScanSnapshot has not been called
+	 */
+	public synchronized void saveScanSnapshot() 
+	throws IOException {
+		if (scanSnapshot == null) {
+			throw new IllegalStateException("Scan snapshot is not enabled");
+		}
+		scanSnapshot.save();
+	}
+	
+	/**
+	 * Waits until the background merges of segments that have been scheduled are done.
+	 * 
+	 * @throws IOException If a merge failed to write its segment
+	 */
+	public void waitForMerges() 
+	throws IOException {
+		if (segmented != null) {
+			segmented.waitForMerges();
+		}
+	}
+	
+	/**
+	 * This method indexes all keywords found in all the input documents. When this
+	 * method is done, the keywordsIndex hash table will be filled with all keywords,
+	 * each of which is associated with a posting list of (document id, frequency) pairs,
+	 * arranged in decreasing frequencies of occurrence. Documents with the same frequency
+	 * are listed in the order of docsFile, after those that were already indexed.
+	 * 
+	 * @param docsFile Name of file that has a list of all the document file names, one name per line
+	 * @param noiseWordsFile Name of file that has a list of noise words, one noise word per line
+	 * @throws FileNotFoundException If there is a problem locating any of the input files on disk
+	 */
+	public synchronized void makeIndex(String docsFile, String noiseWordsFile) 
+	throws FileNotFoundException {
+		makeIndex(loadDocList(docsFile), noiseWordsFile);
+	}
+	
+	/**
+	 * Indexes the given documents as makeIndex does, as when ShardedSearchEngine gives
+	 * each of its shards part of a docs file.
+	 * 
+	 * @param docs Names of the document files, in the order in which they are to be indexed
+	 * @param noiseWordsFile Name of file that has a list of noise words, one noise word per line
+	 * @throws FileNotFoundException If there is a problem locating any of the input files on disk
+	 */
+	synchronized void makeIndex(List<String> docs, String noiseWordsFile) 
+	throws FileNotFoundException {
+		long start = System.nanoTime();
+		
+		// load noise words to hash table
+		loadNoiseWords(noiseWordsFile);
+		
+		// index all keywords in batches (one batch, unless the index is segmented), each into
+		// a separate table so that the changed lists are put in keywordsIndex all at once;
+		// postings are appended as documents are scanned, and each list is sorted once at the end
+		for (String docFile : docs) {
+			documents.add(docFile);
+		}
+		EngineMetrics m = metrics;
+		int from = 0;
+		while (from < docs.size()) {
+			int to = batchEnd(from, docs.size());
+			HashMap<String,PostingList> index = new HashMap<String,PostingList>(1000,2.0f);
+			for (int d = from; d < to; d++) {
+				HashMap<String,Occurrence> kws = loadKeyWords(docs.get(d));
+				long merge = m == null ? 0 : System.nanoTime();
+				mergeKeyWords(index, kws, false);
+				if (m != null) {
+					m.stage(EngineMetrics.MERGE, System.nanoTime() - merge);
+				}
+			}
+			long sort = m == null ? 0 : System.nanoTime();
+			sortAll(index);
+			if (m != null) {
+				m.stage(EngineMetrics.SORT, System.nanoTime() - sort);
+			}
+			keywordsIndex.putAll(index);
+			terms = terms.with(index.keySet());
+			buffered(to - from);
+			from = to;
+		}
+		documents.publish();
+		if (m != null) {
+			m.documentsIndexed.add(docs.size());
+		}
+		queryCache.clear();
+		
+		recordIndexRate(docs.size(), start);
+	}
+	
+	/**
+	 * Parallel version of makeIndex. Documents are scanned concurrently by a pool of
+	 * worker threads, after which the keywords are split into disjoint partitions (by hash
+	 * code) and each partition is merged by its own worker, so no lock is needed on the
+	 * master index. Every partition merges the documents in the same order as docsFile
+	 * lists them, so the resulting index is identical to the one built by makeIndex.
+	 * 
+	 * @param docsFile Name of file that has a list of all the document file names, one name per line
+	 * @param noiseWordsFile Name of file that has a list of noise words, one noise word per line
+	 * @param threads Number of worker threads to use
+	 * @throws FileNotFoundException If there is a problem locating any of the input files on disk
+	 */
+	public synchronized void makeIndex(String docsFile, String noiseWordsFile, int threads) 
+	throws FileNotFoundException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1: " + threads);
+		}
+		long start = System.nanoTime();
+		
+		loadNoiseWords(noiseWordsFile);
+		final ArrayList<String> docs = loadDocList(docsFile);
+		for (String docFile : docs) {
+			documents.add(docFile);
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			// scan all documents concurrently, splitting each document's keywords
+			// into the partitions that will be merged independently
+			final int parts = threads;
+			ArrayList<Future<ArrayList<HashMap<String,Occurrence>>>> scans = 
+				new ArrayList<Future<ArrayList<HashMap<String,Occurrence>>>>(docs.size());
+			for (final String docFile : docs) {
+				scans.add(pool.submit(new Callable<ArrayList<HashMap<String,Occurrence>>>() {
+					public ArrayList<HashMap<String,Occurrence>> call() throws FileNotFoundException {
+						HashMap<String,Occurrence> kws = loadKeyWords(docFile);
+						ArrayList<HashMap<String,Occurrence>> split = 
+							new ArrayList<HashMap<String,Occurrence>>(parts);
+						for (int p = 0; p < parts; p++) {
+							split.add(new HashMap<String,Occurrence>());
+						}
+						for (Map.Entry<String,Occurrence> e : kws.entrySet()) {
+							split.get(partition(e.getKey(), parts)).put(e.getKey(), e.getValue());
+						}
+						return split;
+					}
+				}));
+			}
+			final ArrayList<ArrayList<HashMap<String,Occurrence>>> docKws = 
+				new ArrayList<ArrayList<HashMap<String,Occurrence>>>(docs.size());
+			for (int d = 0; d < docs.size(); d++) {
+				ArrayList<HashMap<String,Occurrence>> split = await(scans.get(d));
+				int length = 0;
+				int words = 0;
+				for (HashMap<String,Occurrence> kws : split) {
+					for (Occurrence occ : kws.values()) {
+						length += occ.frequency;
+						words = PositionalOccurrence.words(occ);
+					}
+				}
+				int doc = documents.id(docs.get(d));
+				documents.setLength(doc, length);
+				documents.setWords(doc, words);
+				docKws.add(split);
+			}
+			
+			// merge each partition of the keyword space on its own worker, one batch of
+			// documents at a time (document ids were all added above, so the workers only
+			// read the documents table)
+			int from = 0;
+			while (from < docs.size()) {
+				final int first = from;
+				final int last = batchEnd(from, docs.size());
+				ArrayList<Future<HashMap<String,PostingList>>> merges = 
+					new ArrayList<Future<HashMap<String,PostingList>>>(parts);
+				for (int p = 0; p < parts; p++) {
+					final int part = p;
+					merges.add(pool.submit(new Callable<HashMap<String,PostingList>>() {
+						public HashMap<String,PostingList> call() {
+							EngineMetrics m = metrics;
+							long merge = m == null ? 0 : System.nanoTime();
+							HashMap<String,PostingList> index = 
+								new HashMap<String,PostingList>(1000,2.0f);
+							for (int d = first; d < last; d++) {
+								int doc = documents.id(docs.get(d));
+								for (Map.Entry<String,Occurrence> e : docKws.get(d).get(part).entrySet()) {
+									mergeKeyWord(index, e.getKey(), doc, e.getValue(), false);
+								}
+							}
+							long sort = m == null ? 0 : System.nanoTime();
+							sortAll(index);
+							if (m != null) {
+								m.stage(EngineMetrics.MERGE, sort - merge);
+								m.stage(EngineMetrics.SORT, System.nanoTime() - sort);
+							}
+							return index;
+						}
+					}));
+				}
+				
+				for (Future<HashMap<String,PostingList>> merge : merges) {
+					// partitions started from the keywords' existing occurrences,
+					// so their lists replace the ones in the index
+					HashMap<String,PostingList> index = await(merge);
+					keywordsIndex.putAll(index);
+					terms = terms.with(index.keySet());
+				}
+				buffered(last - first);
+				from = last;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		documents.publish();
+		queryCache.clear();
+		EngineMetrics m = metrics;
+		if (m != null) {
+			m.documentsIndexed.add(docs.size());
+		}
+		
+		recordIndexRate(docs.size(), start);
+	}
+	
+	/**
+	 * Version of makeIndex for corpora whose index does not fit in memory. The documents are
+	 * indexed into an index file, which is then opened as by openIndex. Postings are held in
+	 * memory only until they take about memoryBudget bytes, and are then written to a sorted
+	 * run file in tempDirectory; at the end, the runs are merged into the index file (see
+	 * ExternalIndexBuilder). The index file is the same as saveIndex would write after
+	 * makeIndex. This must be called before any documents are indexed.
+	 *
+	 * @param docsFile Name of file that has a list of all the document file names, one name per line
+	 * @param noiseWordsFile Name of file that has a list of noise words, one noise word per line
+	 * @param indexFile Name of the index file to be written
+	 * @param tempDirectory Directory for the run files, which is created if need be; they are deleted at the end
+	 * @param memoryBudget Approximate number of bytes of postings held in memory at a time
+	 * @throws FileNotFoundException If there is a problem locating any of the input files on disk
+	 * @throws IOException If the run files or the index file cannot be written
+	 * @throws IllegalStateException If documents have already been indexed, or the index is segmented or has positions
+	 */
+	public synchronized void makeIndexExternal(String docsFile, String noiseWordsFile, String indexFile,
+			String tempDirectory, long memoryBudget)
+	throws IOException {
+		if (memoryBudget < 1) {
+			throw new IllegalArgumentException("memoryBudget must be at least 1: " + memoryBudget);
+		}
+		if (documents.size() > 0 || mappedIndex != null) {
+			throw new IllegalStateException("An external index must be made before any documents are indexed");
+		}
+		if (segmented != null) {
+			throw new IllegalStateException("Cannot make an external index into a segmented index");
+		}
+		if (positionsIndex != null) {
+			throw new IllegalStateException("Index files do not store positions");
+		}
+		long start = System.nanoTime();
+
+		loadNoiseWords(noiseWordsFile);
+		ArrayList<String> docs = loadDocList(docsFile);
+		File dir = new File(tempDirectory);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create directory: " + tempDirectory);
+		}
+
+		// a table of its own, since the engine's stays empty until the index file is opened
+		DocumentTable table = new DocumentTable();
+		EngineMetrics m = metrics;
+		ExternalIndexBuilder builder = new ExternalIndexBuilder(dir, memoryBudget, m);
+		try {
+			for (String docFile : docs) {
+				if (table.id(docFile) >= 0) {
+					continue;
+				}
+				HashMap<String,Occurrence> kws = loadKeyWords(docFile);
+				int doc = table.add(docFile);
+				int length = 0;
+				for (Occurrence occ : kws.values()) {
+					length += occ.frequency;
+				}
+				table.setLength(doc, length);
+				builder.add(doc, kws);
+			}
+			table.publish();
+			builder.finish(table, noiseWords, postingCodec, indexFile);
+		} finally {
+			builder.delete();
+		}
+		openIndex(indexFile);
+		if (m != null) {
+			m.documentsIndexed.add(table.size());
+		}
+
+		recordIndexRate(table.size(), start);
+	}
+
+	/**
+	 * Adds a single document to the index. Its keywords are merged into the existing
+	 * posting lists, the same way makeIndex merges each document.
+	 * 
+	 * @param docFile Name of the document file
+	 * @throws FileNotFoundException If the document file is not found on disk
+	 * @throws IllegalArgumentException If the document is already in the index
+	 */
+	public synchronized void addDocument(String docFile) 
+	throws FileNotFoundException {
+		if (documents.id(docFile) >= 0) {
+			throw new IllegalArgumentException("Document is already indexed: " + docFile);
+		}
+		HashMap<String,Occurrence> kws = loadKeyWords(docFile);
+		documents.add(docFile);
+		mergeKeyWords(keywordsIndex, kws);
+		terms = terms.with(kws.keySet());
+		documents.publish();
+		queryCache.invalidate(kws.keySet());
+		indexed(1, 0);
+		buffered(1);
+	}
+	
+	/**
+	 * Removes a document from the index. The document is marked deleted, and searches
+	 * skip its postings until the index is compacted, which is done automatically once
+	 * the removed documents amount to a quarter of the index.
+	 * 
+	 * @param docFile Name of the document file
+	 * @return True if the document was removed, false if it was not in the index
+	 */
+	public synchronized boolean removeDocument(String docFile) {
+		if (documents.remove(docFile) < 0) {
+			return false;
+		}
+		documents.publish();
+		queryCache.clear();
+		indexed(0, 1);
+		removed();
+		return true;
+	}
+	
+	/**
+	 * Counts documents added and removed one at a time, if metrics are collected.
+	 */
+	private void indexed(int added, int removed) {
+		EngineMetrics m = metrics;
+		if (m != null) {
+			m.documentsIndexed.add(added);
+			m.documentsRemoved.add(removed);
+		}
+	}
+	
+	/**
+	 * Counts a removed document, compacting the index if there are enough of them.
+	 */
+	private void removed() {
+		tombstones++;
+		if (tombstones * 4 > documents.liveCount() + tombstones) {
+			compact();
+		}
+	}
+	
+	/**
+	 * Re-indexes a document whose contents have changed. The old version is removed, and
+	 * the new one is added as in addDocument. Searches see either the old version or the
+	 * new one, never both or neither.
+	 * 
+	 * @param docFile Name of the document file
+	 * @throws FileNotFoundException If the document file is not found on disk
+	 */
+	public synchronized void updateDocument(String docFile) 
+	throws FileNotFoundException {
+		// scan first, so a missing file leaves the old version in the index
+		HashMap<String,Occurrence> kws = loadKeyWords(docFile);
+		boolean replaced = documents.remove(docFile) >= 0;
+		documents.add(docFile);
+		mergeKeyWords(keywordsIndex, kws);
+		terms = terms.with(kws.keySet());
+		documents.publish();
+		if (replaced) {
+			queryCache.clear();
+		} else {
+			queryCache.invalidate(kws.keySet());
+		}
+		indexed(1, replaced ? 1 : 0);
+		buffered(1);
+		if (replaced) {
+			removed();
+		}
+	}
+	
+	/**
+	 * Removes the postings of all removed documents from the posting lists. Keywords
+	 * that no longer occur in any document are dropped from the index. The compacted lists
+	 * are built first, and then replace the old ones in one burst. When the index is segmented,
+	 * only keywordsIndex is compacted here; segments drop removed documents when they are merged.
+	 */
+	public synchronized void compact() {
+		if (tombstones == 0) {
+			return;
+		}
+		HashMap<String,PostingList> compacted = new HashMap<String,PostingList>();
+		ArrayList<String> dropped = new ArrayList<String>();
+		if (mappedIndex != null) {
+			// lists in the index file cannot be changed, so the ones that
+			// have removed documents are compacted into keywordsIndex
+			for (String key : mappedIndex.keywords()) {
+				if (!keywordsIndex.containsKey(key)) {
+					PostingList postings = mappedIndex.get(key);
+					PostingList live = postings.withoutRemoved(documents, documents.version());
+					if (live != postings) {
+						compacted.put(key, live);
+					}
+				}
+			}
+		}
+		for (Map.Entry<String,PostingList> e : keywordsIndex.entrySet()) {
+			PostingList live = e.getValue().withoutRemoved(documents, documents.version());
+			// an empty list has to stay if it hides the keyword's list in the index file
+			if (live.size() == 0 && (mappedIndex == null || mappedIndex.get(e.getKey()) == null)) {
+				dropped.add(e.getKey());
+			} else if (live != e.getValue()) {
+				compacted.put(e.getKey(), live);
+			}
+		}
+		
+		HashMap<String,PositionList> compactedPositions = new HashMap<String,PositionList>();
+		ArrayList<String> droppedPositions = new ArrayList<String>();
+		if (positionsIndex != null) {
+			for (Map.Entry<String,PositionList> e : positionsIndex.entrySet()) {
+				PositionList live = e.getValue().withoutRemoved(documents, documents.version());
+				if (live.size() == 0) {
+					droppedPositions.add(e.getKey());
+				} else if (live != e.getValue()) {
+					compactedPositions.put(e.getKey(), live);
+				}
+			}
+		}
+		
+		layoutChanges++;
+		keywordsIndex.putAll(compacted);
+		for (String key : dropped) {
+			keywordsIndex.remove(key);
+		}
+		if (positionsIndex != null) {
+			positionsIndex.putAll(compactedPositions);
+			for (String key : droppedPositions) {
+				positionsIndex.remove(key);
+			}
+		}
+		layoutChanges++;
+		if (!dropped.isEmpty()) {
+			terms = TermDictionary.build(keyWords());
+		}
+		tombstones = 0;
+	}
+	
 	/**
-	 * Document in which a keyword occurs.
+	 * Saves the index to a binary file, which can later be reopened with openIndex
+	 * instead of rebuilding the index from the documents. The index is compacted first.
+	 * Positions are not saved. The file is replaced only once it is completely written, so
+	 * it may be the index file that is open; that file is then opened again.
+	 * 
+	 * @param indexFile Name of the index file to be written
+	 * @throws IOException If the index file cannot be written
 	 */
-	String document;
+	public synchronized void saveIndex(String indexFile) 
+	throws IOException {
+		compact();
+		if (mappedIndex == null && segmented == null) {
+			MappedIndex.write(keywordsIndex, documents, noiseWords, postingCodec, indexFile);
+			return;
+		}
+		boolean reopen = mappedIndex != null
+			&& mappedIndex.file.getCanonicalFile().equals(new File(indexFile).getCanonicalFile());
+		HashSet<String> keys = new HashSet<String>(keywordsIndex.keySet());
+		if (mappedIndex != null) {
+			keys.addAll(mappedIndex.keywords());
+		}
+		if (segmented != null) {
+			for (SegmentedIndex.Segment segment : segmented.segments()) {
+				keys.addAll(segment.index.keywords());
+			}
+		}
+		HashMap<String,PostingList> all = new HashMap<String,PostingList>(1000,2.0f);
+		for (String key : keys) {
+			// segments may still have postings of removed documents
+			all.put(key, getPostings(key).withoutRemoved(documents, documents.version()));
+		}
+		MappedIndex.write(all, documents, noiseWords, postingCodec, indexFile);
+		if (reopen) {
+			// the old mapping is of the replaced file, which is gone once it is dropped
+			openIndex(indexFile);
+		}
+	}
+	
+	/**
+	 * Opens an index file written by saveIndex, by mapping it into memory. The index in the
+	 * file replaces the current index, and its documents table and noise words are loaded.
+	 * When a document merged after this has a keyword that is in the file, the keyword's
+	 * postings are copied into keywordsIndex, which is searched ahead of the file.
+	 * 
+	 * @param indexFile Name of the index file
+	 * @throws IOException If the index file cannot be read
+	 */
+	public synchronized void openIndex(String indexFile) 
+	throws IOException {
+		if (segmented != null) {
+			throw new IllegalStateException("Cannot open an index file into a segmented index");
+		}
+		if (positionsIndex != null) {
+			throw new IllegalStateException("Index files do not store positions");
+		}
+		mappedIndex = MappedIndex.open(indexFile);
+		keywordsIndex.clear();
+		documents = mappedIndex.documents;
+		noiseWords.clear();
+		noiseWords.putAll(mappedIndex.noiseWords);
+		noiseWordsChanged();
+		terms = TermDictionary.build(mappedIndex.keywords());
+		queryCache.clear();
+	}
+	
+	/**
+	 * Returns the posting list of a keyword over all indexed documents, in descending
+	 * order of frequency.
+	 * 
+	 * @param kw Keyword (lower case)
+	 * @return Postings of the keyword, or null if it does not occur in any document
+	 */
+	PostingList getPostings(String kw) {
+		if (segmented != null) {
+			PostingList[] lists = layers(kw);
+			if (lists == null) {
+				return null;
+			}
+			return lists.length == 1 ? lists[0] : PostingList.merge(lists);
+		}
+		PostingList postings = keywordsIndex.get(kw);
+		if (postings == null && mappedIndex != null) {
+			postings = mappedIndex.get(kw);
+		}
+		return postings;
+	}
+	
+	/**
+	 * Returns all keywords in the index: those in keywordsIndex, the index file and the segments.
+	 * 
+	 * @return Keywords, possibly with repeats
+	 */
+	private ArrayList<String> keyWords() {
+		ArrayList<String> keys = new ArrayList<String>(keywordsIndex.keySet());
+		if (mappedIndex != null) {
+			keys.addAll(mappedIndex.keywords());
+		}
+		if (segmented != null) {
+			for (SegmentedIndex.Segment segment : segmented.segments()) {
+				keys.addAll(segment.index.keywords());
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * Returns the occurrences of a keyword in all indexed documents, in descending
+	 * order of frequency.
+	 * 
+	 * @param kw Keyword (lower case)
+	 * @return Occurrences of the keyword, or null if it does not occur in any document
+	 */
+	public ArrayList<Occurrence> getOccurrences(String kw) {
+		IndexSnapshot snapshot = snapshot(Collections.singletonList(kw));
+		PostingList postings = snapshot.get(kw);
+		if (postings == null) {
+			return null;
+		}
+		ArrayList<Occurrence> occs = postings.toOccurrences(snapshot.documents, snapshot.version);
+		return occs.isEmpty() ? null : occs;
+	}
+	
+	/**
+	 * Takes a snapshot of the posting lists of some keywords, as of the latest published version
+	 * of the documents table. Writers that merge documents meanwhile only add postings that
+	 * the snapshot's version does not see. If compact replaces lists while the snapshot is
+	 * being taken, it is taken again.
+	 * 
+	 * @param keywords Keywords (lower case)
+	 * @return Snapshot of the keywords' posting lists
+	 */
+	IndexSnapshot snapshot(Collection<String> keywords) {
+		while (true) {
+			int c = layoutChanges;
+			if ((c & 1) == 0) {
+				DocumentTable docs = documents;
+				int version = docs.version();
+				HashMap<String,PostingList[]> lists = new HashMap<String,PostingList[]>();
+				HashMap<String,PositionList> positions = null;
+				for (String kw : keywords) {
+					PostingList[] postings = layers(kw);
+					if (postings != null) {
+						lists.put(kw, postings);
+					}
+				}
+				if (positionsIndex != null) {
+					positions = new HashMap<String,PositionList>();
+					for (String kw : keywords) {
+						PositionList kwPositions = positionsIndex.get(kw);
+						if (kwPositions != null) {
+							positions.put(kw, kwPositions);
+						}
+					}
+				}
+				if (layoutChanges == c) {
+					return new IndexSnapshot(docs, version, lists, positions);
+				}
+			}
+			Thread.yield();
+		}
+	}
+	
+	/**
+	 * Returns the posting lists of a keyword in each layer of the index: each segment, oldest
+	 * first, and then keywordsIndex. An index that is not segmented has one layer.
+	 * 
+	 * @param kw Keyword (lower case)
+	 * @return Postings of the keyword per layer, or null if it does not occur in any layer
+	 */
+	private PostingList[] layers(String kw) {
+		if (segmented == null) {
+			PostingList postings = getPostings(kw);
+			return postings == null ? null : new PostingList[] {postings};
+		}
+		ArrayList<PostingList> lists = new ArrayList<PostingList>();
+		for (SegmentedIndex.Segment segment : segmented.segments()) {
+			PostingList postings = segment.index.get(kw);
+			if (postings != null) {
+				lists.add(postings);
+			}
+		}
+		PostingList postings = keywordsIndex.get(kw);
+		if (postings != null) {
+			lists.add(postings);
+		}
+		return lists.isEmpty() ? null : lists.toArray(new PostingList[lists.size()]);
+	}
+	
+	/**
+	 * Returns the number of postings that a keyword has over all layers of the index, without
+	 * reading the lists in index or segment files.
+	 * 
+	 * @param kw Keyword (lower case)
+	 * @return Number of postings, including those of removed documents not yet compacted
+	 */
+	private int postingsCount(String kw) {
+		PostingList postings = keywordsIndex.get(kw);
+		int count = postings == null ? 0 : postings.size();
+		if (segmented != null) {
+			for (SegmentedIndex.Segment segment : segmented.segments()) {
+				count += segment.index.count(kw);
+			}
+		} else if (postings == null && mappedIndex != null) {
+			count = mappedIndex.count(kw);
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the number of documents indexed per second by the most recent call to makeIndex.
+	 * 
+	 * @return Documents per second, or 0 if no index has been made yet
+	 */
+	public double getIndexRate() {
+		return indexRate;
+	}
+	
+	/**
+	 * Loads the noise words file into the noiseWords hash table.
+	 * 
+	 * @param noiseWordsFile Name of file that has a list of noise words, one noise word per line
+	 * @throws FileNotFoundException If the noise words file is not found on disk
+	 */
+	private void loadNoiseWords(String noiseWordsFile) 
+	throws FileNotFoundException {
+		Scanner sc = new Scanner(new File(noiseWordsFile));
+		while (sc.hasNext()) {
+			String word = sc.next();
+			noiseWords.put(word,word);
+		}
+		sc.close();
+		noiseWordsChanged();
+	}
 	
 	/**
-	 * The frequency (number of times) the keyword occurs in the above document.
+	 * Rebuilds noiseWordSet after noiseWords has changed, and tells the scan snapshot, whose
+	 * documents were scanned with the noise words it had.
 	 */
-	int frequency;
+	private void noiseWordsChanged() {
+		noiseWordSet = new NoiseWordSet(noiseWords.keySet());
+		ScanSnapshot snapshot = scanSnapshot;
+		if (snapshot != null) {
+			snapshot.noiseWords(noiseWords.keySet());
+		}
+	}
 	
 	/**
-	 * Initializes this occurrence with the given document,frequency pair.
+	 * Reads the names of all documents to be indexed.
 	 * 
-	 * @param doc Document name
-	 * @param freq Frequency
+	 * @param docsFile Name of file that has a list of all the document file names, one name per line
+	 * @return Document file names, in the order in which they appear in docsFile
+	 * @throws FileNotFoundException If the docs file is not found on disk
 	 */
-	public Occurrence(String doc, int freq) {
-		document = doc;
-		frequency = freq;
+	private ArrayList<String> loadDocList(String docsFile) 
+	throws FileNotFoundException {
+		ArrayList<String> docs = new ArrayList<String>();
+		Scanner sc = new Scanner(new File(docsFile));
+		while (sc.hasNext()) {
+			docs.add(sc.next());
+		}
+		sc.close();
+		return docs;
 	}
 	
-	/* (non-Javadoc)
-	 * @see java.lang.Object#toString()
+	/**
+	 * Returns the end of the batch of documents, starting at from, that makeIndex merges
+	 * before counting them as buffered: all the rest, unless the index is segmented, in which
+	 * case the batch ends where the next segment is to be flushed.
 	 */
-	public String toString() {
-		return "(" + document + "," + frequency + ")";
+	private int batchEnd(int from, int size) {
+		if (segmented == null) {
+			return size;
+		}
+		return Math.min(size, from + Math.max(1, segmented.flushDocs - bufferedDocs));
 	}
-}
-
-/**
- * This class builds an index of keywords. Each keyword maps to a set of documents in
- * which it occurs, with frequency of occurrence in each document. Once the index is built,
- * the documents can searched on for keywords.
- *
- */
-public class LittleSearchEngine {
 	
 	/**
-	 * This is a hash table of all keywords. The key is the actual keyword, and the associated value is
-	 * an array list of all occurrences of the keyword in documents. The array list is maintained in descending
-	 * order of occurrence frequencies.
+	 * Counts documents merged into keywordsIndex, flushing it to a new segment once it
+	 * holds enough of them.
 	 */
-	HashMap<String,ArrayList<Occurrence>> keywordsIndex;
+	private void buffered(int docs) {
+		if (segmented == null) {
+			return;
+		}
+		bufferedDocs += docs;
+		if (bufferedDocs >= segmented.flushDocs) {
+			long start = System.nanoTime();
+			SegmentedIndex.Segment segment;
+			try {
+				segment = segmented.write(keywordsIndex, bufferedDocs);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot write segment", e);
+			}
+			layoutChanges++;
+			segmented.append(segment);
+			keywordsIndex = concurrent 
+				? new ConcurrentHashMap<String,PostingList>(1000,2.0f) 
+				: new HashMap<String,PostingList>(1000,2.0f);
+			layoutChanges++;
+			bufferedDocs = 0;
+			EngineMetrics m = metrics;
+			if (m != null) {
+				m.stage(EngineMetrics.FLUSH, System.nanoTime() - start);
+			}
+		}
+	}
 	
 	/**
-	 * The hash table of all noise words - mapping is from word to itself.
+	 * Replaces segments by the segment they were merged into (called by the merge thread).
+	 * 
+	 * @param group Segments that were merged, oldest first
+	 * @param merged Merged segment
 	 */
-	HashMap<String,String> noiseWords;
+	synchronized void replaceSegments(SegmentedIndex.Segment[] group, SegmentedIndex.Segment merged) {
+		layoutChanges++;
+		segmented.replace(group, merged);
+		layoutChanges++;
+	}
+	
+	private void recordIndexRate(int docs, long start) {
+		long elapsed = System.nanoTime() - start;
+		indexRate = elapsed > 0 ? docs * 1e9 / elapsed : 0;
+	}
 	
 	/**
-	 * Creates the keyWordsIndex and noiseWords hash tables.
+	 * Returns the partition (0..parts-1) that a keyword belongs to in a parallel merge.
 	 */
-	public LittleSearchEngine() {
-		keywordsIndex = new HashMap<String,ArrayList<Occurrence>>(1000,2.0f);
-		noiseWords = new HashMap<String,String>(100,2.0f);
+	private static int partition(String key, int parts) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % parts;
 	}
 	
 	/**
-	 * This method indexes all keywords found in all the input documents. When this
-	 * method is done, the keywordsIndex hash table will be filled with all keywords,
-	 * each of which is associated with an array list of Occurrence objects, arranged
-	 * in decreasing frequencies of occurrence.
-	 * 
-	 * @param docsFile Name of file that has a list of all the document file names, one name per line
-	 * @param noiseWordsFile Name of file that has a list of noise words, one noise word per line
-	 * @throws FileNotFoundException If there is a problem locating any of the input files on disk
+	 * Waits for a worker task, rethrowing any FileNotFoundException it failed with.
 	 */
-	public void makeIndex(String docsFile, String noiseWordsFile) 
+	private static <T> T await(Future<T> task) 
 	throws FileNotFoundException {
-		// load noise words to hash table
-		Scanner sc = new Scanner(new File(noiseWordsFile));
-		while (sc.hasNext()) {
-			String word = sc.next();
-			noiseWords.put(word,word);
-		}
-		
-		// index all keywords
-		sc = new Scanner(new File(docsFile));
-		while (sc.hasNext()) {
-			String docFile = sc.next();
-			HashMap<String,Occurrence> kws = loadKeyWords(docFile);
-			mergeKeyWords(kws);
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while indexing", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof FileNotFoundException) {
+				throw (FileNotFoundException)cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new IllegalStateException(cause);
 		}
-		
 	}
 
 	/**
 	 * Scans a document, and loads all keywords found into a hash table of keyword occurrences
-	 * in the document. Uses the getKeyWord method to separate keywords from other words.
+	 * in the document. Keywords are separated from other words by the same rules as the
+	 * getKeyWord method, applied by this thread's KeyWordTokenizer.
 	 * 
 	 * @param docFile Name of the document file to be scanned and loaded
 	 * @return Hash table of keywords in the given document, each associated with an Occurrence object
@@ -113,52 +1202,156 @@ public class LittleSearchEngine {
 			throw new FileNotFoundException();
 		}
 		
-		HashMap<String,Occurrence> keywords = new HashMap<String,Occurrence>();
-
-		Scanner file = new Scanner(new File(docFile));
-		
-		while(file.hasNext()){
-			String word = getKeyWord(file.next());
-			
-			if(word != null){ 
-				
-				if(keywords.get(word) == null){ 
-					keywords.put(word, new Occurrence(docFile, 1));
-				} else {
-					keywords.get(word).frequency++;
-				}
+		KeyWordTokenizer tokenizer = tokenizers.get();
+		EngineMetrics m = metrics;
+		ScanSnapshot snapshot = scanSnapshot;
+		if (snapshot != null) {
+			return loadKeyWords(docFile, tokenizer, m, snapshot);
+		}
+		if (m == null) {
+			return tokenizer.scan(docFile);
+		}
+		long start = System.nanoTime();
+		HashMap<String,Occurrence> kws = tokenizer.scan(docFile);
+		m.scanned(System.nanoTime() - start, tokenizer.tokens(), tokenizer.keywords(), tokenizer.noiseWords());
+		return kws;
+	}
+	
+	/**
+	 * Loads the keywords of a document from the scan snapshot if it has not changed since it
+	 * was scanned, and otherwise scans it and records its keywords in the snapshot.
+	 */
+	private HashMap<String,Occurrence> loadKeyWords(String docFile, KeyWordTokenizer tokenizer, 
+			EngineMetrics m, ScanSnapshot snapshot) 
+	throws FileNotFoundException {
+		long start = System.nanoTime();
+		// the file is looked at before it is read, so a change made while it is scanned is seen next time
+		ScanSnapshot.FileState state = new ScanSnapshot.FileState(docFile);
+		HashMap<String,Occurrence> kws = snapshot.reuse(docFile, state);
+		if (kws != null) {
+			if (m != null) {
+				m.reused(System.nanoTime() - start);
 			}
+			return kws;
 		}
-		
-		return keywords;
+		long scanned = System.currentTimeMillis();
+		kws = tokenizer.scan(docFile);
+		snapshot.record(docFile, state, kws, scanned);
+		if (m != null) {
+			m.scanned(System.nanoTime() - start, tokenizer.tokens(), tokenizer.keywords(), tokenizer.noiseWords());
+		}
+		return kws;
 	}
 	
 	/**
 	 * Merges the keywords for a single document into the master keywordsIndex
 	 * hash table. For each keyword, its Occurrence in the current document
 	 * must be inserted in the correct place (according to descending order of
-	 * frequency) in the same keyword's Occurrence list in the master hash table. 
-	 * This is done by calling the insertLastOccurrence method.
+	 * frequency) in the same keyword's posting list in the master hash table. 
+	 * This is done by calling the PostingList.insertLast method, which puts it after the
+	 * postings with the same frequency, so ties are in the order documents were indexed,
+	 * as they are when makeIndex sorts each list once.
 	 * 
 	 * @param kws Keywords hash table for a document
 	 */
-	public void mergeKeyWords(HashMap<String,Occurrence> kws) {
-		
+	public synchronized void mergeKeyWords(HashMap<String,Occurrence> kws) {
+		mergeKeyWords(keywordsIndex, kws);
+		terms = terms.with(kws.keySet());
+		documents.publish();
+		queryCache.invalidate(kws.keySet());
+		indexed(1, 0);
+		buffered(1);
+	}
+	
+	/**
+	 * Merges the keywords for a single document into the given index, without publishing
+	 * the document to readers.
+	 * 
+	 * @param index Index into which the keywords are merged (keywordsIndex, or a table of changes to it)
+	 * @param kws Keywords hash table for a document
+	 */
+	private void mergeKeyWords(Map<String,PostingList> index, HashMap<String,Occurrence> kws) {
+		mergeKeyWords(index, kws, true);
+	}
+
+	/**
+	 * Merges the keywords for a single document into the given index, without publishing
+	 * the document to readers.
+	 *
+	 * @param index Index into which the keywords are merged (keywordsIndex, or a table of changes to it)
+	 * @param kws Keywords hash table for a document
+	 * @param sort False to only append the postings, leaving the lists to be sorted by sortAll
+	 */
+	private void mergeKeyWords(Map<String,PostingList> index, HashMap<String,Occurrence> kws, boolean sort) {
+
+		int doc = -1;
+		int length = 0;
+		int words = 0;
 		for(String key : kws.keySet()){
-			
-			if(keywordsIndex.containsKey(key)){
-				
-				keywordsIndex.get(key).add(kws.get(key));
-				insertLastOccurrence(keywordsIndex.get(key));
-			} 
-			
-			else {
-				ArrayList<Occurrence> arr = new ArrayList<Occurrence>();
-				arr.add(kws.get(key));
-				
-				keywordsIndex.put(key, arr);
+			Occurrence occ = kws.get(key);
+			doc = documents.add(occ.document);
+			length += occ.frequency;
+			words = PositionalOccurrence.words(occ);
+			mergeKeyWord(index, key, doc, occ, sort);
+		}
+		if(doc >= 0){
+			documents.setLength(doc, length);
+			documents.setWords(doc, words);
+		}
+	}
 
-			}
+	/**
+	 * Merges a single keyword occurrence into the given index. With concurrent reads, a list
+	 * that readers may see is copied before it is changed, and the copy put in its place.
+	 * When positions are enabled, the occurrence's positions are added to the keyword's
+	 * position list (an occurrence that was not loaded with positions adds none).
+	 *
+	 * @param index Index into which the occurrence is merged (keywordsIndex, or a table of changes to it)
+	 * @param key Keyword
+	 * @param doc Id of the document in which the keyword occurs
+	 * @param occ Occurrence of the keyword in the document
+	 * @param sort True to insert the posting in order, false to only append it
+	 */
+	private void mergeKeyWord(Map<String,PostingList> index, String key, int doc, Occurrence occ, boolean sort) {
+		int freq = occ.frequency;
+		if (positionsIndex != null && occ instanceof PositionalOccurrence) {
+			PositionList positions = positionsIndex.get(key);
+			positionsIndex.put(key, (positions == null ? PositionList.EMPTY : positions)
+				.add(doc, ((PositionalOccurrence)occ).positions, freq));
+		}
+		
+		PostingList postings = index.get(key);
+		boolean shared = concurrent && index == keywordsIndex;
+		if(postings == null){
+			// start from the postings already indexed (in keywordsIndex or the index file;
+			// segments are not copied, since searches combine them with keywordsIndex)
+			postings = segmented == null ? getPostings(key) : keywordsIndex.get(key);
+			shared = concurrent;
+		}
+		if(postings == null){
+			postings = new PostingList();
+		} else if(shared){
+			postings = postings.copy();
+		}
+		
+		postings.add(doc, freq);
+		if(sort){
+			postings.insertLast();
+		}
+		index.put(key, postings);
+	}
+
+	/**
+	 * Sorts every list in a table of changes built by bulk merges (see mergeKeyWords), once
+	 * all its documents have been appended. Each insertLast shifts the postings after the
+	 * spot, so building a list of n postings one insert at a time takes O(n^2) time; a single
+	 * sort at the end takes O(n log n).
+	 *
+	 * @param index Table of changes whose lists are to be sorted
+	 */
+	private static void sortAll(Map<String,PostingList> index) {
+		for (PostingList postings : index.values()) {
+			postings.sort();
 		}
 	}
 	
@@ -181,7 +1374,7 @@ public class LittleSearchEngine {
 			return null;
 		}
 		
-		while(!Character.isLetter(word.charAt(word.length()-1))){
+		while(word.length() > 0 && !Character.isLetter(word.charAt(word.length()-1))){
 			char ch = word.charAt(word.length()-1);
 			
 			if(ch == '.' || ch == ',' || ch == '?' || ch == ':' || ch == ';' || ch == '!'){
@@ -192,13 +1385,17 @@ public class LittleSearchEngine {
 			}
 		}
 		
+		if(word.length() == 0){ //nothing but punctuation
+			return null;
+		}
+		
 		for (int i = 0; i < word.length(); i++){
 			if(Character.isLetter(word.charAt(i)) == false){ //punctuation in between
 				return null;
 			}
 		}
 		
-		if(noiseWords.containsKey(word)){ //noise word
+		if(noiseWordSet.contains(word)){ //noise word
 			return null;
 		}
 		
@@ -264,6 +1461,7 @@ public class LittleSearchEngine {
 	 * in favor of the first keyword. (That is, if kw1 is in doc1 with frequency f1, and kw2 is in doc2
 	 * also with the same frequency f1, then doc1 will appear before doc2 in the result. 
 	 * The result set is limited to 5 entries. If there are no matching documents, the result is null.
+	 * Nothing is printed; queries can be logged with enableQueryLog.
 	 * 
 	 * @param kw1 First keyword
 	 * @param kw1 Second keyword
@@ -272,160 +1470,483 @@ public class LittleSearchEngine {
 	 *         the result is null.
 	 */
 	public ArrayList<String> top5search(String kw1, String kw2) {
+		return topSearch(5, kw1, kw2);
+	}
+	
+	/**
+	 * Search result for "kw1 or kw2 or ...". A document is in the result set if any of the keywords
+	 * occurs in that document. The result set is arranged in descending order of occurrence frequencies,
+	 * with each matching document appearing once, at its highest frequency. Ties in frequency values are
+	 * broken in favor of the earlier keyword, as in top5search. Results are kept in the query cache.
+	 * 
+	 * @param k Maximum number of documents in the result
+	 * @param keywords Keywords to search for
+	 * @return List of NAMES of documents in which any of the keywords occurs, arranged in descending order
+	 *         of frequencies. The result size is limited to k documents. If there are no matching documents,
+	 *         the result is null.
+	 */
+	public ArrayList<String> topSearch(int k, String... keywords) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		EngineMetrics m = metrics;
+		QueryLog log = queryLog;
+		long start = queryStart(m, log);
+		try {
+			String[] kws = new String[keywords.length];
+			for (int i = 0; i < keywords.length; i++) {
+				kws[i] = keywords[i].toLowerCase();
+			}
+			QueryCache cache = queryCache;
+			String key = QueryCache.key(k, kws);
+			QueryCache.Entry cached = cache.get(key);
+			if (cached != null) {
+				// callers may change the list they get, so each gets a copy
+				ArrayList<String> results = cached.result == null ? null : new ArrayList<String>(cached.result);
+				return logged(log, EngineMetrics.TOP, null, kws, k, start, results);
+			}
+			long generation = cache.generation();
 		
-		ArrayList<String> documents = null;; 
-
-		ArrayList<Occurrence> Occ1; 
-		ArrayList<Occurrence> Occ2; 
-
-		String doc1,doc2; 
-
-		kw1 = kw1.toLowerCase();               
-		kw2 = kw2.toLowerCase(); 
-
-		Occ1 = this.keywordsIndex.get(kw1); 
-		Occ2 = this.keywordsIndex.get(kw2); 
-
-		if ((Occ1 == null) && (Occ2 == null) ) {
-			return null;
-			} 
-
-
-		documents = new ArrayList<String>(); 
-
-		if (Occ1 == null) {       
-			for (int i=0 ; i < Occ2.size(); i++) { 
-				doc2 = Occ2.get(i).document; 
-				documents.add(doc2); 
-				if (documents.size() >= (5)) { 
-					break; 
-				}       
-			}  
-		} else if (Occ2 == null) {       
-			for (int i=0 ; i < (Occ1.size()); i++) { 
-				doc1 = Occ1.get(i).document; 
-				documents.add(doc1); 
-				if (documents.size() >= (5)) { 
-					break; 
-				} 
-			}  
-		} else { 
-			
-			int count=0; 
-			Boolean done = false; 
-
-			for (int i = 0; i < ( Occ1.size()) ; i++) { 
-				if  (count < Occ2.size()) { 
-					
-
-					if  ((Occ1.get(i).frequency)  > (Occ2.get(count).frequency) )  { 
-
-						doc1 = Occ1.get(i).document; 
-						if (! documents.contains(doc1)) { 
-							documents.add(doc1); 
-							doc2=Occ2.get(count).document; 
-							if (doc1.equals(doc2)) { 
-								count++; 
-							} 
-							if (documents.size() >= (5)) { 
-								done = true; 
-								break; 
-							}       
-						}     
-					} else  if ( (Occ1.get(i).frequency) == (Occ2.get(count).frequency) )  { 
-						doc1 = Occ1.get(i).document; 
-						if (! documents.contains(doc1)) { 
-							documents.add(doc1); 
-						} 
-
-								doc2=Occ2.get(count).document; 
-								if (doc1.equals(doc2)) { 
-									count++; 
-								} 
-
-								if (documents.size() >= (5)) { 
-									done = true; 
-									break; 
-								}       
-
-					} else if ( (Occ1.get(i).frequency) < (Occ2.get(count).frequency) )  { 
-
-						
-						if (count < Occ2.size()) { 
-							while (count < Occ2.size()) { 
-								if ( (Occ2.get(count).frequency) > (Occ1.get(i).frequency) )  { 
-									doc2 = Occ2.get(count).document; 
-									if (! documents.contains(doc2)) { 
-										documents.add(doc2); 
-
-										count++; 
-										if (documents.size() >= (5)) { 
-											done = true; 
-											break; 
-										}       
-									} else { 
-										count++; 
-									} 
-
-								} else { 
-									break; 
-								} 
-
-							} 
-						}  
-						if (! done) { 
-							doc1 = Occ1.get(i).document; 
-							if (! documents.contains(doc1)) { 
-								documents.add(doc1); 
-							} 
-
-							if (documents.size() >= (5)) { 
-								done = true; 
-								break; 
-							}  
+			ArrayList<String> results = topDocs(Arrays.asList(kws), k);
+			cache.put(key, kws, results, generation);
+			return logged(log, EngineMetrics.TOP, null, kws, k, start, results);
+		} finally {
+			if (m != null) {
+				m.queryEnd(EngineMetrics.TOP, start);
+			}
+		}
+	}
+	
+	/**
+	 * Search result for all the keywords that match a pattern such as "rabb*", in the same
+	 * order as topSearch with the matching keywords in sorted order. In the pattern, '*' matches
+	 * any run of characters and '?' any one character (see TermDictionary). Keywords are
+	 * expanded from the term dictionary, quickly if the pattern starts with a few characters
+	 * before its first wildcard. Results are not cached.
+	 * 
+	 * @param pattern Keyword pattern
+	 * @param k Maximum number of documents in the result
+	 * @return List of NAMES of documents in which any matching keyword occurs, arranged in descending
+	 *         order of frequencies. The result size is limited to k documents. If there are no matching
+	 *         documents, the result is null.
+	 */
+	public ArrayList<String> wildcardSearch(String pattern, int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		EngineMetrics m = metrics;
+		QueryLog log = queryLog;
+		long start = queryStart(m, log);
+		try {
+			ArrayList<String> kws = terms.expand(pattern.trim().toLowerCase());
+			ArrayList<String> results = kws.isEmpty() ? null : topDocs(kws, k);
+			return logged(log, EngineMetrics.WILDCARD, pattern, null, k, start, results);
+		} finally {
+			if (m != null) {
+				m.queryEnd(EngineMetrics.WILDCARD, start);
+			}
+		}
+	}
+	
+	/**
+	 * Finds the top k documents for a list of keywords, as topSearch does.
+	 * 
+	 * @param kws Keywords (lower case)
+	 * @param k Maximum number of documents
+	 * @return Document names, or null if there are no documents
+	 */
+	private ArrayList<String> topDocs(List<String> kws, int k) {
+		IndexSnapshot snapshot = snapshot(kws);
+		return names(snapshot, topDocs(snapshot, kws, k));
+	}
+	
+	/**
+	 * Finds the ids of the top k documents for a list of keywords in a snapshot.
+	 */
+	static int[] topDocs(IndexSnapshot snapshot, List<String> kws, int k) {
+		// fan out over the layers of each keyword; ties go to the earlier keyword, then the older layer
+		ArrayList<PostingList> lists = new ArrayList<PostingList>();
+		for (String kw : kws) {
+			lists.addAll(Arrays.asList(snapshot.layers(kw)));
+		}
+		return TopKSearch.search(snapshot, lists.toArray(new PostingList[lists.size()]), k);
+	}
+	
+	/**
+	 * Search results for a batch of "kw1 or kw2 or ..." queries, each the same as topSearch
+	 * would return, computed together on a pool of threads. All the queries see one snapshot
+	 * of the index, taken over all their keywords, so each keyword's posting lists are looked
+	 * up (and read from index or segment files) once for the whole batch. Repeated queries
+	 * are answered once. The distinct queries are grouped by their first keyword, so that
+	 * queries sharing it are next to each other and go to the same thread while its lists
+	 * are still in its cache, and then handed to the threads in chunks. Results are neither
+	 * cached nor logged.
+	 * 
+	 * @param k Maximum number of documents in each result
+	 * @param queries Keywords of each query
+	 * @param threads Number of threads to search on
+	 * @return Result of each query, in the order of the queries: a list of NAMES of documents as
+	 *         topSearch returns, or null if there are no matching documents
+	 */
+	public ArrayList<ArrayList<String>> topSearchBatch(int k, List<String[]> queries, int threads) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1: " + threads);
+		}
+		// number the distinct queries, and note which one each query is, and the group
+		// (by first keyword) of each distinct query
+		int capacity = queries.size() * 2;
+		HashMap<List<String>,Integer> ids = new HashMap<List<String>,Integer>(capacity);
+		final ArrayList<List<String>> distinct = new ArrayList<List<String>>();
+		int[] queryIds = new int[queries.size()];
+		HashMap<String,Integer> groups = new HashMap<String,Integer>(capacity);
+		int[] groupOf = new int[queryIds.length];
+		HashSet<String> allKeywords = new HashSet<String>(capacity);
+		for (int q = 0; q < queryIds.length; q++) {
+			String[] keywords = queries.get(q);
+			String[] kws = new String[keywords.length];
+			for (int i = 0; i < keywords.length; i++) {
+				kws[i] = keywords[i].toLowerCase();
+			}
+			List<String> query = Arrays.asList(kws);
+			Integer id = ids.get(query);
+			if (id == null) {
+				id = distinct.size();
+				ids.put(query, id);
+				distinct.add(query);
+				String first = kws.length == 0 ? "" : kws[0];
+				Integer group = groups.get(first);
+				if (group == null) {
+					group = groups.size();
+					groups.put(first, group);
+				}
+				groupOf[id] = group;
+				for (String kw : kws) {
+					allKeywords.add(kw);
+				}
+			}
+			queryIds[q] = id;
+		}
+		// counting sort of the distinct queries by group
+		int[] starts = new int[groups.size() + 1];
+		for (int id = 0; id < distinct.size(); id++) {
+			starts[groupOf[id] + 1]++;
+		}
+		for (int g = 0; g < groups.size(); g++) {
+			starts[g + 1] += starts[g];
+		}
+		final int[] order = new int[distinct.size()];
+		for (int id = 0; id < distinct.size(); id++) {
+			order[starts[groupOf[id]]++] = id;
+		}
+		final IndexSnapshot snapshot = snapshot(allKeywords);
+		final int[][] found = new int[distinct.size()][];
+		final int size = k;
+		
+		int chunks = (order.length + BATCH_CHUNK - 1) / BATCH_CHUNK;
+		if (threads == 1 || chunks <= 1) {
+			for (int id : order) {
+				found[id] = topDocs(snapshot, distinct.get(id), size);
+			}
+		} else {
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, chunks));
+			try {
+				ArrayList<Future<?>> tasks = new ArrayList<Future<?>>(chunks);
+				for (int c = 0; c < chunks; c++) {
+					final int from = c * BATCH_CHUNK;
+					final int to = Math.min(from + BATCH_CHUNK, order.length);
+					tasks.add(pool.submit(new Runnable() {
+						public void run() {
+							// each query writes only its own slot, and the pool's futures publish them
+							for (int i = from; i < to; i++) {
+								found[order[i]] = topDocs(snapshot, distinct.get(order[i]), size);
+							}
 						}
-					} 
-				} else { 
-					
-					doc1 = Occ1.get(i).document; 
-					if (! documents.contains(doc1)) { 
-						documents.add(doc1); 
-					} 
-
-					if (documents.size() >= (5)) { 
-						done = true; 
-						break; 
-					}       
-
-				} 
-
-			} 
-
-			for (int j = count ; j < Occ2.size() ; j++) { 
-				doc2 = Occ2.get(j).document; 
-				if (! documents.contains(doc2)) { 
-					documents.add(doc2); 
-				} 
-
-				if (documents.size() >= (5)) { 
-					done = true; 
-					break; 
-				}       
-
-			} 
-		}   
-
-		printList(documents);     
+					}));
+				}
+				for (Future<?> task : tasks) {
+					try {
+						task.get();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("Interrupted while searching", e);
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						if (cause instanceof RuntimeException) {
+							throw (RuntimeException)cause;
+						}
+						if (cause instanceof Error) {
+							throw (Error)cause;
+						}
+						throw new IllegalStateException(cause);
+					}
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+		}
 		
-		return documents; 
+		ArrayList<ArrayList<String>> results = new ArrayList<ArrayList<String>>(queryIds.length);
+		for (int id : queryIds) {
+			// each query gets its own list, since callers may change them
+			results.add(names(snapshot, found[id]));
+		}
+		EngineMetrics m = metrics;
+		if (m != null) {
+			m.queries(EngineMetrics.TOP, queryIds.length);
+		}
+		return results;
 	}
 	
-	private void printList(ArrayList<String> arr) { 
+	/**
+	 * Search result for "kw1 or kw2 or ...", ranked by BM25 instead of raw frequency (see
+	 * BM25Search). A keyword counts for more the fewer documents it occurs in, repeated
+	 * occurrences count for less and less, and long documents are scored down, so that they
+	 * do not win just by being long. Ties in score are broken in favor of the document that
+	 * was indexed first. Results are not cached, since every document merged changes the
+	 * statistics that all scores depend on.
+	 *
+	 * @param k Maximum number of documents in the result
+	 * @param keywords Keywords to search for
+	 * @return List of NAMES of documents in which any of the keywords occurs, arranged in descending order
+	 *         of score. The result size is limited to k documents. If there are no matching documents,
+	 *         the result is null.
+	 */
+	public ArrayList<String> rankedSearch(int k, String... keywords) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		EngineMetrics m = metrics;
+		QueryLog log = queryLog;
+		long start = queryStart(m, log);
+		try {
+			String[] kws = new String[keywords.length];
+			for (int i = 0; i < keywords.length; i++) {
+				kws[i] = keywords[i].toLowerCase();
+			}
+			IndexSnapshot snapshot = snapshot(Arrays.asList(kws));
+			ArrayList<String> results = names(snapshot, BM25Search.search(snapshot, kws, k));
+			return logged(log, EngineMetrics.RANKED, null, kws, k, start, results);
+		} finally {
+			if (m != null) {
+				m.queryEnd(EngineMetrics.RANKED, start);
+			}
+		}
+	}
 
-		for (String val:arr) { 
-			System.out.print(val + " "); 
-		} 
-		System.out.println();         
+	/**
+	 * Search result for a boolean query such as "alice AND rabbit NOT queen" (see BooleanQuery
+	 * for the syntax). A document's score is the total frequency of the keywords it matches in
+	 * a clause of the query, and the result set is arranged in descending order of score, ties
+	 * being broken in favor of the document that was indexed first.
+	 * 
+	 * @param query Boolean query
+	 * @param k Maximum number of documents in the result
+	 * @return List of NAMES of matching documents, arranged in descending order of score. The result
+	 *         size is limited to k documents. If there are no matching documents, the result is null.
+	 * @throws IllegalArgumentException If the query is not well formed
+	 */
+	public ArrayList<String> booleanSearch(String query, int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		EngineMetrics m = metrics;
+		QueryLog log = queryLog;
+		long start = queryStart(m, log);
+		try {
+			BooleanQuery q = BooleanQuery.parse(query);
+			IndexSnapshot snapshot = snapshot(q.keywords());
+			ArrayList<String> results = names(snapshot, q.search(snapshot, k));
+			return logged(log, EngineMetrics.BOOLEAN, query, null, k, start, results);
+		} finally {
+			if (m != null) {
+				m.queryEnd(EngineMetrics.BOOLEAN, start);
+			}
+		}
+	}
+	
+	/**
+	 * Search result for a phrase such as "white rabbit": documents in which the words of the
+	 * phrase occur next to each other, in order (see PhraseQuery). Words of the phrase that
+	 * are not keywords match any word. The result set is arranged in descending order of the
+	 * number of times the phrase occurs, ties being broken in favor of the document that was
+	 * indexed first. Positions must have been enabled (see enablePositions).
+	 * 
+	 * @param phrase Words of the phrase, separated by whitespace
+	 * @param k Maximum number of documents in the result
+	 * @return List of NAMES of documents in which the phrase occurs. The result size is limited to
+	 *         k documents. If there are no matching documents, the result is null.
+	 * @throws IllegalArgumentException If no word of the phrase is a keyword
+	 * @throws IllegalStateException If positions are not enabled
+	 */
+	public ArrayList<String> phraseSearch(String phrase, int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		if (positionsIndex == null) {
+			throw new IllegalStateException("Positions are not enabled");
+		}
+		EngineMetrics m = metrics;
+		QueryLog log = queryLog;
+		long start = queryStart(m, log);
+		try {
+			PhraseQuery q = PhraseQuery.parse(phrase, this);
+			IndexSnapshot snapshot = snapshot(q.keywords());
+			ArrayList<String> results = names(snapshot, q.search(snapshot, k));
+			return logged(log, EngineMetrics.PHRASE, phrase, null, k, start, results);
+		} finally {
+			if (m != null) {
+				m.queryEnd(EngineMetrics.PHRASE, start);
+			}
+		}
+	}
+	
+	/**
+	 * Search result for "kw1 or kw2 or ...", in the same order as topSearch, with the score and
+	 * the matched keywords of each document (see SearchResult). The score of a document is
+	 * its highest frequency among the keywords. Results are not cached.
+	 * 
+	 * @param k Maximum number of documents in the result
+	 * @param keywords Keywords to search for
+	 * @return Documents in which any of the keywords occurs, arranged in descending order of score.
+	 *         The result size is limited to k documents. If there are no matching documents, the
+	 *         result is null.
+	 */
+	public ArrayList<SearchResult> topResults(int k, String... keywords) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		EngineMetrics m = metrics;
+		QueryLog log = queryLog;
+		long start = queryStart(m, log);
+		try {
+			String[] kws = new String[keywords.length];
+			for (int i = 0; i < keywords.length; i++) {
+				kws[i] = keywords[i].toLowerCase();
+			}
+			IndexSnapshot snapshot = snapshot(Arrays.asList(kws));
+			int[] docs = topDocs(snapshot, Arrays.asList(kws), k);
+			double[] scores = new double[docs.length];
+			for (int i = 0; i < docs.length; i++) {
+				for (String kw : kws) {
+					scores[i] = Math.max(scores[i], snapshot.frequency(kw, docs[i]));
+				}
+			}
+			ArrayList<SearchResult> results = results(snapshot, kws, docs, scores);
+			if (log != null) {
+				log.log(EngineMetrics.TOP, null, kws, k, start, names(snapshot, docs));
+			}
+			return results;
+		} finally {
+			if (m != null) {
+				m.queryEnd(EngineMetrics.TOP, start);
+			}
+		}
+	}
+	
+	/**
+	 * Search result for "kw1 or kw2 or ...", in the same order as rankedSearch, with the BM25
+	 * score and the matched keywords of each document (see SearchResult).
+	 * 
+	 * @param k Maximum number of documents in the result
+	 * @param keywords Keywords to search for
+	 * @return Documents in which any of the keywords occurs, arranged in descending order of score.
+	 *         The result size is limited to k documents. If there are no matching documents, the
+	 *         result is null.
+	 */
+	public ArrayList<SearchResult> rankedResults(int k, String... keywords) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		EngineMetrics m = metrics;
+		QueryLog log = queryLog;
+		long start = queryStart(m, log);
+		try {
+			String[] kws = new String[keywords.length];
+			for (int i = 0; i < keywords.length; i++) {
+				kws[i] = keywords[i].toLowerCase();
+			}
+			IndexSnapshot snapshot = snapshot(Arrays.asList(kws));
+			int[] docs = BM25Search.search(snapshot, kws, k);
+			ArrayList<SearchResult> results = results(snapshot, kws, docs, BM25Search.scores(snapshot, kws, docs));
+			if (log != null) {
+				log.log(EngineMetrics.RANKED, null, kws, k, start, names(snapshot, docs));
+			}
+			return results;
+		} finally {
+			if (m != null) {
+				m.queryEnd(EngineMetrics.RANKED, start);
+			}
+		}
+	}
+	
+	/**
+	 * Starts a query: it is timed if it is logged, or if metrics sample it.
+	 * 
+	 * @return Start time, or 0 if the query is not timed
+	 */
+	private static long queryStart(EngineMetrics m, QueryLog log) {
+		if (log != null) {
+			return log.start();
+		}
+		return m == null ? 0 : m.queryStart();
+	}
+	
+	/**
+	 * Logs a query if queries are logged, and returns its results.
+	 */
+	private static ArrayList<String> logged(QueryLog log, int kind, String query, String[] kws, int k, long start,
+			ArrayList<String> results) {
+		if (log != null) {
+			log.log(kind, query, kws, k, start, results);
+		}
+		return results;
+	}
+	
+	/**
+	 * Returns the documents found by a search, with their scores and matched keywords.
+	 * 
+	 * @param snapshot Snapshot that was searched
+	 * @param kws Keywords of the query (lower case)
+	 * @param docs Document ids
+	 * @param scores Score of each document
+	 * @return Results, or null if there are no documents
+	 */
+	private static ArrayList<SearchResult> results(IndexSnapshot snapshot, String[] kws, int[] docs, double[] scores) {
+		if (docs.length == 0) {
+			return null;
+		}
+		ArrayList<SearchResult> results = new ArrayList<SearchResult>(docs.length);
+		for (int i = 0; i < docs.length; i++) {
+			ArrayList<String> matched = new ArrayList<String>();
+			for (String kw : kws) {
+				if (!matched.contains(kw) && snapshot.frequency(kw, docs[i]) > 0) {
+					matched.add(kw);
+				}
+			}
+			results.add(new SearchResult(snapshot.documents.name(docs[i]), scores[i], matched));
+		}
+		return results;
+	}
+	
+	/**
+	 * Returns the names of the documents found by a search.
+	 * 
+	 * @param snapshot Snapshot that was searched
+	 * @param docs Document ids
+	 * @return Document names, or null if there are no documents
+	 */
+	private static ArrayList<String> names(IndexSnapshot snapshot, int[] docs) {
+		if (docs.length == 0) {
+			return null;
+		}
+		ArrayList<String> results = new ArrayList<String>(docs.length);
+		for (int doc : docs) {
+			results.add(snapshot.documents.name(doc));
+		}
+		return results;
 	}
 
 }
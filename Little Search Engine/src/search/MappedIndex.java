@@ -0,0 +1,517 @@
+package search;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class stores a keyword index in a compact binary file, and reads it back through
+ * a memory mapping, so an index can be reopened without rescanning its documents and
+ * without loading its posting lists on heap.
+ *
+ * The file is laid out as follows (all ints are big-endian):
+ * <pre>
+ *   header      magic, version, docCount, termCount, noiseCount,
+ *               docTablePos, noisePos, termTablePos, codec
+ *   terms       for each keyword, in ascending order of its UTF-8 bytes:
+ *               varint length, UTF-8 bytes, then its postings (in descending order
+ *               of frequency) as written by the codec (see PostingCodec)
+ *   documents   for each document id (see DocumentTable): varint length, UTF-8 bytes of the name,
+ *               varint document length (keyword occurrences), byte 1 if the document
+ *               has been removed, 0 if not
+ *   noise words varint length, UTF-8 bytes of each noise word
+ *   term table  int position of each keyword's entry in the terms section
+ * </pre>
+ * Keywords are found by binary search over the term table. Since positions are ints,
+ * an index file is limited to 2GB.
+ *
+ * Segment files (see SegmentedIndex) have the same layout, with no documents or noise words;
+ * their document ids refer to the engine's documents table.
+ *
+ */
+class MappedIndex {
+
+	private static final int MAGIC = 0x4c534549; // "LSEI"
+	private static final int VERSION = 4;
+	private static final int HEADER_SIZE = 9 * 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The mapped file, and its name.
+	 */
+	private final ByteBuffer buffer;
+	final File file;
+
+	/**
+	 * Documents referred to by the posting lists.
+	 */
+	final DocumentTable documents;
+
+	private final int termCount;
+	private final int termTablePos;
+
+	/**
+	 * Codec that the posting lists are written with.
+	 */
+	final PostingCodec codec;
+
+	/**
+	 * Noise words stored with the index.
+	 */
+	final HashMap<String,String> noiseWords;
+
+	/**
+	 * Lists shorter than this are sorted into document order quickly enough on every lookup,
+	 * and at most this many postings are kept in docOrders.
+	 */
+	private static final int CACHED_MIN = 64;
+	private static final int CACHED_MAX = 1 << 21;
+
+	/**
+	 * Postings of the longer lists in ascending order of document id, kept from the first
+	 * lookup of each (see get), and the number of postings they hold. The file does not
+	 * change, so they never go stale.
+	 */
+	private final ConcurrentHashMap<String,PostingList.DocOrder> docOrders =
+		new ConcurrentHashMap<String,PostingList.DocOrder>();
+	private final AtomicInteger cachedPostings = new AtomicInteger();
+
+	private MappedIndex(ByteBuffer buffer, File file)
+	throws IOException {
+		this.buffer = buffer;
+		this.file = file;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not an index file");
+		}
+		int docCount = buffer.getInt(8);
+		termCount = buffer.getInt(12);
+		int noiseCount = buffer.getInt(16);
+		termTablePos = buffer.getInt(28);
+		codec = PostingCodec.forId(buffer.getInt(32));
+		if (codec == null) {
+			throw new IOException("Unknown posting codec: " + buffer.getInt(32));
+		}
+
+		ByteBuffer b = buffer.duplicate();
+		b.position(buffer.getInt(20));
+		documents = new DocumentTable();
+		for (int i = 0; i < docCount; i++) {
+			String name = readString(b);
+			int length = readVarint(b);
+			int id = b.get() == 0 ? documents.add(name) : documents.addDeleted(name);
+			documents.setLength(id, length);
+		}
+		documents.publish();
+		b.position(buffer.getInt(24));
+		noiseWords = new HashMap<String,String>(100,2.0f);
+		for (int i = 0; i < noiseCount; i++) {
+			String word = readString(b);
+			noiseWords.put(word, word);
+		}
+	}
+
+	/**
+	 * Opens an index file by mapping it into memory.
+	 *
+	 * @param indexFile Name of the index file
+	 * @return Mapped index
+	 * @throws IOException If the file cannot be read, or is not an index file
+	 */
+	static MappedIndex open(String indexFile)
+	throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Index file is larger than 2GB: " + indexFile);
+			}
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new MappedIndex(mapped, new File(indexFile));
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes an index to a file.
+	 *
+	 * @param index Keyword index, each list in descending order of frequency
+	 * @param documents Documents referred to by the posting lists
+	 * @param noiseWords Noise words used to build the index
+	 * @param codec Codec to write the posting lists with
+	 * @param indexFile Name of the index file to be written
+	 * @throws IOException If the file cannot be written
+	 */
+	static void write(Map<String,PostingList> index, DocumentTable documents, Map<String,String> noiseWords, 
+			PostingCodec codec, String indexFile)
+	throws IOException {
+		// sort keywords by their UTF-8 bytes, which is the order lookups compare in
+		byte[][] terms = new byte[index.size()][];
+		String[] keys = new String[index.size()];
+		int t = 0;
+		for (String key : index.keySet()) {
+			terms[t] = key.getBytes(UTF8);
+			keys[t] = key;
+			t++;
+		}
+		Integer[] order = new Integer[terms.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		final byte[][] sortTerms = terms;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return compareBytes(sortTerms[a], sortTerms[b]);
+			}
+		});
+
+		IndexWriter writer = new IndexWriter(indexFile, codec);
+		try {
+			for (int i = 0; i < order.length; i++) {
+				writer.add(terms[order[i]], index.get(keys[order[i]]));
+			}
+			writer.finish(documents, noiseWords);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * This class writes an index file one keyword at a time, so that the whole index need not
+	 * be in memory, as when it is merged from runs on disk (see ExternalIndexBuilder). Only
+	 * the position of each keyword's entry is kept until the end.
+	 *
+	 * The index is written to a temporary file beside the index file, which is renamed over
+	 * it when it is finished. An index that is mapped from the old file, as by openIndex,
+	 * keeps reading the old file, which is never truncated under it.
+	 */
+	static class IndexWriter {
+		private final String indexFile;
+		private final File temp;
+		private boolean finished;
+		private final PostingCodec codec;
+		private final DataOutputStream out;
+		private int[] termPos;
+		private int terms;
+		private byte[] last;
+
+		/**
+		 * Creates the temporary file for an index file, leaving room for its header.
+		 *
+		 * @param indexFile Name of the index file to be written
+		 * @param codec Codec to write the posting lists with
+		 * @throws IOException If the file cannot be created
+		 */
+		IndexWriter(String indexFile, PostingCodec codec)
+		throws IOException {
+			this.indexFile = indexFile;
+			this.codec = codec;
+			temp = new File(indexFile + ".tmp");
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+			termPos = new int[1024];
+			for (int i = 0; i < HEADER_SIZE/4; i++) {
+				out.writeInt(0);
+			}
+		}
+
+		/**
+		 * Writes a keyword and its postings. Keywords must be added in ascending order of
+		 * their UTF-8 bytes, which is the order lookups compare in.
+		 *
+		 * @param term UTF-8 bytes of the keyword
+		 * @param postings Postings of the keyword, in descending order of frequency
+		 * @throws IOException If the file cannot be written
+		 */
+		void add(byte[] term, PostingList postings)
+		throws IOException {
+			if (last != null && compareBytes(last, term) >= 0) {
+				throw new IllegalArgumentException("Keywords are out of order: " + new String(term, UTF8));
+			}
+			if (terms == termPos.length) {
+				termPos = Arrays.copyOf(termPos, terms * 2);
+			}
+			termPos[terms++] = out.size();
+			writeVarint(out, term.length);
+			out.write(term);
+			codec.write(postings, out);
+			if (out.size() < 0) {
+				// DataOutputStream.size wraps around past 2GB
+				throw new IOException("Index is too large for an index file");
+			}
+			last = term;
+		}
+
+		/**
+		 * Writes the documents table, noise words and term table after the keywords, and
+		 * then the header, and moves the finished file over the index file (see replace).
+		 *
+		 * @param documents Documents referred to by the posting lists
+		 * @param noiseWords Noise words used to build the index
+		 * @throws IOException If the file cannot be written
+		 */
+		void finish(DocumentTable documents, Map<String,String> noiseWords)
+		throws IOException {
+			int docTablePos = out.size();
+			for (int i = 0; i < documents.size(); i++) {
+				writeString(out, documents.name(i));
+				writeVarint(out, documents.length(i));
+				out.writeByte(documents.isDeleted(i) ? 1 : 0);
+			}
+			int noisePos = out.size();
+			for (String word : noiseWords.keySet()) {
+				writeString(out, word);
+			}
+			int termTablePos = out.size();
+			for (int i = 0; i < terms; i++) {
+				out.writeInt(termPos[i]);
+			}
+			if (out.size() < 0) {
+				throw new IOException("Index is too large for an index file");
+			}
+			out.close();
+
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				raf.writeInt(documents.size());
+				raf.writeInt(terms);
+				raf.writeInt(noiseWords.size());
+				raf.writeInt(docTablePos);
+				raf.writeInt(noisePos);
+				raf.writeInt(termTablePos);
+				raf.writeInt(codec.id);
+			} finally {
+				raf.close();
+			}
+			replace(temp, new File(indexFile));
+			finished = true;
+		}
+
+		/**
+		 * Closes the file, if finish has not, and deletes it if it was not finished.
+		 *
+		 * @throws IOException If the file cannot be closed
+		 */
+		void close()
+		throws IOException {
+			out.close();
+			if (!finished) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of keywords in this index.
+	 *
+	 * @return Number of keywords
+	 */
+	int size() {
+		return termCount;
+	}
+
+	/**
+	 * Returns all the keywords in this index, in ascending order.
+	 *
+	 * @return Keywords
+	 */
+	ArrayList<String> keywords() {
+		ArrayList<String> keys = new ArrayList<String>(termCount);
+		ByteBuffer b = buffer.duplicate();
+		for (int i = 0; i < termCount; i++) {
+			b.position(buffer.getInt(termTablePos + 4*i));
+			keys.add(readString(b));
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the UTF-8 bytes of a keyword, by its place in the term table, which is in
+	 * ascending order of the bytes.
+	 *
+	 * @param i Place of the keyword, from 0 to size() - 1
+	 * @return UTF-8 bytes of the keyword
+	 */
+	byte[] term(int i) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(buffer.getInt(termTablePos + 4*i));
+		byte[] term = new byte[readVarint(b)];
+		b.get(term);
+		return term;
+	}
+
+	/**
+	 * Returns the postings of a keyword, by its place in the term table.
+	 *
+	 * @param i Place of the keyword, from 0 to size() - 1
+	 * @return Postings of the keyword, in descending order of frequency
+	 */
+	PostingList postings(int i) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(buffer.getInt(termTablePos + 4*i));
+		int length = readVarint(b);
+		b.position(b.position() + length);
+		return codec.read(b);
+	}
+
+	/**
+	 * Returns the postings of a keyword, in descending order of frequency. Each lookup
+	 * decodes a new list, but the list comes with its postings in document order (see
+	 * PostingList.docOrder) from the first lookup of the keyword, so boolean queries and
+	 * BM25 do not sort it again every time.
+	 *
+	 * @param keyword Keyword (lower case)
+	 * @return Postings of the keyword, or null if it is not in the index
+	 */
+	PostingList get(String keyword) {
+		ByteBuffer b = find(keyword);
+		if (b == null) {
+			return null;
+		}
+		PostingList postings = codec.read(b);
+		if (postings.size() >= CACHED_MIN) {
+			PostingList.DocOrder order = docOrders.get(keyword);
+			if (order != null) {
+				postings.useDocOrder(order);
+			} else if (cachedPostings.get() < CACHED_MAX) {
+				// free for lists written in document order, one sort for the others
+				order = postings.docOrder();
+				if (docOrders.putIfAbsent(keyword, order) == null) {
+					cachedPostings.addAndGet(order.size);
+				}
+			}
+		}
+		return postings;
+	}
+
+	/**
+	 * Returns the number of postings of a keyword, without reading them.
+	 *
+	 * @param keyword Keyword (lower case)
+	 * @return Number of postings, or 0 if the keyword is not in the index
+	 */
+	int count(String keyword) {
+		ByteBuffer b = find(keyword);
+		return b == null ? 0 : codec.count(b);
+	}
+
+	/**
+	 * Finds a keyword's entry in the terms section.
+	 *
+	 * @return Buffer positioned at the keyword's postings, or null if it is not in the index
+	 */
+	private ByteBuffer find(String keyword) {
+		byte[] key = keyword.getBytes(UTF8);
+		ByteBuffer b = buffer.duplicate();
+		int low = 0;
+		int high = termCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			b.position(buffer.getInt(termTablePos + 4*mid));
+			int c = compareTerm(b, key);
+			if (c < 0) {
+				low = mid + 1;
+			} else if (c > 0) {
+				high = mid - 1;
+			} else {
+				return b;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Moves a finished file over the file it replaces. The move is atomic where the file
+	 * system allows it, so a reader sees either the old file or the new one; where it does
+	 * not, the file is replaced by a plain move. Unlike File.renameTo, the move replaces an
+	 * existing file on every platform, and says why when it fails.
+	 *
+	 * @param temp Finished file
+	 * @param target File to replace
+	 * @throws IOException If the file cannot be moved
+	 */
+	static void replace(File temp, File target)
+	throws IOException {
+		try {
+			Files.move(temp.toPath(), target.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Compares the term at the buffer's position with the given key, leaving the buffer
+	 * positioned after the term.
+	 */
+	private static int compareTerm(ByteBuffer b, byte[] key) {
+		int len = readVarint(b);
+		int n = Math.min(len, key.length);
+		int c = 0;
+		for (int i = 0; i < n; i++) {
+			c = (b.get() & 0xff) - (key[i] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		b.position(b.position() + (len - n));
+		return len - key.length;
+	}
+
+	static int compareBytes(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	static void writeVarint(DataOutput out, int value)
+	throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarint(ByteBuffer b) {
+		int value = 0;
+		int shift = 0;
+		while (true) {
+			byte x = b.get();
+			value |= (x & 0x7f) << shift;
+			if (x >= 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+
+	private static void writeString(DataOutput out, String s)
+	throws IOException {
+		byte[] bytes = s.getBytes(UTF8);
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer b) {
+		byte[] bytes = new byte[readVarint(b)];
+		b.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,210 @@
+package search;
+
+import java.util.*;
+
+/**
+ * This class is an immutable set of noise words, looked up through a perfect hash so that
+ * a word can be tested directly in a char buffer, without creating a String.
+ *
+ * The table is built by hash and displace: each word hashes to a bucket, and each bucket
+ * is given a displacement that sends all of its words to slots no other word is in. A
+ * lookup mixes the word's String hash code (which a caller may already have, see
+ * KeyWordTokenizer), reads the bucket's displacement, and compares the characters with
+ * the one word in the resulting slot (the exact check, since a word that is not in the set
+ * can land on any slot). The table usually has two to four slots per word.
+ *
+ * Words with the same hash code cannot be told apart by any seed, so all but the first
+ * of them are kept in an ordinary hash map, which is only consulted if there are any.
+ *
+ */
+class NoiseWordSet {
+
+	/**
+	 * Largest displacement tried for a bucket before the table is rebuilt with a new seed.
+	 */
+	private static final int MAX_DISPLACEMENT = 1 << 12;
+
+	/**
+	 * Word in each slot, or null.
+	 */
+	private String[] words;
+	private int mask;
+
+	/**
+	 * Displacement of each bucket.
+	 */
+	private int[] displacements;
+	private int bucketMask;
+
+	private long seed;
+
+	/**
+	 * Words whose hash code is the same as that of a word in the table, or null if there are none.
+	 */
+	private HashMap<String,String> overflow;
+
+	/**
+	 * Builds the set of the given noise words.
+	 *
+	 * @param noiseWords Noise words
+	 */
+	NoiseWordSet(Collection<String> noiseWords) {
+		HashMap<Integer,String> byHash = new HashMap<Integer,String>();
+		for (String word : new HashSet<String>(noiseWords)) {
+			if (byHash.containsKey(word.hashCode())) {
+				if (overflow == null) {
+					overflow = new HashMap<String,String>();
+				}
+				overflow.put(word, word);
+			} else {
+				byHash.put(word.hashCode(), word);
+			}
+		}
+		String[] keys = byHash.values().toArray(new String[byHash.size()]);
+		int size = 2;
+		while (size < keys.length * 2) {
+			size <<= 1;
+		}
+		for (int attempt = 0; !build(keys, size, attempt); attempt++) {
+			if (attempt % 8 == 7) {
+				size <<= 1;
+			}
+		}
+	}
+
+	/**
+	 * Tries to build the table with the given number of slots and seed.
+	 *
+	 * @return True if every bucket found a displacement
+	 */
+	private boolean build(String[] keys, int size, long seed) {
+		this.seed = seed;
+		words = new String[size];
+		mask = size - 1;
+		displacements = new int[Integer.highestOneBit(Math.max(1, keys.length / 2))];
+		bucketMask = displacements.length - 1;
+
+		// place the largest buckets first, while the table is emptiest
+		ArrayList<ArrayList<String>> buckets = new ArrayList<ArrayList<String>>(displacements.length);
+		for (int b = 0; b < displacements.length; b++) {
+			buckets.add(new ArrayList<String>());
+		}
+		for (String key : keys) {
+			buckets.get(bucket(hash(key.hashCode()))).add(key);
+		}
+		Integer[] order = new Integer[displacements.length];
+		for (int b = 0; b < order.length; b++) {
+			order[b] = b;
+		}
+		final ArrayList<ArrayList<String>> sizes = buckets;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return sizes.get(b).size() - sizes.get(a).size();
+			}
+		});
+
+		int[] slots = new int[keys.length];
+		for (int b : order) {
+			ArrayList<String> bucket = buckets.get(b);
+			if (bucket.isEmpty()) {
+				break;
+			}
+			boolean placed = false;
+			for (int d = 0; d < MAX_DISPLACEMENT && !placed; d++) {
+				placed = true;
+				for (int i = 0; i < bucket.size() && placed; i++) {
+					slots[i] = slot(hash(bucket.get(i).hashCode()), d);
+					if (words[slots[i]] != null) {
+						placed = false;
+					}
+					for (int j = 0; j < i && placed; j++) {
+						if (slots[j] == slots[i]) {
+							placed = false;
+						}
+					}
+				}
+				if (placed) {
+					displacements[b] = d;
+					for (int i = 0; i < bucket.size(); i++) {
+						words[slots[i]] = bucket.get(i);
+					}
+				}
+			}
+			if (!placed) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if a word is a noise word.
+	 *
+	 * @param word Word
+	 * @return True if the word is in the set
+	 */
+	boolean contains(String word) {
+		long h = hash(word.hashCode());
+		String w = words[slot(h, displacements[bucket(h)])];
+		if (w != null && w.equals(word)) {
+			return true;
+		}
+		return overflow != null && overflow.containsKey(word);
+	}
+
+	/**
+	 * Returns the noise word held in a slice of a char array.
+	 *
+	 * @param chars Characters
+	 * @param offset Index of the first character of the word
+	 * @param length Length of the word
+	 * @return The noise word (the String in this set), or null if the slice is not a noise word
+	 */
+	String get(char[] chars, int offset, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++) {
+			hash = 31*hash + chars[offset + i];
+		}
+		return get(chars, offset, length, hash);
+	}
+
+	/**
+	 * Returns the noise word held in a slice of a char array, given the slice's hash code.
+	 *
+	 * @param chars Characters
+	 * @param offset Index of the first character of the word
+	 * @param length Length of the word
+	 * @param hashCode Hash code that a String of the slice would have
+	 * @return The noise word (the String in this set), or null if the slice is not a noise word
+	 */
+	String get(char[] chars, int offset, int length, int hashCode) {
+		long h = hash(hashCode);
+		String w = words[slot(h, displacements[bucket(h)])];
+		if (w != null && w.length() == length) {
+			int i = 0;
+			while (i < length && w.charAt(i) == chars[offset + i]) {
+				i++;
+			}
+			if (i == length) {
+				return w;
+			}
+		}
+		return overflow == null ? null : overflow.get(new String(chars, offset, length));
+	}
+
+	/**
+	 * Mixes a hash code with the seed. The high bits of the product depend on all the bits
+	 * of the hash code, so the bucket and slot are taken from those.
+	 */
+	private long hash(int hashCode) {
+		return ((hashCode & 0xffffffffL) ^ seed) * 0x9e3779b97f4a7c15L;
+	}
+
+	private int bucket(long h) {
+		return (int)(h >>> 40) & bucketMask;
+	}
+
+	private int slot(long h, int d) {
+		return ((int)(h >>> 32) + d * ((int)(h >>> 20) | 1)) & mask;
+	}
+}
@@ -0,0 +1,160 @@
+package search;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This codec writes the gaps between document ids with patched frame of reference
+ * (PForDelta). The gaps are cut into blocks of BLOCK_SIZE, and every gap in a block is
+ * bit-packed in the same number of bits, chosen for the block so that the few gaps that do
+ * not fit (exceptions) cost less than widening all the others would. The low bits of an
+ * exception are packed with the rest, and its high bits are written after the block.
+ * Frequencies are packed the same way, less one, without taking gaps.
+ *
+ * A block is laid out as: byte bit width, byte number of exceptions, the packed values (the
+ * low bits first), then for each exception its index in the block (a byte) and a varint of
+ * its high bits.
+ *
+ */
+class PForDeltaCodec extends PostingCodec {
+
+	/**
+	 * Number of values in a block.
+	 */
+	static final int BLOCK_SIZE = 128;
+
+	PForDeltaCodec() {
+		super(2, "pfor");
+	}
+
+	void encode(int[] docs, int n, DataOutput out)
+	throws IOException {
+		int[] gaps = new int[n];
+		int prev = 0;
+		for (int i = 0; i < n; i++) {
+			gaps[i] = docs[i] - prev;
+			prev = docs[i];
+		}
+		pack(gaps, n, out);
+	}
+
+	void decode(ByteBuffer b, int[] docs, int n) {
+		unpack(b, docs, n);
+		for (int i = 1; i < n; i++) {
+			docs[i] += docs[i-1];
+		}
+	}
+
+	void encodeFrequencies(int[] freqs, int n, DataOutput out)
+	throws IOException {
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = freqs[i] - 1;
+		}
+		pack(values, n, out);
+	}
+
+	void decodeFrequencies(ByteBuffer b, int[] freqs, int n) {
+		unpack(b, freqs, n);
+		for (int i = 0; i < n; i++) {
+			freqs[i]++;
+		}
+	}
+
+	/**
+	 * Writes non-negative values in blocks.
+	 */
+	private static void pack(int[] values, int n, DataOutput out)
+	throws IOException {
+		for (int start = 0; start < n; start += BLOCK_SIZE) {
+			int count = Math.min(BLOCK_SIZE, n - start);
+			int bits = width(values, start, count);
+			int mask = bits == 32 ? -1 : (1 << bits) - 1;
+			int exceptions = 0;
+			for (int i = start; i < start + count; i++) {
+				if ((values[i] & ~mask) != 0) {
+					exceptions++;
+				}
+			}
+			out.writeByte(bits);
+			out.writeByte(exceptions);
+			long acc = 0;
+			int filled = 0;
+			for (int i = start; i < start + count; i++) {
+				acc |= (long)(values[i] & mask) << filled;
+				filled += bits;
+				while (filled >= 8) {
+					out.writeByte((int)acc);
+					acc >>>= 8;
+					filled -= 8;
+				}
+			}
+			if (filled > 0) {
+				out.writeByte((int)acc);
+			}
+			for (int i = start; i < start + count; i++) {
+				if ((values[i] & ~mask) != 0) {
+					out.writeByte(i - start);
+					MappedIndex.writeVarint(out, values[i] >>> bits);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads values written by pack.
+	 */
+	private static void unpack(ByteBuffer b, int[] values, int n) {
+		for (int start = 0; start < n; start += BLOCK_SIZE) {
+			int count = Math.min(BLOCK_SIZE, n - start);
+			int bits = b.get() & 0xff;
+			int exceptions = b.get() & 0xff;
+			long mask = bits == 32 ? 0xffffffffL : (1L << bits) - 1;
+			long acc = 0;
+			int filled = 0;
+			for (int i = start; i < start + count; i++) {
+				while (filled < bits) {
+					acc |= (long)(b.get() & 0xff) << filled;
+					filled += 8;
+				}
+				values[i] = (int)(acc & mask);
+				acc >>>= bits;
+				filled -= bits;
+			}
+			for (int e = 0; e < exceptions; e++) {
+				int i = start + (b.get() & 0xff);
+				values[i] |= MappedIndex.readVarint(b) << bits;
+			}
+		}
+	}
+
+	/**
+	 * Returns the bit width that takes the fewest bytes for a block of values.
+	 */
+	private static int width(int[] values, int start, int count) {
+		// number of values that need each number of bits
+		int[] needed = new int[33];
+		for (int i = start; i < start + count; i++) {
+			needed[32 - Integer.numberOfLeadingZeros(values[i])]++;
+		}
+		int max = 32;
+		while (max > 0 && needed[max] == 0) {
+			max--;
+		}
+		int best = max;
+		long bestCost = ((long)count * max + 7) / 8;
+		for (int bits = max - 1; bits >= 0; bits--) {
+			// each exception costs its index, and a varint of its high bits (at most max - bits)
+			long cost = ((long)count * bits + 7) / 8;
+			for (int w = bits + 1; w <= max; w++) {
+				cost += needed[w] * (1 + (w - bits + 6) / 7);
+			}
+			if (cost < bestCost) {
+				best = bits;
+				bestCost = cost;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,174 @@
+package search;
+
+import java.util.ArrayList;
+
+/**
+ * This class evaluates phrase queries such as "white rabbit", which match documents in which
+ * the words of the phrase occur next to each other, in order. Words of the phrase that are
+ * not keywords (noise words, or words that fail the keyword test) are not indexed, so they
+ * match any word in their place: "queen of hearts" matches "queen" and "hearts" with one
+ * word between them.
+ *
+ * The documents that have all the keywords are found by walking the keywords' position
+ * lists (see PositionList) in ascending order of document id, leapfrogging between them
+ * with galloping search as BooleanQuery does. In each such document, the positions of the
+ * keywords are walked together, looking for a start at which every keyword is at its offset
+ * in the phrase, and the whole phrase, with any words that are not keywords at its ends,
+ * fits within the document. A document's score is the number of times the phrase occurs in it, and
+ * the top K documents are returned in descending order of score, with ties in favor of the
+ * document indexed first.
+ *
+ */
+class PhraseQuery {
+
+	/**
+	 * Keywords of the phrase in order, and the position of each in the phrase.
+	 */
+	private final ArrayList<String> keywords;
+	private final int[] offsets;
+
+	/**
+	 * Number of words in the phrase.
+	 */
+	private final int length;
+
+	private PhraseQuery(ArrayList<String> keywords, int[] offsets, int length) {
+		this.keywords = keywords;
+		this.offsets = offsets;
+		this.length = length;
+	}
+
+	/**
+	 * Parses a phrase, applying the engine's keyword test to each word.
+	 *
+	 * @param phrase Words of the phrase, separated by whitespace
+	 * @param engine Engine whose keyword test is applied
+	 * @return Parsed query
+	 * @throws IllegalArgumentException If no word of the phrase is a keyword
+	 */
+	static PhraseQuery parse(String phrase, LittleSearchEngine engine) {
+		String[] words = phrase.trim().split("\\s+");
+		ArrayList<String> keywords = new ArrayList<String>();
+		int[] offsets = new int[words.length];
+		for (int i = 0; i < words.length; i++) {
+			String kw = words[i].length() == 0 ? null : engine.getKeyWord(words[i]);
+			if (kw != null) {
+				offsets[keywords.size()] = i;
+				keywords.add(kw);
+			}
+		}
+		if (keywords.isEmpty()) {
+			throw new IllegalArgumentException("No keywords in phrase: " + phrase);
+		}
+		int[] used = new int[keywords.size()];
+		System.arraycopy(offsets, 0, used, 0, used.length);
+		return new PhraseQuery(keywords, used, words.length);
+	}
+
+	/**
+	 * Returns the keywords of this phrase, in order.
+	 *
+	 * @return Keywords
+	 */
+	ArrayList<String> keywords() {
+		return keywords;
+	}
+
+	/**
+	 * Returns the ids of the top k documents in which this phrase occurs.
+	 *
+	 * @param snapshot Snapshot of the position lists of this phrase's keywords
+	 * @param k Maximum number of documents
+	 * @return Document ids in descending order of the number of times the phrase occurs, at most k of them
+	 */
+	int[] search(IndexSnapshot snapshot, int k) {
+		int n = keywords.size();
+		PositionList[] lists = new PositionList[n];
+		int driver = 0;
+		for (int i = 0; i < n; i++) {
+			lists[i] = snapshot.positions(keywords.get(i));
+			if (lists[i] == null || lists[i].size() == 0) {
+				return new int[0];
+			}
+			// drive the walk from the shortest list
+			if (lists[i].size() < lists[driver].size()) {
+				driver = i;
+			}
+		}
+
+		TopDocs top = new TopDocs(k);
+		int[] pos = new int[n];
+		search:
+		while (pos[driver] < lists[driver].size()) {
+			int target = lists[driver].docs()[pos[driver]];
+			for (int i = 0; i < n; i++) {
+				if (i == driver) {
+					continue;
+				}
+				pos[i] = BooleanQuery.gallop(lists[i].docs(), pos[i], lists[i].size(), target);
+				if (pos[i] == lists[i].size()) {
+					break search;
+				}
+				int doc = lists[i].docs()[pos[i]];
+				if (doc > target) {
+					pos[driver] = BooleanQuery.gallop(lists[driver].docs(), pos[driver], lists[driver].size(), doc);
+					continue search;
+				}
+			}
+			if (snapshot.isVisible(target)) {
+				int count = count(lists, pos, snapshot.documents.words(target));
+				if (count > 0) {
+					top.offer(target, count);
+				}
+			}
+			pos[driver]++;
+		}
+		return top.docs();
+	}
+
+	/**
+	 * Returns the number of times the phrase occurs in a document that has all its keywords.
+	 * An occurrence must start at or after the first word of the document, and end at or
+	 * before its last word.
+	 *
+	 * @param lists Position lists of the keywords
+	 * @param pos Index of the document in each list
+	 * @param words Number of words in the document, or 0 if it is not known
+	 * @return Number of occurrences of the phrase
+	 */
+	private int count(PositionList[] lists, int[] pos, int words) {
+		int n = lists.length;
+		int[][] positions = new int[n][];
+		for (int i = 0; i < n; i++) {
+			positions[i] = lists[i].positions(pos[i]);
+		}
+		// walk the starts of the phrase, as given by the first keyword, keeping a cursor
+		// into each other keyword's positions
+		int[] at = new int[n];
+		int count = 0;
+		starts:
+		for (int p : positions[0]) {
+			int start = p - offsets[0];
+			if (start < 0) {
+				continue;
+			}
+			if (words > 0 && start + length > words) {
+				break;
+			}
+			for (int i = 1; i < n; i++) {
+				int want = start + offsets[i];
+				while (at[i] < positions[i].length && positions[i][at[i]] < want) {
+					at[i]++;
+				}
+				if (at[i] == positions[i].length) {
+					break starts;
+				}
+				if (positions[i][at[i]] != want) {
+					continue starts;
+				}
+			}
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,168 @@
+package search;
+
+/**
+ * This class is the list of positions of a keyword in each document it occurs in, in
+ * ascending order of document id (which is the order in which documents are merged).
+ * The positions in a document are delta-encoded (the first position, then the gap from
+ * each position to the next) as varints, and the encoded positions of all the documents
+ * are kept in one byte array, so a list costs little more than the postings themselves.
+ *
+ * A list is never changed once it has been created. Adding a document returns a new list,
+ * which shares the arrays of the old one when they have room: the new entry is written past
+ * the end of the old list, where its readers never look. So a list can be read by any number
+ * of threads while a single writer adds to it.
+ *
+ */
+class PositionList {
+
+	/**
+	 * The list with no documents.
+	 */
+	static final PositionList EMPTY = new PositionList(new int[0], new int[0], new byte[0], 0);
+
+	/**
+	 * Document ids, and the end of each document's positions in data (each starts where the
+	 * previous one ends); entries 0..size-1 are in use.
+	 */
+	private final int[] docs;
+	private final int[] ends;
+	private final byte[] data;
+	private final int size;
+
+	private PositionList(int[] docs, int[] ends, byte[] data, int size) {
+		this.docs = docs;
+		this.ends = ends;
+		this.data = data;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the number of documents in this list.
+	 *
+	 * @return Number of documents
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the document ids of this list, in ascending order. Only the first size()
+	 * entries are in use, and the array must not be changed.
+	 *
+	 * @return Document ids
+	 */
+	int[] docs() {
+		return docs;
+	}
+
+	/**
+	 * Returns this list with the positions of a document added at the end.
+	 *
+	 * @param doc Document id, greater than all those in this list
+	 * @param positions Positions of the keyword in the document, in ascending order
+	 * @param count Number of positions
+	 * @return New list
+	 */
+	PositionList add(int doc, int[] positions, int count) {
+		int[] newDocs = docs;
+		int[] newEnds = ends;
+		byte[] newData = data;
+		if (size == docs.length) {
+			int capacity = size + (size >> 1) + 1;
+			newDocs = new int[capacity];
+			newEnds = new int[capacity];
+			System.arraycopy(docs, 0, newDocs, 0, size);
+			System.arraycopy(ends, 0, newEnds, 0, size);
+		}
+		int start = size == 0 ? 0 : ends[size-1];
+		// a varint of an int takes at most 5 bytes
+		if (start + 5 * count > data.length) {
+			newData = new byte[Math.max(data.length + (data.length >> 1), start + 5 * count)];
+			System.arraycopy(data, 0, newData, 0, start);
+		}
+		int end = start;
+		int prev = 0;
+		for (int i = 0; i < count; i++) {
+			int gap = positions[i] - prev;
+			prev = positions[i];
+			while ((gap & ~0x7f) != 0) {
+				newData[end++] = (byte)((gap & 0x7f) | 0x80);
+				gap >>>= 7;
+			}
+			newData[end++] = (byte)gap;
+		}
+		newDocs[size] = doc;
+		newEnds[size] = end;
+		return new PositionList(newDocs, newEnds, newData, size + 1);
+	}
+
+	/**
+	 * Returns the positions of the i-th document of this list.
+	 *
+	 * @param i Index of the document in this list
+	 * @return Positions, in ascending order
+	 */
+	int[] positions(int i) {
+		int p = i == 0 ? 0 : ends[i-1];
+		int end = ends[i];
+		int[] positions = new int[end - p];
+		int n = 0;
+		int position = 0;
+		while (p < end) {
+			int gap = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[p++];
+				gap |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			position += gap;
+			positions[n++] = position;
+		}
+		if (n < positions.length) {
+			int[] exact = new int[n];
+			System.arraycopy(positions, 0, exact, 0, n);
+			positions = exact;
+		}
+		return positions;
+	}
+
+	/**
+	 * Returns this list without the documents removed by a version of the documents table.
+	 * The list itself is not changed.
+	 *
+	 * @param documents Table that tells which documents are removed
+	 * @param version Version of the documents table
+	 * @return This list if it has no removed documents, otherwise a new list
+	 */
+	PositionList withoutRemoved(DocumentTable documents, int version) {
+		int live = 0;
+		int bytes = 0;
+		for (int i = 0; i < size; i++) {
+			if (!documents.isRemoved(docs[i], version)) {
+				live++;
+				bytes += ends[i] - (i == 0 ? 0 : ends[i-1]);
+			}
+		}
+		if (live == size) {
+			return this;
+		}
+		int[] newDocs = new int[live];
+		int[] newEnds = new int[live];
+		byte[] newData = new byte[bytes];
+		int n = 0;
+		int end = 0;
+		for (int i = 0; i < size; i++) {
+			if (!documents.isRemoved(docs[i], version)) {
+				int start = i == 0 ? 0 : ends[i-1];
+				System.arraycopy(data, start, newData, end, ends[i] - start);
+				end += ends[i] - start;
+				newDocs[n] = docs[i];
+				newEnds[n] = end;
+				n++;
+			}
+		}
+		return new PositionList(newDocs, newEnds, newData, live);
+	}
+}
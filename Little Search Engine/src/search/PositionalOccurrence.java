@@ -0,0 +1,58 @@
+package search;
+
+/**
+ * This class is an occurrence of a keyword that also records where in the document the
+ * keyword occurs. A position is the index of a word among all the words of the document
+ * (counting noise words and words that are not keywords), starting from 0. Tokenizers
+ * create these instead of plain occurrences once positions are enabled (see
+ * LittleSearchEngine.enablePositions).
+ *
+ */
+class PositionalOccurrence extends Occurrence {
+
+	/**
+	 * Positions of the keyword, in ascending order; the first frequency entries are in use.
+	 */
+	int[] positions;
+
+	/**
+	 * Number of words in the document, which the tokenizer sets once it has scanned it.
+	 */
+	int words;
+
+	/**
+	 * Initializes an occurrence at the given position.
+	 *
+	 * @param doc Document name
+	 * @param position Position of the first occurrence
+	 */
+	PositionalOccurrence(String doc, int position) {
+		super(doc, 1);
+		positions = new int[4];
+		positions[0] = position;
+	}
+
+	/**
+	 * Counts another occurrence of the keyword, at a later position.
+	 *
+	 * @param position Position of the occurrence
+	 */
+	void add(int position) {
+		if (frequency == positions.length) {
+			int[] bigger = new int[positions.length * 2];
+			System.arraycopy(positions, 0, bigger, 0, frequency);
+			positions = bigger;
+		}
+		positions[frequency++] = position;
+	}
+
+	/**
+	 * Returns the number of words in the document of an occurrence.
+	 *
+	 * @param occ Occurrence of a keyword
+	 * @return Number of words, or 0 if the occurrence was not loaded with positions
+	 */
+	static int words(Occurrence occ) {
+		return occ instanceof PositionalOccurrence ? ((PositionalOccurrence)occ).words : 0;
+	}
+}
@@ -0,0 +1,281 @@
+package search;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class encodes posting lists in index and segment files (see MappedIndex). A list is
+ * in descending order of frequency, so it can be written as runs of postings with the same
+ * frequency: for each run, the frequency (the first one, then the decrease from the previous
+ * run), and the number of postings in the run. Within a run, postings are almost always in
+ * ascending order of document id, since ties are listed in the order documents were merged;
+ * the ids of such a run are a sorted set, which each codec compresses in its own way. The
+ * ids of a run that is not in order are written as plain varints, so that a list reads back
+ * exactly as it was written.
+ *
+ * The list of a frequent keyword is spread over many short runs, whose ids are far apart.
+ * When all its runs are in order, such a list is smaller written the other way: the set of
+ * all its document ids, which is dense, then their frequencies in the same order. Reading
+ * it back takes a sort, which restores the runs exactly. Each list is written in whichever
+ * layout is smaller, recorded in the low bit of its varint postings count.
+ *
+ * The codec of an index is chosen with LittleSearchEngine.setPostingCodec, and is recorded
+ * in the header of each file written with it.
+ *
+ */
+abstract class PostingCodec {
+
+	/**
+	 * Varints of the gaps between document ids.
+	 */
+	static final PostingCodec VARINT = new VarintCodec();
+
+	/**
+	 * Gaps between document ids, bit-packed in blocks with exceptions (see PForDeltaCodec).
+	 */
+	static final PostingCodec PFOR = new PForDeltaCodec();
+
+	/**
+	 * Document ids in array, bitmap and run containers (see RoaringCodec).
+	 */
+	static final PostingCodec ROARING = new RoaringCodec();
+
+	private static final PostingCodec[] CODECS = { VARINT, PFOR, ROARING };
+
+	/**
+	 * Layouts of a list: runs of postings with the same frequency, or all document ids
+	 * followed by their frequencies.
+	 */
+	private static final int RUNS = 0;
+	private static final int BY_DOC = 1;
+
+	/**
+	 * Number of this codec in file headers, and its name.
+	 */
+	final int id;
+	final String name;
+
+	PostingCodec(int id, String name) {
+		this.id = id;
+		this.name = name;
+	}
+
+	/**
+	 * Returns the codec with the given name.
+	 *
+	 * @param name Name of the codec: "varint", "pfor" or "roaring"
+	 * @return Codec
+	 * @throws IllegalArgumentException If there is no codec with the name
+	 */
+	static PostingCodec forName(String name) {
+		for (PostingCodec codec : CODECS) {
+			if (codec.name.equals(name)) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("Unknown posting codec: " + name);
+	}
+
+	/**
+	 * Returns the codec with the given number.
+	 *
+	 * @param id Number of the codec in a file header
+	 * @return Codec, or null if there is no codec with the number
+	 */
+	static PostingCodec forId(int id) {
+		for (PostingCodec codec : CODECS) {
+			if (codec.id == id) {
+				return codec;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes a posting list, in whichever layout is smaller: as runs of postings with the
+	 * same frequency, or (if the ties in every run are in order) as the set of all its
+	 * document ids followed by their frequencies in the same order.
+	 *
+	 * @param postings Postings, in descending order of frequency
+	 * @param out Output to write to
+	 * @throws IOException If the output cannot be written
+	 */
+	void write(PostingList postings, DataOutput out)
+	throws IOException {
+		int n = postings.size();
+		ByteArrayOutputStream runs = new ByteArrayOutputStream();
+		boolean inOrder = writeRuns(postings, new DataOutputStream(runs));
+		ByteArrayOutputStream byDoc = null;
+		if (inOrder && n > 1) {
+			// sorted here rather than with PostingList.docOrder, which would keep the copy
+			long[] pairs = new long[n];
+			for (int i = 0; i < n; i++) {
+				pairs[i] = ((long)postings.doc(i) << 32) | postings.frequency(i);
+			}
+			Arrays.sort(pairs);
+			int[] docs = new int[n];
+			int[] freqs = new int[n];
+			for (int i = 0; i < n; i++) {
+				docs[i] = (int)(pairs[i] >>> 32);
+				freqs[i] = (int)pairs[i];
+			}
+			byDoc = new ByteArrayOutputStream();
+			DataOutputStream docOut = new DataOutputStream(byDoc);
+			encode(docs, n, docOut);
+			encodeFrequencies(freqs, n, docOut);
+		}
+		if (byDoc != null && byDoc.size() < runs.size()) {
+			MappedIndex.writeVarint(out, n << 1 | BY_DOC);
+			out.write(byDoc.toByteArray());
+		} else {
+			MappedIndex.writeVarint(out, n << 1 | RUNS);
+			out.write(runs.toByteArray());
+		}
+	}
+
+	/**
+	 * Writes a posting list as runs of postings with the same frequency.
+	 *
+	 * @return True if the document ids of every run are in ascending order
+	 */
+	private boolean writeRuns(PostingList postings, DataOutputStream out)
+	throws IOException {
+		int n = postings.size();
+		int[] run = new int[n];
+		boolean inOrder = true;
+		int prev = 0;
+		int i = 0;
+		while (i < n) {
+			int freq = postings.frequency(i);
+			boolean ascending = true;
+			int end = i;
+			do {
+				run[end - i] = postings.doc(end);
+				ascending &= end == i || run[end - i] > run[end - i - 1];
+				end++;
+			} while (end < n && postings.frequency(end) == freq);
+			int length = end - i;
+			MappedIndex.writeVarint(out, i == 0 ? freq : prev - freq);
+			MappedIndex.writeVarint(out, length << 1 | (ascending ? 1 : 0));
+			if (ascending) {
+				encode(run, length, out);
+			} else {
+				for (int j = 0; j < length; j++) {
+					MappedIndex.writeVarint(out, run[j]);
+				}
+			}
+			inOrder &= ascending;
+			prev = freq;
+			i = end;
+		}
+		out.flush();
+		return inOrder;
+	}
+
+	/**
+	 * Reads a posting list written by write.
+	 *
+	 * @param b Buffer positioned at the list, which is left positioned after it
+	 * @return Postings, in descending order of frequency
+	 */
+	PostingList read(ByteBuffer b) {
+		int header = MappedIndex.readVarint(b);
+		int n = header >>> 1;
+		PostingList postings = new PostingList(n);
+		int[] docs = new int[n];
+		if ((header & 1) == BY_DOC) {
+			int[] freqs = new int[n];
+			decode(b, docs, n);
+			decodeFrequencies(b, freqs, n);
+			for (int i = 0; i < n; i++) {
+				postings.add(docs[i], freqs[i]);
+			}
+			// the sort is stable, so ties stay in order of document id, as they were written
+			postings.sort();
+			postings.useDocOrder(new PostingList.DocOrder(docs, freqs, n));
+			return postings;
+		}
+		int freq = 0;
+		int i = 0;
+		while (i < n) {
+			int gap = MappedIndex.readVarint(b);
+			freq = i == 0 ? gap : freq - gap;
+			int runHeader = MappedIndex.readVarint(b);
+			int length = runHeader >>> 1;
+			if ((runHeader & 1) != 0) {
+				decode(b, docs, length);
+			} else {
+				for (int j = 0; j < length; j++) {
+					docs[j] = MappedIndex.readVarint(b);
+				}
+			}
+			for (int j = 0; j < length; j++) {
+				postings.add(docs[j], freq);
+			}
+			i += length;
+		}
+		return postings;
+	}
+
+	/**
+	 * Returns the number of postings in a list written by write, without reading them.
+	 *
+	 * @param b Buffer positioned at the list
+	 * @return Number of postings
+	 */
+	int count(ByteBuffer b) {
+		return MappedIndex.readVarint(b) >>> 1;
+	}
+
+	/**
+	 * Writes frequencies (all at least 1), as varints unless a codec packs them better.
+	 *
+	 * @param freqs Frequencies
+	 * @param n Number of frequencies
+	 * @param out Output to write to
+	 * @throws IOException If the output cannot be written
+	 */
+	void encodeFrequencies(int[] freqs, int n, DataOutput out)
+	throws IOException {
+		for (int i = 0; i < n; i++) {
+			MappedIndex.writeVarint(out, freqs[i]);
+		}
+	}
+
+	/**
+	 * Reads frequencies written by encodeFrequencies.
+	 *
+	 * @param b Buffer positioned at the frequencies, which is left positioned after them
+	 * @param freqs Array to read the frequencies into
+	 * @param n Number of frequencies
+	 */
+	void decodeFrequencies(ByteBuffer b, int[] freqs, int n) {
+		for (int i = 0; i < n; i++) {
+			freqs[i] = MappedIndex.readVarint(b);
+		}
+	}
+
+	/**
+	 * Writes a set of document ids.
+	 *
+	 * @param docs Document ids, in ascending order with no repeats
+	 * @param n Number of ids
+	 * @param out Output to write to
+	 * @throws IOException If the output cannot be written
+	 */
+	abstract void encode(int[] docs, int n, DataOutput out)
+	throws IOException;
+
+	/**
+	 * Reads a set of document ids written by encode.
+	 *
+	 * @param b Buffer positioned at the ids, which is left positioned after them
+	 * @param docs Array to read the ids into
+	 * @param n Number of ids
+	 */
+	abstract void decode(ByteBuffer b, int[] docs, int n);
+}
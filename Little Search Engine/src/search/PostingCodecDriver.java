@@ -0,0 +1,91 @@
+package search;
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the posting codecs (see PostingCodec) on a corpus. The corpus is indexed, and every
+ * posting list is encoded with each codec. For each codec the driver reports the bytes per
+ * posting over all lists and over the lists of the most frequent keywords, how many times
+ * smaller those lists are than uncompressed (a 4-byte document id and a 4-byte frequency per
+ * posting, as PostingList holds them), and how many postings per second it decodes.
+ *
+ * Usage: PostingCodecDriver [docsFile] [noiseWordsFile] [frequentKeywords]
+ */
+public class PostingCodecDriver {
+
+	private static final String[] CODECS = { "varint", "pfor", "roaring" };
+
+	/**
+	 * Sum of decoded postings, so that decoding cannot be optimized away.
+	 */
+	static long sink;
+
+	public static void main(String[] args) throws IOException {
+		String docsFile = args.length > 0 ? args[0] : "docs.txt";
+		String noiseWordsFile = args.length > 1 ? args[1] : "noisewords.txt";
+		int frequent = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		LittleSearchEngine engine = new LittleSearchEngine();
+		engine.makeIndex(docsFile, noiseWordsFile);
+		ArrayList<PostingList> lists = new ArrayList<PostingList>(engine.keywordsIndex.values());
+		Collections.sort(lists, new Comparator<PostingList>() {
+			public int compare(PostingList a, PostingList b) {
+				return b.size() - a.size();
+			}
+		});
+		frequent = Math.min(frequent, lists.size());
+		long postings = 0;
+		long frequentPostings = 0;
+		for (int i = 0; i < lists.size(); i++) {
+			postings += lists.get(i).size();
+			if (i < frequent) {
+				frequentPostings += lists.get(i).size();
+			}
+		}
+		System.out.println(engine.documents.size() + " documents, " + lists.size() + " keywords, "
+			+ postings + " postings; the " + frequent + " most frequent keywords have "
+			+ frequentPostings + " postings");
+		System.out.printf("%-10s %14s %14s %12s %16s%n",
+			"codec", "bytes/posting", "frequent", "shrink", "postings/s");
+
+		for (String name : CODECS) {
+			PostingCodec codec = PostingCodec.forName(name);
+			byte[][] encoded = new byte[lists.size()][];
+			long bytes = 0;
+			long frequentBytes = 0;
+			for (int i = 0; i < lists.size(); i++) {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(buffer);
+				codec.write(lists.get(i), out);
+				out.close();
+				encoded[i] = buffer.toByteArray();
+				bytes += encoded[i].length;
+				if (i < frequent) {
+					frequentBytes += encoded[i].length;
+				}
+			}
+
+			// decode all lists for about a second, after a warmup pass of the same length
+			double rate = 0;
+			for (int pass = 0; pass < 2; pass++) {
+				long decoded = 0;
+				long start = System.nanoTime();
+				long elapsed;
+				do {
+					for (byte[] list : encoded) {
+						PostingList read = codec.read(ByteBuffer.wrap(list));
+						sink += read.size() > 0 ? read.doc(read.size() - 1) : 0;
+						decoded += read.size();
+					}
+					elapsed = System.nanoTime() - start;
+				} while (elapsed < 1000000000L);
+				rate = decoded * 1e9 / elapsed;
+			}
+
+			System.out.printf("%-10s %14.3f %14.3f %11.1fx %16.0f%n", name,
+				(double)bytes / postings, (double)frequentBytes / frequentPostings,
+				8.0 * frequentPostings / frequentBytes, rate);
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This class is the list of occurrences of a keyword, stored as parallel arrays of document
+ * ids and frequencies instead of Occurrence objects. Like the occurrence lists it replaces,
+ * it is kept in descending order of frequency.
+ *
+ * A list is not thread-safe. When the engine allows concurrent reads, a list is never changed
+ * once readers can see it; writers change a copy and put it in the index in its place.
+ *
+ */
+class PostingList {
+
+	/**
+	 * Document ids (see DocumentTable) and frequencies; entries 0..size-1 are in use.
+	 */
+	private int[] docs;
+	private int[] freqs;
+	private int size;
+
+	/**
+	 * The same postings in ascending order of document id, built when first needed
+	 * for boolean queries, and dropped when the list changes.
+	 */
+	private DocOrder docOrder;
+
+	/**
+	 * Length of the shortest document in the list, computed when first needed for BM25
+	 * (see minLength), or 0 if it has not been computed since the list changed.
+	 */
+	private int minLength;
+
+	/**
+	 * Postings of a list in ascending order of document id. Only the first size entries
+	 * of the arrays are used.
+	 */
+	static class DocOrder {
+		final int[] docs;
+		final int[] freqs;
+		final int size;
+
+		DocOrder(int[] docs, int[] freqs, int size) {
+			this.docs = docs;
+			this.freqs = freqs;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Initializes an empty posting list.
+	 */
+	PostingList() {
+		this(2);
+	}
+
+	/**
+	 * Initializes an empty posting list with the given capacity.
+	 *
+	 * @param capacity Initial capacity
+	 */
+	PostingList(int capacity) {
+		docs = new int[Math.max(capacity, 1)];
+		freqs = new int[docs.length];
+		size = 0;
+	}
+
+	/**
+	 * Returns a copy of this list, with room for one more posting.
+	 *
+	 * @return Copy of this list
+	 */
+	PostingList copy() {
+		PostingList copy = new PostingList(size + 1);
+		System.arraycopy(docs, 0, copy.docs, 0, size);
+		System.arraycopy(freqs, 0, copy.freqs, 0, size);
+		copy.size = size;
+		return copy;
+	}
+
+	/**
+	 * Returns the number of postings in this list.
+	 *
+	 * @return Number of postings
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the document id of the i-th posting.
+	 *
+	 * @param i Posting index
+	 * @return Document id
+	 */
+	int doc(int i) {
+		return docs[i];
+	}
+
+	/**
+	 * Returns the frequency of the i-th posting.
+	 *
+	 * @param i Posting index
+	 * @return Frequency
+	 */
+	int frequency(int i) {
+		return freqs[i];
+	}
+
+	/**
+	 * Appends a posting at the end of this list, without regard to order.
+	 *
+	 * @param doc Document id
+	 * @param freq Frequency
+	 */
+	void add(int doc, int freq) {
+		if (size == docs.length) {
+			int capacity = size + (size >> 1) + 1;
+			int[] newDocs = new int[capacity];
+			int[] newFreqs = new int[capacity];
+			System.arraycopy(docs, 0, newDocs, 0, size);
+			System.arraycopy(freqs, 0, newFreqs, 0, size);
+			docs = newDocs;
+			freqs = newFreqs;
+		}
+		docs[size] = doc;
+		freqs[size] = freq;
+		size++;
+		docOrder = null;
+		minLength = 0;
+	}
+
+	/**
+	 * Inserts the last posting in the correct position in this list, based on descending
+	 * frequencies. The postings 0..size-2 are already in order. The posting goes after all
+	 * those with the same frequency, found by binary search, so a list built one insert at
+	 * a time keeps ties in the order they were added, as sort does.
+	 */
+	void insertLast() {
+		int n = size;
+		int low = 0;
+		int high = n-1;
+		int target = freqs[n-1];
+
+		// find the first of postings 0..n-2 with a lower frequency, or n-1 if there is none
+		while (low < high) {
+			int mid = (high + low) >>> 1;
+			if (freqs[mid] >= target) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		int spot = low;
+		if (spot < n-1) {
+			int doc = docs[n-1];
+			System.arraycopy(docs, spot, docs, spot+1, n-1-spot);
+			System.arraycopy(freqs, spot, freqs, spot+1, n-1-spot);
+			docs[spot] = doc;
+			freqs[spot] = target;
+		}
+	}
+
+	/**
+	 * Sorts this list in descending order of frequency, in one pass instead of one insertLast
+	 * per posting. The sort is stable, so postings with the same frequency keep their order:
+	 * postings appended with add in document order end up in document order on ties, after
+	 * any postings the list already held in sorted order.
+	 */
+	void sort() {
+		int n = size;
+		int i = 1;
+		while (i < n && freqs[i-1] >= freqs[i]) {
+			i++;
+		}
+		if (i >= n) {
+			return;
+		}
+		// the position in the low bits makes every key distinct, which makes the sort stable
+		long[] keys = new long[n];
+		for (i = 0; i < n; i++) {
+			keys[i] = ((long)(Integer.MAX_VALUE - freqs[i]) << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] sortedDocs = new int[docs.length];
+		int[] sortedFreqs = new int[docs.length];
+		for (i = 0; i < n; i++) {
+			int from = (int)keys[i];
+			sortedDocs[i] = docs[from];
+			sortedFreqs[i] = freqs[from];
+		}
+		docs = sortedDocs;
+		freqs = sortedFreqs;
+		docOrder = null;
+	}
+
+	/**
+	 * Gives this list its postings in ascending order of document id, when they are already
+	 * known: decoded from a list written in that order, or kept from an earlier read of the
+	 * same list (see MappedIndex.get). The list is not changed.
+	 *
+	 * @param order The same postings as this list, in ascending order of document id
+	 */
+	void useDocOrder(DocOrder order) {
+		docOrder = order;
+	}
+
+	/**
+	 * Returns the length of the shortest document in this list, which bounds the BM25 score
+	 * any of its postings can have (see BM25Search). A length shorter than the frequency,
+	 * which means it is not known, counts as the frequency. The result is computed the first
+	 * time it is needed, and is safe to share between threads.
+	 *
+	 * @param documents Table of the lengths of the documents that the ids refer to
+	 * @return Shortest length, at least 1
+	 */
+	int minLength(DocumentTable documents) {
+		int min = minLength;
+		if (min != 0) {
+			return min;
+		}
+		min = Integer.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			min = Math.min(min, Math.max(freqs[i], documents.length(docs[i])));
+		}
+		min = size == 0 ? 1 : min;
+		minLength = min;
+		return min;
+	}
+
+	/**
+	 * Returns this list without the postings of documents removed by a version of the
+	 * documents table, keeping the rest in order. The list itself is not changed.
+	 *
+	 * @param documents Table that tells which documents are removed
+	 * @param version Version of the documents table
+	 * @return This list if it has no postings of removed documents, otherwise a new list
+	 */
+	PostingList withoutRemoved(DocumentTable documents, int version) {
+		int live = 0;
+		for (int i = 0; i < size; i++) {
+			if (!documents.isRemoved(docs[i], version)) {
+				live++;
+			}
+		}
+		if (live == size) {
+			return this;
+		}
+		PostingList compacted = new PostingList(live);
+		for (int i = 0; i < size; i++) {
+			if (!documents.isRemoved(docs[i], version)) {
+				compacted.add(docs[i], freqs[i]);
+			}
+		}
+		return compacted;
+	}
+
+	/**
+	 * Merges posting lists of the same keyword over disjoint sets of documents into one
+	 * list in descending order of frequency. Postings with the same frequency are taken
+	 * from the earlier list first, and keep their order within a list.
+	 *
+	 * @param lists Posting lists, each in descending order of frequency
+	 * @return Merged list
+	 */
+	static PostingList merge(PostingList[] lists) {
+		int total = 0;
+		for (PostingList list : lists) {
+			total += list.size;
+		}
+		PostingList merged = new PostingList(total);
+		int[] pos = new int[lists.length];
+		for (int n = 0; n < total; n++) {
+			int best = -1;
+			for (int l = 0; l < lists.length; l++) {
+				if (pos[l] < lists[l].size
+						&& (best < 0 || lists[l].freqs[pos[l]] > lists[best].freqs[pos[best]])) {
+					best = l;
+				}
+			}
+			merged.add(lists[best].docs[pos[best]], lists[best].freqs[pos[best]]);
+			pos[best]++;
+		}
+		return merged;
+	}
+
+	/**
+	 * Returns the postings of this list in ascending order of document id. The result is
+	 * built the first time it is needed, and is safe to share between threads.
+	 *
+	 * @return Postings in ascending order of document id
+	 */
+	DocOrder docOrder() {
+		DocOrder order = docOrder;
+		if (order != null) {
+			return order;
+		}
+		long[] pairs = new long[size];
+		for (int i = 0; i < size; i++) {
+			pairs[i] = ((long)docs[i] << 32) | (freqs[i] & 0xffffffffL);
+		}
+		Arrays.sort(pairs);
+		int[] byDoc = new int[size];
+		int[] byDocFreqs = new int[size];
+		for (int i = 0; i < size; i++) {
+			byDoc[i] = (int)(pairs[i] >>> 32);
+			byDocFreqs[i] = (int)pairs[i];
+		}
+		order = new DocOrder(byDoc, byDocFreqs, size);
+		docOrder = order;
+		return order;
+	}
+
+	/**
+	 * Returns the postings of documents that are visible in a version of the documents
+	 * table as Occurrence objects.
+	 *
+	 * @param documents Table of the document names that the ids refer to
+	 * @param version Version of the documents table
+	 * @return List of occurrences, in the same order as this list
+	 */
+	ArrayList<Occurrence> toOccurrences(DocumentTable documents, int version) {
+		ArrayList<Occurrence> occs = new ArrayList<Occurrence>(size);
+		for (int i = 0; i < size; i++) {
+			if (documents.isVisible(docs[i], version)) {
+				occs.add(new Occurrence(documents.name(docs[i]), freqs[i]));
+			}
+		}
+		return occs;
+	}
+}
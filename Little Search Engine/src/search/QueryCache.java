@@ -0,0 +1,238 @@
+package search;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is a bounded cache of top-K search results, keyed on the normalized query
+ * (k and the lower case keywords, in order). When it is full, a result that has not been
+ * used since the clock hand last passed it is evicted (the CLOCK approximation of least
+ * recently used). The results for a keyword's queries are invalidated when documents
+ * with the keyword are merged, and the whole cache is cleared when documents are removed,
+ * since the index does not keep the keywords of each document.
+ *
+ * Searches take no lock: results are kept in a ConcurrentHashMap, a hit only sets the
+ * entry's reference bit, and one thread at a time evicts while the others go on. Writers,
+ * which hold the engine's lock, invalidate by looking through the cached entries.
+ *
+ * Once the cache is full, a result is only cached the second time its query misses within
+ * a while (a doorkeeper, as in TinyLFU), so that queries seen once, which are most of the
+ * misses when queries seldom repeat, cost a lookup and not an insertion and an eviction each.
+ *
+ * A search reads the generation before it takes its snapshot, and its result is only
+ * cached if nothing was invalidated meanwhile, so a result computed from an older
+ * snapshot never outlives an invalidation.
+ *
+ */
+class QueryCache {
+
+	/**
+	 * A cached result, and the keywords of its query.
+	 */
+	static class Entry {
+		final String[] keywords;
+
+		/**
+		 * Document names, or null if no document matched.
+		 */
+		final ArrayList<String> result;
+
+		/**
+		 * Set when the entry is used, and cleared when the clock hand passes it.
+		 */
+		volatile boolean referenced;
+
+		Entry(String[] keywords, ArrayList<String> result) {
+			this.keywords = keywords;
+			this.result = result;
+		}
+	}
+
+	private final int capacity;
+
+	/**
+	 * Cached results.
+	 */
+	private final ConcurrentHashMap<String,Entry> entries;
+
+	/**
+	 * Hashes of queries that have missed once, each in the slot its hash picks. Threads may
+	 * overwrite each other's hashes, which only means a query waits for one more miss.
+	 */
+	private final int[] seen;
+
+	/**
+	 * Clock hand over the entries, used by the thread that holds evicting.
+	 */
+	private Iterator<Map.Entry<String,Entry>> hand;
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	/**
+	 * Number of invalidations so far.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Initializes an empty cache.
+	 *
+	 * @param capacity Maximum number of cached results
+	 */
+	QueryCache(int capacity) {
+		this.capacity = capacity;
+		entries = new ConcurrentHashMap<String,Entry>(Math.max(16, capacity * 2));
+		seen = new int[Integer.highestOneBit(Math.max(1, capacity)) * 4];
+	}
+
+	/**
+	 * Returns the normalized form of a query. Each keyword follows its length, so that
+	 * keywords with spaces in them cannot make two different queries look the same.
+	 *
+	 * @param k Maximum number of documents in the result
+	 * @param keywords Keywords (lower case)
+	 * @return Cache key
+	 */
+	static String key(int k, String[] keywords) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(k);
+		for (String kw : keywords) {
+			sb.append(' ').append(kw.length()).append(':').append(kw);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Looks up a query, counting a hit or a miss.
+	 *
+	 * @param key Normalized query
+	 * @return Cached entry, or null if the query is not cached
+	 */
+	Entry get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+			if (!entry.referenced) {
+				// only written when it changes, so hits on a popular entry do not contend for it
+				entry.referenced = true;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the current generation, to be passed to put.
+	 *
+	 * @return Generation
+	 */
+	long generation() {
+		return generation.get();
+	}
+
+	/**
+	 * Caches a copy of the result of a query, if the cache has room or the query has missed
+	 * before, and the cache has not been invalidated since the given generation was read.
+	 *
+	 * @param key Normalized query
+	 * @param keywords Keywords of the query (lower case)
+	 * @param result Document names, or null if no document matched
+	 * @param generation Generation read before the search
+	 */
+	void put(String key, String[] keywords, ArrayList<String> result, long generation) {
+		if (capacity == 0 || generation != this.generation.get()) {
+			return;
+		}
+		if (entries.size() >= capacity) {
+			int hash = key.hashCode();
+			int slot = (hash ^ (hash >>> 16)) & (seen.length - 1);
+			if (seen[slot] != hash) {
+				seen[slot] = hash;
+				return;
+			}
+		}
+		// callers may change the list they get, so the cache keeps its own
+		Entry entry = new Entry(keywords, result == null ? null : new ArrayList<String>(result));
+		if (entries.putIfAbsent(key, entry) != null) {
+			return;
+		}
+		if (generation != this.generation.get()) {
+			// an invalidation may have looked through the entries before this one was added
+			entries.remove(key, entry);
+			return;
+		}
+		if (entries.size() > capacity) {
+			evict();
+		}
+	}
+
+	/**
+	 * Evicts entries until the cache is within its capacity, unless another thread is
+	 * already doing so.
+	 */
+	private void evict() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			while (entries.size() > capacity) {
+				if (hand == null || !hand.hasNext()) {
+					hand = entries.entrySet().iterator();
+					if (!hand.hasNext()) {
+						return;
+					}
+				}
+				Map.Entry<String,Entry> e = hand.next();
+				Entry entry = e.getValue();
+				if (entry.referenced) {
+					entry.referenced = false;
+				} else {
+					entries.remove(e.getKey(), entry);
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * Drops the results of all queries with any of the given keywords.
+	 *
+	 * @param keywords Keywords whose postings have changed (lower case)
+	 */
+	void invalidate(Collection<String> keywords) {
+		generation.incrementAndGet();
+		if (entries.isEmpty()) {
+			return;
+		}
+		for (Map.Entry<String,Entry> e : entries.entrySet()) {
+			for (String kw : e.getValue().keywords) {
+				if (keywords.contains(kw)) {
+					entries.remove(e.getKey(), e.getValue());
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops all cached results.
+	 */
+	void clear() {
+		generation.incrementAndGet();
+		entries.clear();
+	}
+
+	long hits() {
+		return hits.sum();
+	}
+
+	long misses() {
+		return misses.sum();
+	}
+}
@@ -0,0 +1,234 @@
+package search;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for QueryServer. It indexes a docs file (for the keywords to query), starts
+ * a server on it in this process, or uses one already running on the given port, and opens
+ * many connections to it over loopback. Each connection sends a two keyword query, waits
+ * for the response and sends the next one at once, so there are as many requests in flight
+ * as connections. The connections are driven by a few selector threads, like the server's. After a warmup, it counts responses for some seconds, and
+ * prints the throughput, the share of requests turned away BUSY, and percentiles of the
+ * latency of each request (from when it was written to when its response was read).
+ *
+ * Every connection is a file descriptor at each end, so 10000 connections to a server in the
+ * same process need a limit of more than 20000 open files (ulimit -n); with the server in
+ * a process of its own, each process needs a little over 10000.
+ *
+ * Usage: QueryLoadDriver [docs=docsFile] [noise=noiseWordsFile] [connections=10000] [seconds=10]
+ *        [warmup=3] [clients=threads] [port=serverPort] [concurrency=threads] [queue=limit] [k=5]
+ */
+public class QueryLoadDriver {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A connection and the request it has in flight.
+	 */
+	private static class Client {
+		final SocketChannel channel;
+		ByteBuffer request;
+		long sent;
+
+		/**
+		 * Bytes of the response read so far.
+		 */
+		final ByteArrayOutputStream response = new ByteArrayOutputStream(64);
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * Results shared by the client threads. Latencies are recorded, and responses counted,
+	 * only while measuring is true.
+	 */
+	private static final Histogram latencies = new Histogram();
+	private static final AtomicLong ok = new AtomicLong();
+	private static final AtomicLong busy = new AtomicLong();
+	private static final AtomicLong errors = new AtomicLong();
+	private static final AtomicLong failed = new AtomicLong();
+	private static final AtomicLong open = new AtomicLong();
+	private static volatile boolean measuring;
+	private static volatile boolean stopped;
+
+	public static void main(String[] args)
+	throws Exception {
+		HashMap<String,String> settings = QueryServer.settings(args);
+		int connections = Integer.parseInt(QueryServer.get(settings, "connections", "10000"));
+		int seconds = Integer.parseInt(QueryServer.get(settings, "seconds", "10"));
+		int warmup = Integer.parseInt(QueryServer.get(settings, "warmup", "3"));
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int clients = Integer.parseInt(QueryServer.get(settings, "clients", "" + Math.max(1, cpus / 2)));
+		int concurrency = Integer.parseInt(QueryServer.get(settings, "concurrency", "" + cpus));
+		int queue = Integer.parseInt(QueryServer.get(settings, "queue", "1024"));
+		final int k = Integer.parseInt(QueryServer.get(settings, "k", "5"));
+
+		LittleSearchEngine engine = new LittleSearchEngine();
+		engine.makeIndex(QueryServer.get(settings, "docs", "docs.txt"), QueryServer.get(settings, "noise", "noisewords.txt"));
+		engine.enableConcurrentReads();
+		final String[] words = new TreeSet<String>(engine.keywordsIndex.keySet()).toArray(new String[0]);
+		QueryServer server = null;
+		int port;
+		if (settings.containsKey("port")) {
+			port = Integer.parseInt(settings.get("port"));
+			System.out.println("Indexed " + words.length + " keywords; " + connections + " connections on "
+				+ clients + " client threads, server on port " + port);
+		} else {
+			server = new QueryServer(engine, 0, concurrency, queue);
+			server.start();
+			port = server.getPort();
+			System.out.println("Indexed " + words.length + " keywords; " + connections + " connections on "
+				+ clients + " client threads, server concurrency " + concurrency + ", queue " + queue);
+		}
+		final InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+		Thread[] threads = new Thread[clients];
+		for (int t = 0; t < clients; t++) {
+			final int share = connections / clients + (t < connections % clients ? 1 : 0);
+			final long seed = t;
+			threads[t] = new Thread("load-client-" + t) {
+				public void run() {
+					try {
+						drive(address, share, words, k, new Random(seed));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			};
+			threads[t].setDaemon(true);
+			threads[t].start();
+		}
+
+		Thread.sleep(warmup * 1000L);
+		System.out.println("Open connections: " + open.get());
+		measuring = true;
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		measuring = false;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		stopped = true;
+		for (Thread t : threads) {
+			t.join(5000);
+		}
+		if (server != null) {
+			server.close();
+		}
+
+		Histogram.Snapshot s = latencies.snapshot();
+		long total = ok.get() + busy.get() + errors.get();
+		System.out.println(String.format("%d responses in %.1f s: %.0f/s (%.0f answered/s), %.1f%% busy, %d errors, %d failed connections",
+			total, elapsed, total / elapsed, ok.get() / elapsed, total == 0 ? 0 : 100.0 * busy.get() / total,
+			errors.get(), failed.get()));
+		System.out.println(String.format("latency us: mean %.0f  p50 %d  p90 %d  p99 %d  p99.9 %d  max %d",
+			s.mean() / 1000, s.quantile(0.5) / 1000, s.quantile(0.9) / 1000, s.quantile(0.99) / 1000,
+			s.quantile(0.999) / 1000, s.max / 1000));
+	}
+
+	/**
+	 * Body of a client thread: opens its connections, and keeps a request in flight on each
+	 * until the run is over.
+	 */
+	private static void drive(InetSocketAddress address, int connections, String[] words, int k, Random r)
+	throws IOException {
+		Selector selector = Selector.open();
+		ByteBuffer readBuffer = ByteBuffer.allocate(1 << 16);
+		int opened = 0;
+		try {
+			while (!stopped) {
+				// open connections some at a time, so the server's accept queue does not overflow
+				for (int i = 0; i < 256 && opened < connections; i++, opened++) {
+					try {
+						SocketChannel channel = SocketChannel.open();
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true);
+						channel.connect(address);
+						channel.register(selector, SelectionKey.OP_CONNECT, new Client(channel));
+					} catch (IOException e) {
+						failed.incrementAndGet();
+					}
+				}
+				if (opened < connections) {
+					selector.selectNow();
+				} else {
+					selector.select(100);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Client c = (Client)key.attachment();
+					try {
+						if (key.isConnectable()) {
+							c.channel.finishConnect();
+							open.incrementAndGet();
+							send(c, key, words, k, r);
+						} else if (key.isWritable()) {
+							c.channel.write(c.request);
+							if (!c.request.hasRemaining()) {
+								key.interestOps(SelectionKey.OP_READ);
+							}
+						} else if (key.isReadable()) {
+							receive(c, key, readBuffer, words, k, r);
+						}
+					} catch (IOException e) {
+						failed.incrementAndGet();
+						key.cancel();
+						c.channel.close();
+					}
+				}
+			}
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		}
+	}
+
+	private static void send(Client c, SelectionKey key, String[] words, int k, Random r)
+	throws IOException {
+		String request = k + " " + words[r.nextInt(words.length)] + " " + words[r.nextInt(words.length)] + "\n";
+		c.request = ByteBuffer.wrap(request.getBytes(UTF8));
+		c.sent = System.nanoTime();
+		c.channel.write(c.request);
+		key.interestOps(c.request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	private static void receive(Client c, SelectionKey key, ByteBuffer readBuffer, String[] words, int k, Random r)
+	throws IOException {
+		readBuffer.clear();
+		int n = c.channel.read(readBuffer);
+		if (n < 0) {
+			throw new EOFException("Server closed the connection");
+		}
+		byte[] bytes = readBuffer.array();
+		for (int i = 0; i < n; i++) {
+			if (bytes[i] != '\n') {
+				c.response.write(bytes[i]);
+				continue;
+			}
+			if (measuring) {
+				latencies.record(System.nanoTime() - c.sent);
+				String response = c.response.toString("UTF-8");
+				if (response.startsWith("OK")) {
+					ok.incrementAndGet();
+				} else if (response.equals("BUSY")) {
+					busy.incrementAndGet();
+				} else {
+					errors.incrementAndGet();
+				}
+			}
+			c.response.reset();
+			send(c, key, words, k, r);
+		}
+	}
+}
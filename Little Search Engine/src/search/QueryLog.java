@@ -0,0 +1,234 @@
+package search;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class logs the queries answered by an engine (see LittleSearchEngine.enableQueryLog)
+ * to a file, without doing any I/O on the threads that answer them. A query hands its entry
+ * to a bounded ring buffer and returns; a background thread drains the buffer in batches,
+ * formats the entries and writes them, flushing the file once per batch. If queries come in
+ * faster than the file can take them and the buffer fills up, entries are dropped and counted
+ * rather than holding up queries.
+ *
+ * Each query is a line of tab-separated fields: the time it finished (milliseconds since
+ * the epoch), its kind (as in EngineMetrics), the query, k, its latency in microseconds,
+ * the number of documents found, and their names separated by spaces.
+ *
+ */
+class QueryLog {
+
+	/**
+	 * Number of entries the buffer holds.
+	 */
+	static final int CAPACITY = 8192;
+
+	/**
+	 * Most entries written between flushes.
+	 */
+	static final int BATCH = 256;
+
+	/**
+	 * A logged query.
+	 */
+	private static class Entry {
+		final long time;
+		final int kind;
+		final String query;
+		final String[] keywords;
+		final int k;
+		final long nanos;
+		final String[] results;
+
+		Entry(long time, int kind, String query, String[] keywords, int k, long nanos, String[] results) {
+			this.time = time;
+			this.kind = kind;
+			this.query = query;
+			this.keywords = keywords;
+			this.k = k;
+			this.nanos = nanos;
+			this.results = results;
+		}
+	}
+
+	/**
+	 * Entry that tells the writer thread to finish.
+	 */
+	private static final Entry END = new Entry(0, 0, null, null, 0, 0, null);
+
+	private final ArrayBlockingQueue<Entry> buffer = new ArrayBlockingQueue<Entry>(CAPACITY);
+	private final Writer out;
+	private final Thread writer;
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * First error writing the file, if any. Entries are dropped after it.
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Opens a log file, appending to it if it exists, and starts its writer thread.
+	 *
+	 * @param file Name of the log file
+	 * @throws IOException If the file cannot be opened
+	 */
+	QueryLog(String file)
+	throws IOException {
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+		writer = new Thread("query-log " + file) {
+			public void run() {
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Returns the start time of a query, to be passed to log.
+	 *
+	 * @return Start time in nanoseconds, never 0 (which EngineMetrics takes as not timed)
+	 */
+	long start() {
+		long start = System.nanoTime();
+		return start == 0 ? 1 : start;
+	}
+
+	/**
+	 * Hands a finished query to the writer thread. This never blocks: if the buffer is full,
+	 * the entry is dropped.
+	 *
+	 * @param kind Kind of query (see EngineMetrics)
+	 * @param query Query text, or null if it is a list of keywords
+	 * @param keywords Keywords of the query, or null if it is a text
+	 * @param k Maximum number of documents asked for
+	 * @param start What start returned when the query started
+	 * @param results Names of the documents found, or null if there are none
+	 */
+	void log(int kind, String query, String[] keywords, int k, long start, ArrayList<String> results) {
+		long nanos = System.nanoTime() - start;
+		// copied, since the caller owns the list and may change it
+		String[] names = results == null ? null : results.toArray(new String[results.size()]);
+		Entry entry = new Entry(System.currentTimeMillis(), kind, query, keywords, k, nanos, names);
+		if (!buffer.offer(entry)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the number of entries dropped because the buffer was full or the file could
+	 * not be written.
+	 *
+	 * @return Number of entries dropped
+	 */
+	long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Writes all entries logged so far, stops the writer thread and closes the file.
+	 *
+	 * @throws IOException If the file could not be written or closed
+	 */
+	void close()
+	throws IOException {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				buffer.put(END);
+				writer.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Body of the writer thread: takes batches of entries off the buffer and writes them,
+	 * until it takes END.
+	 */
+	private void drain() {
+		ArrayList<Entry> batch = new ArrayList<Entry>(BATCH);
+		StringBuilder line = new StringBuilder();
+		boolean done = false;
+		while (!done) {
+			try {
+				batch.add(buffer.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			buffer.drainTo(batch, BATCH - 1);
+			for (Entry entry : batch) {
+				if (entry == END) {
+					done = true;
+					break;
+				}
+				if (failure != null) {
+					dropped.incrementAndGet();
+					continue;
+				}
+				line.setLength(0);
+				format(entry, line);
+				try {
+					out.write(line.toString());
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			batch.clear();
+			try {
+				out.flush();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+	}
+
+	private static void format(Entry entry, StringBuilder line) {
+		line.append(entry.time).append('\t').append(EngineMetrics.QUERY_KINDS[entry.kind]).append('\t');
+		if (entry.query != null) {
+			// a tab or line break in the query would split the line
+			for (int i = 0; i < entry.query.length(); i++) {
+				char c = entry.query.charAt(i);
+				line.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+			}
+		} else {
+			for (int i = 0; i < entry.keywords.length; i++) {
+				if (i > 0) {
+					line.append(' ');
+				}
+				line.append(entry.keywords[i]);
+			}
+		}
+		line.append('\t').append(entry.k);
+		line.append('\t').append(entry.nanos / 1000);
+		line.append('\t').append(entry.results == null ? 0 : entry.results.length).append('\t');
+		if (entry.results != null) {
+			for (int i = 0; i < entry.results.length; i++) {
+				if (i > 0) {
+					line.append(' ');
+				}
+				line.append(entry.results[i]);
+			}
+		}
+		line.append('\n');
+	}
+}
@@ -0,0 +1,547 @@
+package search;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class serves topSearch queries over TCP on the loopback interface, from an engine
+ * that is shared by all connections. The protocol is one line per request and one line
+ * per response. A request is k followed by the keywords, separated by spaces:
+ * <pre>
+ *   5 alice rabbit
+ * </pre>
+ * and its response is "OK" followed by the names of the documents found, if any, "BUSY" if
+ * the server is at its limit and the request was turned away, or "ERR" and a message if
+ * the request was not understood. A connection may send any number of requests, and gets
+ * their responses in order.
+ *
+ * All connections are handled by one selector thread, which only reads requests and writes
+ * responses, so idle connections cost a buffer and no thread; tens of thousands of them can
+ * be open at once. Requests are answered by a fixed pool of concurrency threads, behind a
+ * queue of at most queueLimit requests. When the queue is full, a request is answered BUSY
+ * at once instead of waiting, so that a burst of load gets fast refusals rather than a
+ * growing backlog and timeouts. A connection has at most one request being answered at a
+ * time; requests that it sends meanwhile are held, and once MAX_PIPELINED of them are held
+ * its socket is no longer read until some are answered, which slows the client down.
+ *
+ * Usage: QueryServer [docs=docsFile] [noise=noiseWordsFile] [port=port] [concurrency=threads] [queue=limit]
+ *        [snapshot=scanSnapshotFile]
+ *
+ */
+public class QueryServer {
+
+	/**
+	 * Longest request line, in bytes. A connection that sends a longer one is closed.
+	 */
+	static final int MAX_LINE = 4096;
+
+	/**
+	 * Most requests held for a connection while one of its requests is being answered.
+	 */
+	static final int MAX_PIPELINED = 16;
+
+	/**
+	 * Largest k that a request may ask for.
+	 */
+	static final int MAX_K = 1000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] BUSY = "BUSY\n".getBytes(UTF8);
+
+	/**
+	 * A client connection. It is only used by the selector thread, except for the request
+	 * handed to a worker.
+	 */
+	private static class Connection {
+		final SocketChannel channel;
+		SelectionKey key;
+
+		/**
+		 * Start of a request line that has not been read in full yet, or null.
+		 */
+		byte[] partial;
+
+		/**
+		 * Bytes read after the last request split from them, from heldFrom on, if splitting
+		 * stopped because MAX_PIPELINED requests were held; null otherwise. The socket is not
+		 * read again until they have been split.
+		 */
+		byte[] held;
+		int heldFrom;
+
+		/**
+		 * Requests read and not yet handed to a worker, oldest first.
+		 */
+		final ArrayDeque<String> requests = new ArrayDeque<String>(2);
+
+		/**
+		 * True while a request is with a worker.
+		 */
+		boolean answering;
+
+		/**
+		 * Response being written, or null.
+		 */
+		ByteBuffer response;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * A response from a worker, to be written by the selector thread.
+	 */
+	private static class Answer {
+		final Connection connection;
+		final byte[] response;
+
+		Answer(Connection connection, byte[] response) {
+			this.connection = connection;
+			this.response = response;
+		}
+	}
+
+	private final LittleSearchEngine engine;
+	private final ServerSocketChannel server;
+	private final Selector selector;
+	private final ThreadPoolExecutor workers;
+	private final Thread selectorThread;
+
+	/**
+	 * Responses from workers that the selector thread has yet to write.
+	 */
+	private final ConcurrentLinkedQueue<Answer> answers = new ConcurrentLinkedQueue<Answer>();
+
+	/**
+	 * Buffer that the selector thread reads into.
+	 */
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(1 << 16);
+
+	private final AtomicLong answered = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private volatile int connections;
+	private volatile boolean closed;
+
+	/**
+	 * Opens a server socket on the loopback interface. The server does not accept connections
+	 * until start is called. The engine should have concurrent reads enabled if documents
+	 * may be indexed while it serves.
+	 *
+	 * @param engine Engine that answers the queries
+	 * @param port Port to listen on, or 0 for any free port
+	 * @param concurrency Number of queries answered at the same time
+	 * @param queueLimit Number of queries that may wait for a thread before queries are turned away
+	 * @throws IOException If the socket cannot be opened
+	 */
+	public QueryServer(LittleSearchEngine engine, int port, int concurrency, int queueLimit)
+	throws IOException {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be at least 1: " + concurrency);
+		}
+		if (queueLimit < 1) {
+			throw new IllegalArgumentException("queueLimit must be at least 1: " + queueLimit);
+		}
+		this.engine = engine;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			server.close();
+			selector.close();
+			throw e;
+		}
+		// the queue is what turns requests away, so the pool never grows past its core threads
+		workers = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(queueLimit), daemons("query-worker"));
+		selectorThread = daemons("query-selector").newThread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		});
+	}
+
+	/**
+	 * Starts accepting connections.
+	 */
+	public void start() {
+		selectorThread.start();
+	}
+
+	/**
+	 * Returns the port that the server listens on.
+	 *
+	 * @return Port number
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Returns the number of requests answered (other than BUSY) since the server started.
+	 *
+	 * @return Number of requests answered
+	 */
+	public long getAnswered() {
+		return answered.get();
+	}
+
+	/**
+	 * Returns the number of requests answered BUSY since the server started.
+	 *
+	 * @return Number of requests turned away
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of open client connections.
+	 *
+	 * @return Number of connections
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Closes all connections and the server socket, and stops the threads.
+	 *
+	 * @throws IOException If the server socket cannot be closed
+	 */
+	public void close()
+	throws IOException {
+		closed = true;
+		selector.wakeup();
+		try {
+			selectorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdownNow();
+		server.close();
+	}
+
+	/**
+	 * Body of the selector thread.
+	 */
+	private void serve() {
+		try {
+			while (!closed) {
+				selector.select();
+				Answer answer;
+				while ((answer = answers.poll()) != null) {
+					Connection c = answer.connection;
+					c.answering = false;
+					if (c.channel.isOpen()) {
+						respond(c, answer.response);
+						next(c);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							Connection c = (Connection)key.attachment();
+							if (key.isWritable()) {
+								write(c);
+								next(c);
+							}
+							if (key.isValid() && key.isReadable()) {
+								read(c);
+							}
+						}
+					} catch (IOException e) {
+						// the client went away
+						if (key.attachment() != null) {
+							close((Connection)key.attachment());
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() != null) {
+					close((Connection)key.attachment());
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// nothing is left to use it
+			}
+		}
+	}
+
+	private void accept()
+	throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Connection c = new Connection(channel);
+			c.key = channel.register(selector, SelectionKey.OP_READ, c);
+			connections++;
+		}
+	}
+
+	private void close(Connection c) {
+		if (c.channel.isOpen()) {
+			connections--;
+			c.key.cancel();
+			try {
+				c.channel.close();
+			} catch (IOException e) {
+				// it is closed all the same
+			}
+		}
+	}
+
+	/**
+	 * Reads what a connection has sent, and splits it into requests.
+	 */
+	private void read(Connection c)
+	throws IOException {
+		if (c.held != null) {
+			// it was selected before it stopped being read
+			return;
+		}
+		readBuffer.clear();
+		int n = c.channel.read(readBuffer);
+		if (n < 0) {
+			close(c);
+			return;
+		}
+		if (split(c, readBuffer.array(), 0, n)) {
+			next(c);
+		}
+	}
+
+	/**
+	 * Splits bytes read from a connection into requests, until it holds MAX_PIPELINED of
+	 * them; the bytes left are then held until there is room for more. A connection that
+	 * sends a line longer than MAX_LINE is closed.
+	 *
+	 * @return False if the connection was closed
+	 */
+	private boolean split(Connection c, byte[] bytes, int from, int n) {
+		int start = from;
+		for (int i = from; i < n; i++) {
+			if (c.requests.size() >= MAX_PIPELINED) {
+				// the read buffer is reused, so bytes held from it are copied
+				c.held = bytes == readBuffer.array() ? Arrays.copyOfRange(bytes, start, n) : bytes;
+				c.heldFrom = bytes == readBuffer.array() ? 0 : start;
+				return true;
+			}
+			if (bytes[i] != '\n') {
+				continue;
+			}
+			if ((c.partial == null ? 0 : c.partial.length) + i - start > MAX_LINE) {
+				close(c);
+				return false;
+			}
+			String line;
+			if (c.partial == null) {
+				line = new String(bytes, start, i - start, UTF8);
+			} else {
+				byte[] whole = Arrays.copyOf(c.partial, c.partial.length + i - start);
+				System.arraycopy(bytes, start, whole, c.partial.length, i - start);
+				line = new String(whole, UTF8);
+				c.partial = null;
+			}
+			c.requests.add(line);
+			start = i + 1;
+		}
+		if (start < n) {
+			int length = (c.partial == null ? 0 : c.partial.length) + n - start;
+			if (length > MAX_LINE) {
+				close(c);
+				return false;
+			}
+			byte[] partial = new byte[length];
+			int offset = 0;
+			if (c.partial != null) {
+				System.arraycopy(c.partial, 0, partial, 0, c.partial.length);
+				offset = c.partial.length;
+			}
+			System.arraycopy(bytes, start, partial, offset, n - start);
+			c.partial = partial;
+		}
+		return true;
+	}
+
+	/**
+	 * Hands a connection's next request to a worker, if it has none there and is not writing
+	 * a response, and stops or resumes reading it depending on how many requests it has held.
+	 */
+	private void next(Connection c) {
+		while (c.channel.isOpen()) {
+			if (c.held != null && c.requests.size() < MAX_PIPELINED) {
+				// there is room for requests held back, which are split before any more are read
+				byte[] held = c.held;
+				c.held = null;
+				if (!split(c, held, c.heldFrom, held.length)) {
+					return;
+				}
+			}
+			if (c.answering || c.response != null || c.requests.isEmpty()) {
+				break;
+			}
+			final Connection connection = c;
+			final String request = c.requests.poll();
+			c.answering = true;
+			try {
+				workers.execute(new Runnable() {
+					public void run() {
+						answers.add(new Answer(connection, answer(request)));
+						selector.wakeup();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				c.answering = false;
+				rejected.incrementAndGet();
+				respond(c, BUSY);
+			}
+		}
+		if (c.channel.isOpen()) {
+			int ops = c.response != null ? SelectionKey.OP_WRITE : 0;
+			if (c.held == null && c.requests.size() < MAX_PIPELINED) {
+				ops |= SelectionKey.OP_READ;
+			}
+			c.key.interestOps(ops);
+		}
+	}
+
+	/**
+	 * Starts writing a response; the rest is written when the socket can take it.
+	 */
+	private void respond(Connection c, byte[] response) {
+		c.response = ByteBuffer.wrap(response);
+		try {
+			write(c);
+		} catch (IOException e) {
+			close(c);
+		}
+	}
+
+	private void write(Connection c)
+	throws IOException {
+		c.channel.write(c.response);
+		if (!c.response.hasRemaining()) {
+			c.response = null;
+		}
+	}
+
+	/**
+	 * Answers a request (on a worker thread).
+	 */
+	private byte[] answer(String request) {
+		String[] tokens = request.trim().split("\\s+");
+		String response;
+		if (tokens.length < 2) {
+			response = "ERR expected k and keywords";
+		} else {
+			int k;
+			try {
+				k = Integer.parseInt(tokens[0]);
+			} catch (NumberFormatException e) {
+				k = 0;
+			}
+			if (k < 1 || k > MAX_K) {
+				response = "ERR k must be from 1 to " + MAX_K + ": " + tokens[0];
+			} else {
+				try {
+					ArrayList<String> results = engine.topSearch(k, Arrays.copyOfRange(tokens, 1, tokens.length));
+					StringBuilder line = new StringBuilder("OK");
+					if (results != null) {
+						for (String doc : results) {
+							line.append(' ').append(doc);
+						}
+					}
+					response = line.toString();
+					answered.incrementAndGet();
+				} catch (RuntimeException e) {
+					// the connection still gets an answer, so it is not left waiting
+					response = "ERR " + e;
+				}
+			}
+		}
+		return (response + "\n").getBytes(UTF8);
+	}
+
+	/**
+	 * Returns a factory of daemon threads with numbered names.
+	 */
+	private static ThreadFactory daemons(final String name) {
+		return new ThreadFactory() {
+			private int next;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + next++);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	public static void main(String[] args)
+	throws IOException, InterruptedException {
+		HashMap<String,String> settings = settings(args);
+		LittleSearchEngine engine = new LittleSearchEngine();
+		String snapshot = settings.get("snapshot");
+		if (snapshot != null) {
+			// a restart only scans the documents that changed since the last one
+			engine.enableScanSnapshot(snapshot);
+		}
+		engine.makeIndex(get(settings, "docs", "docs.txt"), get(settings, "noise", "noisewords.txt"),
+			Runtime.getRuntime().availableProcessors());
+		if (snapshot != null) {
+			engine.saveScanSnapshot();
+		}
+		engine.enableConcurrentReads();
+		QueryServer server = new QueryServer(engine, Integer.parseInt(get(settings, "port", "7070")),
+			Integer.parseInt(get(settings, "concurrency", "" + Runtime.getRuntime().availableProcessors())),
+			Integer.parseInt(get(settings, "queue", "1024")));
+		server.start();
+		System.out.println("Serving on port " + server.getPort());
+		server.selectorThread.join();
+	}
+
+	/**
+	 * Parses name=value arguments.
+	 */
+	static HashMap<String,String> settings(String[] args) {
+		HashMap<String,String> settings = new HashMap<String,String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				throw new IllegalArgumentException("Expected name=value: " + arg);
+			}
+			settings.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		return settings;
+	}
+
+	static String get(HashMap<String,String> settings, String name, String value) {
+		String v = settings.get(name);
+		return v == null ? value : v;
+	}
+}
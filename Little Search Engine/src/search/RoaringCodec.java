@@ -0,0 +1,128 @@
+package search;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This codec writes document ids as a Roaring bitmap. The ids are split into containers by
+ * their high 16 bits, and each container holds the low 16 bits of its ids in whichever of
+ * three forms is smallest: an array of shorts, a bitmap of 2^16 bits, or a list of runs of
+ * consecutive ids. Dense sets, such as the ids of documents in which a keyword occurs once,
+ * take a fraction of a byte per id.
+ *
+ * The set is laid out as: varint number of containers, then for each container a varint of
+ * its key (the first key, then the increase from the previous one), a varint of its number
+ * of ids less one, a type byte, and the contents: a short per id (array), BITMAP_WORDS longs
+ * (bitmap), or a varint number of runs and two shorts per run, its start and length less
+ * one (runs).
+ *
+ */
+class RoaringCodec extends PostingCodec {
+
+	private static final int ARRAY = 0;
+	private static final int BITMAP = 1;
+	private static final int RUNS = 2;
+
+	/**
+	 * Number of longs in a bitmap container.
+	 */
+	static final int BITMAP_WORDS = 1 << 10;
+
+	RoaringCodec() {
+		super(3, "roaring");
+	}
+
+	void encode(int[] docs, int n, DataOutput out)
+	throws IOException {
+		int containers = 0;
+		for (int i = 0; i < n; i++) {
+			if (i == 0 || docs[i] >>> 16 != docs[i-1] >>> 16) {
+				containers++;
+			}
+		}
+		MappedIndex.writeVarint(out, containers);
+		int prevKey = 0;
+		int start = 0;
+		while (start < n) {
+			int key = docs[start] >>> 16;
+			int end = start + 1;
+			int runs = 1;
+			while (end < n && docs[end] >>> 16 == key) {
+				if (docs[end] != docs[end-1] + 1) {
+					runs++;
+				}
+				end++;
+			}
+			int count = end - start;
+			MappedIndex.writeVarint(out, key - prevKey);
+			MappedIndex.writeVarint(out, count - 1);
+			int arrayBytes = 2 * count;
+			int bitmapBytes = 8 * BITMAP_WORDS;
+			int runBytes = 4 * runs + 3;
+			if (runBytes < arrayBytes && runBytes < bitmapBytes) {
+				out.writeByte(RUNS);
+				MappedIndex.writeVarint(out, runs);
+				int runStart = start;
+				for (int i = start + 1; i <= end; i++) {
+					if (i == end || docs[i] != docs[i-1] + 1) {
+						out.writeShort(docs[runStart]);
+						out.writeShort(i - runStart - 1);
+						runStart = i;
+					}
+				}
+			} else if (arrayBytes <= bitmapBytes) {
+				out.writeByte(ARRAY);
+				for (int i = start; i < end; i++) {
+					out.writeShort(docs[i]);
+				}
+			} else {
+				out.writeByte(BITMAP);
+				long[] words = new long[BITMAP_WORDS];
+				for (int i = start; i < end; i++) {
+					int low = docs[i] & 0xffff;
+					words[low >>> 6] |= 1L << low;
+				}
+				for (long word : words) {
+					out.writeLong(word);
+				}
+			}
+			prevKey = key;
+			start = end;
+		}
+	}
+
+	void decode(ByteBuffer b, int[] docs, int n) {
+		int containers = MappedIndex.readVarint(b);
+		int key = 0;
+		int k = 0;
+		for (int c = 0; c < containers; c++) {
+			key += MappedIndex.readVarint(b);
+			int high = key << 16;
+			int count = MappedIndex.readVarint(b) + 1;
+			int type = b.get();
+			if (type == ARRAY) {
+				for (int i = 0; i < count; i++) {
+					docs[k++] = high | (b.getShort() & 0xffff);
+				}
+			} else if (type == BITMAP) {
+				for (int w = 0; w < BITMAP_WORDS; w++) {
+					long word = b.getLong();
+					while (word != 0) {
+						docs[k++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+						word &= word - 1;
+					}
+				}
+			} else {
+				int runs = MappedIndex.readVarint(b);
+				for (int r = 0; r < runs; r++) {
+					int first = high | (b.getShort() & 0xffff);
+					int length = (b.getShort() & 0xffff) + 1;
+					for (int i = 0; i < length; i++) {
+						docs[k++] = first + i;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,420 @@
+package search;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * This class keeps the keywords found in each scanned document (what loadKeyWords returns)
+ * in a file, with the document's size, modification time and checksum, so that an engine
+ * that indexes the same documents again, as after a restart, can take the keywords of the
+ * documents that have not changed from the file instead of scanning them.
+ *
+ * A document is taken to be unchanged if its size and modification time are the ones it
+ * had when it was scanned, and it had not been modified for RACY_MILLIS before then (a file
+ * changed again within the resolution of its timestamp would otherwise look unchanged). If
+ * its size is the same but its time is not, or it was scanned too soon after it changed,
+ * its checksum decides. A document that has changed is scanned again, and its new keywords
+ * replace the old ones. The keywords of a document depend on the noise words as well, so
+ * if those are not the ones the file was written with, every document is scanned again.
+ *
+ * The file is laid out as follows (as written by DataOutputStream):
+ * <pre>
+ *   header      magic, version
+ *   noise words count, then each noise word, in sorted order
+ *   terms       count, then each keyword
+ *   documents   count, then for each document: name, size, modification time, time it
+ *               was scanned, CRC-32 of its bytes, and the length and bytes of its keywords:
+ *               varint count, then the varint number of each keyword in the terms section
+ *               and its varint frequency
+ * </pre>
+ * Keywords are kept in the same encoding in memory, so a document costs a few bytes per
+ * distinct keyword until the snapshot is saved. The file is written to a temporary file
+ * that is then moved over the old one (see MappedIndex.replace), so it is never left half
+ * written.
+ *
+ * Documents may be looked up and recorded by any number of threads.
+ *
+ */
+class ScanSnapshot {
+
+	private static final int MAGIC = 0x4c534553; // "LSES"
+
+	/**
+	 * Version of the file layout and of the keyword rules; a file of another version is not used.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * How long before it was scanned a document must have last changed for its size and
+	 * time alone to show it unchanged.
+	 */
+	static final long RACY_MILLIS = 2000;
+
+	/**
+	 * The size, modification time and (once it is needed) checksum of a document file.
+	 */
+	static class FileState {
+		final File file;
+		final long size;
+		final long modified;
+		private int crc;
+		private boolean summed;
+
+		/**
+		 * Reads the size and modification time of a file.
+		 *
+		 * @param docFile Name of the document file
+		 */
+		FileState(String docFile) {
+			file = new File(docFile);
+			size = file.length();
+			modified = file.lastModified();
+		}
+
+		/**
+		 * Returns the CRC-32 of the file's bytes, reading the file the first time.
+		 *
+		 * @return Checksum of the file
+		 * @throws FileNotFoundException If the file is not found on disk
+		 */
+		int checksum()
+		throws FileNotFoundException {
+			if (summed) {
+				return crc;
+			}
+			CRC32 sum = new CRC32();
+			byte[] buffer = new byte[1 << 16];
+			FileInputStream in = new FileInputStream(file);
+			try {
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					sum.update(buffer, 0, n);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Error reading " + file, e);
+			} finally {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// nothing more to read, ignore
+				}
+			}
+			crc = (int)sum.getValue();
+			summed = true;
+			return crc;
+		}
+	}
+
+	/**
+	 * A scanned document.
+	 */
+	private static class Entry {
+		final long size;
+		final long modified;
+		final long scanned;
+		final int crc;
+		final byte[] keywords;
+
+		Entry(long size, long modified, long scanned, int crc, byte[] keywords) {
+			this.size = size;
+			this.modified = modified;
+			this.scanned = scanned;
+			this.crc = crc;
+			this.keywords = keywords;
+		}
+	}
+
+	private final File file;
+
+	/**
+	 * Noise words that the documents in the file were scanned with, in sorted order.
+	 */
+	private final String[] fileNoiseWords;
+
+	/**
+	 * Keywords numbered as in the file, which are never changed, and keywords first seen
+	 * since then, numbered after them and guarded by this object.
+	 */
+	private final String[] fileTerms;
+	private final HashMap<String,Integer> fileIds;
+	private final ArrayList<String> newTerms = new ArrayList<String>();
+	private final HashMap<String,Integer> newIds = new HashMap<String,Integer>();
+
+	/**
+	 * Documents in the file that may be used, and documents recorded since it was read.
+	 */
+	private final ConcurrentHashMap<String,Entry> previous;
+	private final ConcurrentHashMap<String,Entry> current = new ConcurrentHashMap<String,Entry>();
+
+	/**
+	 * Noise words that documents are being scanned with, in sorted order, or null until they are set.
+	 */
+	private volatile String[] noiseWords;
+
+	/**
+	 * Opens a snapshot file, reading the documents in it, or starts an empty snapshot if
+	 * the file does not exist or was written by another version.
+	 *
+	 * @param file Snapshot file
+	 * @throws IOException If the file cannot be read, or is not a snapshot file
+	 */
+	ScanSnapshot(File file)
+	throws IOException {
+		this.file = file;
+		previous = new ConcurrentHashMap<String,Entry>();
+		fileIds = new HashMap<String,Integer>();
+		if (!file.exists()) {
+			fileNoiseWords = new String[0];
+			fileTerms = new String[0];
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a scan snapshot: " + file);
+			}
+			if (in.readInt() != VERSION) {
+				fileNoiseWords = new String[0];
+				fileTerms = new String[0];
+				return;
+			}
+			fileNoiseWords = new String[in.readInt()];
+			for (int i = 0; i < fileNoiseWords.length; i++) {
+				fileNoiseWords[i] = in.readUTF();
+			}
+			fileTerms = new String[in.readInt()];
+			for (int i = 0; i < fileTerms.length; i++) {
+				fileTerms[i] = in.readUTF();
+				fileIds.put(fileTerms[i], i);
+			}
+			int docs = in.readInt();
+			for (int d = 0; d < docs; d++) {
+				String name = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				long scanned = in.readLong();
+				int crc = in.readInt();
+				byte[] keywords = new byte[in.readInt()];
+				in.readFully(keywords);
+				previous.put(name, new Entry(size, modified, scanned, crc, keywords));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Sets the noise words that documents are scanned with from now on. If they are not the
+	 * ones the recorded documents were scanned with, those documents are dropped.
+	 *
+	 * @param words Noise words
+	 */
+	synchronized void noiseWords(Collection<String> words) {
+		if (noiseWords != null && words.size() == noiseWords.length && words.containsAll(Arrays.asList(noiseWords))) {
+			return;
+		}
+		String[] sorted = words.toArray(new String[words.size()]);
+		Arrays.sort(sorted);
+		if (!Arrays.equals(sorted, fileNoiseWords)) {
+			previous.clear();
+		}
+		current.clear();
+		noiseWords = sorted;
+	}
+
+	/**
+	 * Returns the keywords of a document as they were when it was scanned, if it has not
+	 * changed since. If it has, or it was never scanned, the file's checksum is read before
+	 * this returns null, so that it is the checksum of the file as it was before it is scanned.
+	 *
+	 * @param docFile Name of the document file
+	 * @param state Size and modification time of the document file, read before this is called
+	 * @return Keywords of the document, or null if it is to be scanned
+	 * @throws FileNotFoundException If the document file is not found on disk
+	 */
+	HashMap<String,Occurrence> reuse(String docFile, FileState state)
+	throws FileNotFoundException {
+		if (noiseWords == null) {
+			noiseWords(Collections.<String>emptySet());
+		}
+		Entry entry = current.get(docFile);
+		if (entry == null) {
+			entry = previous.get(docFile);
+		}
+		boolean unchanged = false;
+		if (entry != null && entry.size == state.size) {
+			if (entry.modified == state.modified && state.modified + RACY_MILLIS < entry.scanned) {
+				unchanged = true;
+			} else {
+				unchanged = entry.crc == state.checksum();
+			}
+		}
+		if (!unchanged) {
+			state.checksum();
+			return null;
+		}
+		HashMap<String,Occurrence> kws = decode(docFile, entry.keywords);
+		if (entry.modified != state.modified) {
+			// only touched, so the new time is recorded and the checksum is not read next time
+			current.put(docFile, new Entry(state.size, state.modified, System.currentTimeMillis(),
+				entry.crc, entry.keywords));
+		} else {
+			current.put(docFile, entry);
+		}
+		return kws;
+	}
+
+	/**
+	 * Records the keywords of a document that has just been scanned.
+	 *
+	 * @param docFile Name of the document file
+	 * @param state State of the document file that was passed to reuse
+	 * @param kws Keywords of the document
+	 * @param scanned Time at which the document started being scanned, in milliseconds
+	 * @throws FileNotFoundException If the document file is not found on disk
+	 */
+	void record(String docFile, FileState state, HashMap<String,Occurrence> kws, long scanned)
+	throws FileNotFoundException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(kws.size() * 3 + 2);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			MappedIndex.writeVarint(out, kws.size());
+			for (Map.Entry<String,Occurrence> e : kws.entrySet()) {
+				MappedIndex.writeVarint(out, id(e.getKey()));
+				MappedIndex.writeVarint(out, e.getValue().frequency);
+			}
+		} catch (IOException e) {
+			// a ByteArrayOutputStream is never full
+			throw new IllegalStateException(e);
+		}
+		current.put(docFile, new Entry(state.size, state.modified, scanned, state.checksum(), bytes.toByteArray()));
+	}
+
+	/**
+	 * Writes the documents recorded since the snapshot was opened to its file. If no noise
+	 * words have been set, no document has been recorded, and an empty set is written.
+	 *
+	 * @throws IOException If the file cannot be written
+	 */
+	synchronized void save()
+	throws IOException {
+		// only the keywords still in use are written, numbered anew
+		int[] renumber = new int[fileTerms.length + newTerms.size()];
+		Arrays.fill(renumber, -1);
+		ArrayList<String> terms = new ArrayList<String>();
+		HashMap<String,Entry> docs = new HashMap<String,Entry>(current.size() * 2);
+		for (Map.Entry<String,Entry> e : current.entrySet()) {
+			Entry entry = e.getValue();
+			ByteArrayInputStream bytes = new ByteArrayInputStream(entry.keywords);
+			ByteArrayOutputStream renumbered = new ByteArrayOutputStream(entry.keywords.length);
+			DataOutputStream out = new DataOutputStream(renumbered);
+			int n = readVarint(bytes);
+			MappedIndex.writeVarint(out, n);
+			for (int i = 0; i < n; i++) {
+				int id = readVarint(bytes);
+				if (renumber[id] < 0) {
+					renumber[id] = terms.size();
+					terms.add(term(id));
+				}
+				MappedIndex.writeVarint(out, renumber[id]);
+				MappedIndex.writeVarint(out, readVarint(bytes));
+			}
+			docs.put(e.getKey(), new Entry(entry.size, entry.modified, entry.scanned, entry.crc, renumbered.toByteArray()));
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			String[] words = noiseWords == null ? new String[0] : noiseWords;
+			out.writeInt(words.length);
+			for (String word : words) {
+				out.writeUTF(word);
+			}
+			out.writeInt(terms.size());
+			for (String term : terms) {
+				out.writeUTF(term);
+			}
+			out.writeInt(docs.size());
+			for (Map.Entry<String,Entry> e : docs.entrySet()) {
+				Entry entry = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(entry.size);
+				out.writeLong(entry.modified);
+				out.writeLong(entry.scanned);
+				out.writeInt(entry.crc);
+				out.writeInt(entry.keywords.length);
+				out.write(entry.keywords);
+			}
+		} finally {
+			out.close();
+		}
+		boolean moved = false;
+		try {
+			MappedIndex.replace(temp, file);
+			moved = true;
+		} finally {
+			if (!moved) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of a keyword, numbering it if it is new.
+	 */
+	private int id(String term) {
+		Integer id = fileIds.get(term);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			id = newIds.get(term);
+			if (id == null) {
+				id = fileTerms.length + newTerms.size();
+				newTerms.add(term);
+				newIds.put(term, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * Returns the keyword with a number.
+	 */
+	private String term(int id) {
+		if (id < fileTerms.length) {
+			return fileTerms[id];
+		}
+		synchronized (this) {
+			return newTerms.get(id - fileTerms.length);
+		}
+	}
+
+	private HashMap<String,Occurrence> decode(String docFile, byte[] keywords) {
+		ByteArrayInputStream in = new ByteArrayInputStream(keywords);
+		int n = readVarint(in);
+		HashMap<String,Occurrence> kws = new HashMap<String,Occurrence>(n * 2);
+		for (int i = 0; i < n; i++) {
+			String term = term(readVarint(in));
+			kws.put(term, new Occurrence(docFile, readVarint(in)));
+		}
+		return kws;
+	}
+
+	private static int readVarint(ByteArrayInputStream in) {
+		int value = 0;
+		int shift = 0;
+		while (true) {
+			int x = in.read();
+			value |= (x & 0x7f) << shift;
+			if ((x & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+}
@@ -7,7 +7,8 @@ public class SearchDriver {
 	static LittleSearchEngine testEngine = new LittleSearchEngine();
 
 	public static void main(String[] args) throws IOException{
-		testEngine.makeIndex("docs.txt", "noisewords.txt");
+		testEngine.makeIndex("docs.txt", "noisewords.txt", Runtime.getRuntime().availableProcessors());
+		System.out.println("Indexed " + (int)testEngine.getIndexRate() + " documents/sec");
 		//System.out.println("=============AFTER MERGED  KEYWORS===================");
 		//testEngine.printMasterHashMap();
 		//System.out.println(testEngine.top5search("round", "streamer"));
@@ -0,0 +1,46 @@
+package search;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is one document found by a search, as returned by LittleSearchEngine.topResults
+ * and rankedResults: the document name, its score, and the keywords of the query that
+ * occur in it.
+ *
+ */
+public class SearchResult {
+
+	/**
+	 * Name of the document.
+	 */
+	public final String document;
+
+	/**
+	 * Score of the document in the search: its highest keyword frequency for topResults,
+	 * and its BM25 score for rankedResults.
+	 */
+	public final double score;
+
+	/**
+	 * Keywords of the query that occur in the document, in query order.
+	 */
+	public final List<String> keywords;
+
+	/**
+	 * Initializes a result.
+	 *
+	 * @param document Document name
+	 * @param score Score of the document
+	 * @param keywords Keywords of the query that occur in the document
+	 */
+	public SearchResult(String document, double score, List<String> keywords) {
+		this.document = document;
+		this.score = score;
+		this.keywords = Collections.unmodifiableList(keywords);
+	}
+
+	public String toString() {
+		return "(" + document + "," + score + "," + keywords + ")";
+	}
+}
@@ -0,0 +1,380 @@
+package search;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class keeps an index as a sequence of immutable segments, in the manner of a
+ * log-structured merge tree. New documents are merged into the engine's keywordsIndex,
+ * which acts as an in-memory buffer; once it holds flushDocs documents it is written to
+ * a segment file (see MappedIndex) and a new, empty buffer takes its place. The postings
+ * in a segment refer to documents by their ids in the engine's documents table, so a
+ * segment file has no documents section of its own.
+ *
+ * Segments are kept oldest first, and each covers a contiguous range of document ids.
+ * A background thread merges them with a tiered policy: a segment of flushDocs documents
+ * is in tier 0, and a segment in tier t has about flushDocs * mergeFactor^t documents. When
+ * mergeFactor adjacent segments are in the same tier, they are merged into one segment of
+ * the next tier, and the postings of removed documents are dropped. Every posting is thus
+ * rewritten about log(documents / flushDocs) / log(mergeFactor) times, however large the
+ * index grows.
+ *
+ * A keyword's list over the whole index is the merge of its lists in each segment and in
+ * the buffer (see PostingList.merge), so searches fan out over the layers and combine them.
+ * Merging segments reads their keywords in order, as ExternalIndexBuilder reads its runs,
+ * and writes each keyword's merged list before reading the next, so a merge only holds
+ * the lists of one keyword in memory, however large the segments are.
+ *
+ * Segments only last as long as the engine that wrote them. Their postings refer to the
+ * engine's documents table, which is not written with them, and no list of the segments
+ * is kept on disk, so an engine that is restarted indexes its documents again, and writes
+ * its segments over any that were left in the directory.
+ *
+ */
+class SegmentedIndex {
+
+	/**
+	 * An immutable segment.
+	 */
+	static class Segment {
+		/**
+		 * The mapped segment file.
+		 */
+		final MappedIndex index;
+		final File file;
+
+		/**
+		 * Number of documents written into this segment.
+		 */
+		final int docs;
+
+		Segment(MappedIndex index, File file, int docs) {
+			this.index = index;
+			this.file = file;
+			this.docs = docs;
+		}
+	}
+
+	private static final HashMap<String,String> NO_NOISE_WORDS = new HashMap<String,String>();
+
+	private final LittleSearchEngine engine;
+	private final File directory;
+
+	/**
+	 * Number of documents in the buffer at which it is flushed to a segment.
+	 */
+	final int flushDocs;
+
+	/**
+	 * Number of segments in a tier that are merged together.
+	 */
+	private final int mergeFactor;
+
+	/**
+	 * Segments, oldest first. The array is replaced, never changed.
+	 */
+	private volatile Segment[] segments;
+
+	/**
+	 * Number used in the name of the next segment file.
+	 */
+	private int nextFile;
+
+	/**
+	 * Runs merges, one at a time.
+	 */
+	private final ExecutorService merger;
+
+	/**
+	 * Number of merge tasks that have been scheduled and not yet finished, and the error
+	 * that the last failed merge ended with, if it has not been reported yet. Both are
+	 * guarded by the lock object.
+	 */
+	private final Object lock = new Object();
+	private int pending;
+	private IOException failure;
+
+	/**
+	 * Initializes an empty segmented index.
+	 *
+	 * @param engine Engine whose documents the segments index; its lock guards the segments
+	 * @param directory Directory in which segment files are written
+	 * @param flushDocs Number of documents in the buffer at which it is flushed
+	 * @param mergeFactor Number of segments in a tier that are merged together
+	 */
+	SegmentedIndex(LittleSearchEngine engine, File directory, int flushDocs, int mergeFactor) {
+		this.engine = engine;
+		this.directory = directory;
+		this.flushDocs = flushDocs;
+		this.mergeFactor = mergeFactor;
+		segments = new Segment[0];
+		merger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "segment-merger");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Returns the segments, oldest first.
+	 *
+	 * @return Segments
+	 */
+	Segment[] segments() {
+		return segments;
+	}
+
+	/**
+	 * Writes the buffer to a new segment file. The caller holds the engine's lock.
+	 *
+	 * @param buffer Posting lists of the documents in the buffer
+	 * @param docs Number of documents in the buffer
+	 * @return New segment, not yet added to the index
+	 * @throws IOException If the segment file cannot be written
+	 */
+	Segment write(Map<String,PostingList> buffer, int docs)
+	throws IOException {
+		File file = newFile();
+		MappedIndex.write(buffer, new DocumentTable(), NO_NOISE_WORDS, engine.postingCodec, file.getPath());
+		return new Segment(MappedIndex.open(file.getPath()), file, docs);
+	}
+
+	/**
+	 * Adds a flushed segment as the newest one, and schedules merges if there are segments
+	 * to merge. The caller holds the engine's lock.
+	 *
+	 * @param segment Segment returned by write
+	 */
+	void append(Segment segment) {
+		Segment[] segs = new Segment[segments.length + 1];
+		System.arraycopy(segments, 0, segs, 0, segments.length);
+		segs[segments.length] = segment;
+		segments = segs;
+		if (pickMerge() != null) {
+			scheduleMerges();
+		}
+	}
+
+	/**
+	 * Replaces adjacent segments by the segment they were merged into. The caller holds
+	 * the engine's lock.
+	 *
+	 * @param group Segments that were merged, oldest first
+	 * @param merged Merged segment
+	 */
+	void replace(Segment[] group, Segment merged) {
+		Segment[] segs = segments;
+		int first = Arrays.asList(segs).indexOf(group[0]);
+		Segment[] replaced = new Segment[segs.length - group.length + 1];
+		System.arraycopy(segs, 0, replaced, 0, first);
+		replaced[first] = merged;
+		System.arraycopy(segs, first + group.length, replaced, first + 1, segs.length - first - group.length);
+		segments = replaced;
+	}
+
+	/**
+	 * Waits until all scheduled merges are done.
+	 *
+	 * @throws IOException If a merge failed
+	 */
+	void waitForMerges()
+	throws IOException {
+		synchronized (lock) {
+			while (pending > 0) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for merges");
+				}
+			}
+			if (failure != null) {
+				IOException e = failure;
+				failure = null;
+				throw e;
+			}
+		}
+	}
+
+	private void scheduleMerges() {
+		synchronized (lock) {
+			pending++;
+		}
+		merger.execute(new Runnable() {
+			public void run() {
+				try {
+					mergeAll();
+				} finally {
+					synchronized (lock) {
+						pending--;
+						lock.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns a new segment file name. The caller holds the engine's lock.
+	 */
+	private File newFile() {
+		return new File(directory, "segment" + (nextFile++) + ".idx");
+	}
+
+	/**
+	 * Merges groups of segments until the merge policy finds none left to merge.
+	 */
+	private void mergeAll() {
+		while (true) {
+			Segment[] group;
+			int version;
+			File file;
+			synchronized (engine) {
+				group = pickMerge();
+				if (group == null) {
+					return;
+				}
+				version = engine.documents.version();
+				file = newFile();
+			}
+			Segment merged;
+			try {
+				merged = merge(group, version, file);
+			} catch (IOException e) {
+				synchronized (lock) {
+					failure = e;
+				}
+				return;
+			}
+			engine.replaceSegments(group, merged);
+			for (Segment s : group) {
+				// readers that still hold the segment keep its mapping, which outlives the file
+				s.file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Returns the oldest run of mergeFactor adjacent segments in the same tier, or null
+	 * if there is none.
+	 */
+	private Segment[] pickMerge() {
+		Segment[] segs = segments;
+		for (int i = 0; i + mergeFactor <= segs.length; i++) {
+			int tier = tier(segs[i]);
+			int j = 1;
+			while (j < mergeFactor && tier(segs[i+j]) == tier) {
+				j++;
+			}
+			if (j == mergeFactor) {
+				Segment[] group = new Segment[mergeFactor];
+				System.arraycopy(segs, i, group, 0, mergeFactor);
+				return group;
+			}
+		}
+		return null;
+	}
+
+	private int tier(Segment segment) {
+		int tier = 0;
+		long size = (long)flushDocs * mergeFactor;
+		while (segment.docs >= size) {
+			tier++;
+			size *= mergeFactor;
+		}
+		return tier;
+	}
+
+	/**
+	 * Merges segments into a new segment file, dropping the postings of documents removed
+	 * by the given version of the documents table.
+	 *
+	 * @param group Segments to merge, oldest first
+	 * @param version Version of the documents table that readers see
+	 * @param file File to write the merged segment to
+	 * @return Merged segment
+	 * @throws IOException If the segment file cannot be written
+	 */
+	private Segment merge(Segment[] group, int version, File file)
+	throws IOException {
+		int docs = 0;
+		PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(group.length);
+		for (int s = 0; s < group.length; s++) {
+			docs += group[s].docs;
+			Cursor cursor = new Cursor(group[s].index, s);
+			if (cursor.next()) {
+				queue.add(cursor);
+			}
+		}
+		MappedIndex.IndexWriter writer = new MappedIndex.IndexWriter(file.getPath(), engine.postingCodec);
+		try {
+			ArrayList<Cursor> same = new ArrayList<Cursor>(group.length);
+			PostingList[] lists = new PostingList[group.length];
+			while (!queue.isEmpty()) {
+				byte[] term = queue.peek().term;
+				while (!queue.isEmpty() && Arrays.equals(queue.peek().term, term)) {
+					same.add(queue.poll());
+				}
+				// the queue breaks ties by segment, so the lists are merged oldest first, as searches merge them
+				int n = 0;
+				for (Cursor cursor : same) {
+					lists[n++] = cursor.index.postings(cursor.i);
+					if (cursor.next()) {
+						queue.add(cursor);
+					}
+				}
+				same.clear();
+				PostingList postings = PostingList.merge(Arrays.copyOf(lists, n))
+					.withoutRemoved(engine.documents, version);
+				if (postings.size() > 0) {
+					writer.add(term, postings);
+				}
+			}
+			writer.finish(new DocumentTable(), NO_NOISE_WORDS);
+		} finally {
+			writer.close();
+		}
+		return new Segment(MappedIndex.open(file.getPath()), file, docs);
+	}
+
+	/**
+	 * Reads the keywords of a segment in order, for merge. Cursors are ordered by their
+	 * current keyword, and then by segment.
+	 */
+	private static class Cursor implements Comparable<Cursor> {
+		final MappedIndex index;
+		private final int segment;
+
+		/**
+		 * Place of the current keyword in the segment's term table, and its UTF-8 bytes.
+		 */
+		int i = -1;
+		byte[] term;
+
+		Cursor(MappedIndex index, int segment) {
+			this.index = index;
+			this.segment = segment;
+		}
+
+		/**
+		 * Moves to the next keyword.
+		 *
+		 * @return False if there are no more keywords
+		 */
+		boolean next() {
+			if (++i == index.size()) {
+				return false;
+			}
+			term = index.term(i);
+			return true;
+		}
+
+		public int compareTo(Cursor other) {
+			int c = MappedIndex.compareBytes(term, other.term);
+			return c != 0 ? c : segment - other.segment;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package search;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class splits an index by document into shards, each a LittleSearchEngine of its own
+ * with its own keywordsIndex, and searches them all at once. The distinct documents of the
+ * docs file are dealt out to the shards in turn, so shard s gets documents s, s + N, s + 2N
+ * and so on (N being the number of shards), and a document's position in the docs file is
+ * its id in its shard times N plus s. The shards are indexed in parallel.
+ *
+ * A query is scattered to every shard, each of which finds its own top k documents on a
+ * pool of threads, and the results are gathered into the top k overall. The order of
+ * topSearch is a total order on documents: by highest frequency, then by the first keyword
+ * that has it, and then by position in the docs file (the order of ties in posting lists).
+ * Each shard's results are in the same order, so the top k overall are among the shards'
+ * top k, and sorting those on the same three keys gives the same result that a single
+ * engine would over all the documents.
+ *
+ */
+public class ShardedSearchEngine {
+
+	/**
+	 * A document found by one shard, with the keys that results are sorted on.
+	 */
+	private static class Hit {
+		final String document;
+		final int frequency;
+		final int keyword;
+		final long position;
+
+		Hit(String document, int frequency, int keyword, long position) {
+			this.document = document;
+			this.frequency = frequency;
+			this.keyword = keyword;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * Order of results: by descending frequency, then by keyword, then by position in the docs file.
+	 */
+	private static final Comparator<Hit> RANK = new Comparator<Hit>() {
+		public int compare(Hit a, Hit b) {
+			if (a.frequency != b.frequency) {
+				return a.frequency > b.frequency ? -1 : 1;
+			}
+			if (a.keyword != b.keyword) {
+				return a.keyword < b.keyword ? -1 : 1;
+			}
+			return a.position < b.position ? -1 : a.position > b.position ? 1 : 0;
+		}
+	};
+
+	private final LittleSearchEngine[] shards;
+
+	/**
+	 * Threads that index and search the shards.
+	 */
+	private final ExecutorService pool;
+
+	/**
+	 * True once makeIndex has been called.
+	 */
+	private boolean indexed;
+
+	/**
+	 * Creates empty shards, and the pool of threads that searches them.
+	 *
+	 * @param shards Number of shards
+	 * @param threads Number of threads to index and search on
+	 */
+	public ShardedSearchEngine(int shards, int threads) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("shards must be at least 1: " + shards);
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1: " + threads);
+		}
+		this.shards = new LittleSearchEngine[shards];
+		for (int s = 0; s < shards; s++) {
+			this.shards[s] = new LittleSearchEngine();
+			this.shards[s].enableConcurrentReads();
+		}
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int next;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "shard-worker-" + next++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of shards.
+	 *
+	 * @return Number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Indexes all keywords found in all the input documents, dealing the documents out to
+	 * the shards, which are indexed in parallel as by LittleSearchEngine.makeIndex. A document
+	 * listed more than once is indexed once. This can only be called once.
+	 *
+	 * @param docsFile Name of file that has a list of all the document file names, one name per line
+	 * @param noiseWordsFile Name of file that has a list of noise words, one noise word per line
+	 * @throws FileNotFoundException If there is a problem locating any of the input files on disk
+	 * @throws IllegalStateException If the shards have already been indexed
+	 */
+	public synchronized void makeIndex(String docsFile, final String noiseWordsFile)
+	throws FileNotFoundException {
+		if (indexed) {
+			throw new IllegalStateException("The shards have already been indexed");
+		}
+		indexed = true;
+		LinkedHashSet<String> docs = new LinkedHashSet<String>();
+		Scanner sc = new Scanner(new File(docsFile));
+		while (sc.hasNext()) {
+			docs.add(sc.next());
+		}
+		sc.close();
+
+		final ArrayList<ArrayList<String>> parts = new ArrayList<ArrayList<String>>(shards.length);
+		for (int s = 0; s < shards.length; s++) {
+			parts.add(new ArrayList<String>(docs.size() / shards.length + 1));
+		}
+		int d = 0;
+		for (String doc : docs) {
+			parts.get(d++ % shards.length).add(doc);
+		}
+		ArrayList<Future<Void>> builds = new ArrayList<Future<Void>>(shards.length);
+		for (int s = 0; s < shards.length; s++) {
+			final int shard = s;
+			builds.add(pool.submit(new Callable<Void>() {
+				public Void call() throws FileNotFoundException {
+					shards[shard].makeIndex(parts.get(shard), noiseWordsFile);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> build : builds) {
+			await(build);
+		}
+	}
+
+	/**
+	 * Search result for "kw1 or kw2", as LittleSearchEngine.top5search.
+	 *
+	 * @param kw1 First keyword
+	 * @param kw2 Second keyword
+	 * @return List of NAMES of documents in which either kw1 or kw2 occurs, arranged in descending order of
+	 *         frequencies. The result size is limited to 5 documents. If there are no matching documents,
+	 *         the result is null.
+	 */
+	public ArrayList<String> top5search(String kw1, String kw2) {
+		return topSearch(5, kw1, kw2);
+	}
+
+	/**
+	 * Search result for "kw1 or kw2 or ...", the same as LittleSearchEngine.topSearch would
+	 * return over all the documents. Every shard is searched on the pool of threads but one,
+	 * which is searched on the calling thread. Results are not cached.
+	 *
+	 * @param k Maximum number of documents in the result
+	 * @param keywords Keywords to search for
+	 * @return List of NAMES of documents in which any of the keywords occurs, arranged in descending order
+	 *         of frequencies. The result size is limited to k documents. If there are no matching documents,
+	 *         the result is null.
+	 */
+	public ArrayList<String> topSearch(final int k, String... keywords) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		final String[] kws = new String[keywords.length];
+		for (int i = 0; i < keywords.length; i++) {
+			kws[i] = keywords[i].toLowerCase();
+		}
+		ArrayList<Future<Hit[]>> searches = new ArrayList<Future<Hit[]>>(shards.length - 1);
+		for (int s = 1; s < shards.length; s++) {
+			final int shard = s;
+			searches.add(pool.submit(new Callable<Hit[]>() {
+				public Hit[] call() {
+					return search(shard, kws, k);
+				}
+			}));
+		}
+		ArrayList<Hit> hits = new ArrayList<Hit>(shards.length * k);
+		hits.addAll(Arrays.asList(search(0, kws, k)));
+		for (Future<Hit[]> search : searches) {
+			try {
+				hits.addAll(Arrays.asList(await(search)));
+			} catch (FileNotFoundException e) {
+				// searches read no files
+				throw new IllegalStateException(e);
+			}
+		}
+		if (hits.isEmpty()) {
+			return null;
+		}
+		Collections.sort(hits, RANK);
+		ArrayList<String> results = new ArrayList<String>(Math.min(k, hits.size()));
+		for (int i = 0; i < k && i < hits.size(); i++) {
+			results.add(hits.get(i).document);
+		}
+		return results;
+	}
+
+	/**
+	 * Stops the threads of the pool. The shards cannot be indexed or searched after this.
+	 */
+	public void close() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Finds the top k documents of one shard, with the keys they are sorted on.
+	 */
+	private Hit[] search(int shard, String[] kws, int k) {
+		List<String> kwList = Arrays.asList(kws);
+		IndexSnapshot snapshot = shards[shard].snapshot(kwList);
+		int[] docs = LittleSearchEngine.topDocs(snapshot, kwList, k);
+		Hit[] hits = new Hit[docs.length];
+		for (int i = 0; i < docs.length; i++) {
+			// the document was taken at its highest frequency, from the first keyword that has it
+			int frequency = 0;
+			int keyword = 0;
+			for (int kw = 0; kw < kws.length; kw++) {
+				int f = snapshot.frequency(kws[kw], docs[i]);
+				if (f > frequency) {
+					frequency = f;
+					keyword = kw;
+				}
+			}
+			long position = (long)docs[i] * shards.length + shard;
+			hits[i] = new Hit(snapshot.documents.name(docs[i]), frequency, keyword, position);
+		}
+		return hits;
+	}
+
+	/**
+	 * Waits for a task of the pool, rethrowing any FileNotFoundException it failed with.
+	 */
+	private static <T> T await(Future<T> task)
+	throws FileNotFoundException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a shard", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof FileNotFoundException) {
+				throw (FileNotFoundException)cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+}
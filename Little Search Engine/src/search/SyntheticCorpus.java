@@ -0,0 +1,159 @@
+package search;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class generates a corpus of random documents for benchmarks. Words are drawn from
+ * a fixed vocabulary with a Zipfian distribution (the word of rank r is drawn with
+ * probability proportional to 1/r^s), as words are in natural text. The most frequent
+ * words are written out as the noise words. Some words are capitalized or followed by
+ * punctuation, so that getKeyWord has the same kinds of words to deal with as in real text.
+ *
+ */
+public class SyntheticCorpus {
+
+	private static final String[] PUNCTUATION = {".", ",", "?", ":", ";", "!"};
+
+	private final int documents;
+	private final int wordsPerDocument;
+	private final int noiseWords;
+	private final String[] vocabulary;
+
+	/**
+	 * Cumulative probability of each rank.
+	 */
+	private final double[] cdf;
+
+	private final long seed;
+
+	/**
+	 * Initializes a corpus generator.
+	 *
+	 * @param documents Number of documents
+	 * @param vocabulary Number of distinct words
+	 * @param wordsPerDocument Number of words in each document
+	 * @param exponent Exponent s of the Zipfian distribution (1 is typical of English)
+	 * @param seed Seed of the random numbers, so the same corpus can be generated again
+	 */
+	public SyntheticCorpus(int documents, int vocabulary, int wordsPerDocument, double exponent, long seed) {
+		if (documents < 1 || vocabulary < 1 || wordsPerDocument < 1) {
+			throw new IllegalArgumentException("Sizes must be at least 1");
+		}
+		this.documents = documents;
+		this.wordsPerDocument = wordsPerDocument;
+		this.noiseWords = Math.min(vocabulary / 10, 50);
+		this.seed = seed;
+
+		Random r = new Random(seed);
+		HashSet<String> words = new HashSet<String>();
+		this.vocabulary = new String[vocabulary];
+		for (int i = 0; i < vocabulary; i++) {
+			String word;
+			do {
+				// frequent words tend to be short
+				int length = 2 + r.nextInt(3 + Math.min(8, (int)Math.log(i + 1)));
+				StringBuilder sb = new StringBuilder(length);
+				for (int j = 0; j < length; j++) {
+					sb.append((char)('a' + r.nextInt(26)));
+				}
+				word = sb.toString();
+			} while (!words.add(word));
+			this.vocabulary[i] = word;
+		}
+
+		cdf = new double[vocabulary];
+		double total = 0;
+		for (int i = 0; i < vocabulary; i++) {
+			total += 1 / Math.pow(i + 1, exponent);
+			cdf[i] = total;
+		}
+		for (int i = 0; i < vocabulary; i++) {
+			cdf[i] /= total;
+		}
+	}
+
+	/**
+	 * Returns the rank of a word drawn at random.
+	 */
+	private int draw(Random r) {
+		int i = Arrays.binarySearch(cdf, r.nextDouble());
+		return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+	}
+
+	/**
+	 * Returns a word drawn at random, as it would appear in a document.
+	 *
+	 * @param r Random numbers
+	 * @return Word, possibly capitalized or followed by punctuation
+	 */
+	String word(Random r) {
+		String word = vocabulary[draw(r)];
+		int style = r.nextInt(20);
+		if (style == 0) {
+			word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+		} else if (style == 1) {
+			word = word + PUNCTUATION[r.nextInt(PUNCTUATION.length)];
+		} else if (style == 2) {
+			word = word + "'s";
+		}
+		return word;
+	}
+
+	/**
+	 * Returns the word of the given rank in the vocabulary (0 being the most frequent).
+	 *
+	 * @param rank Rank
+	 * @return Word
+	 */
+	String vocabularyWord(int rank) {
+		return vocabulary[rank];
+	}
+
+	/**
+	 * Writes the corpus to a directory: one file per document, a docs file that lists
+	 * them (docs.txt), and a noise words file (noisewords.txt).
+	 *
+	 * @param directory Directory to write to, which is created if need be
+	 * @return Names of the docs file and the noise words file, in that order
+	 * @throws IOException If a file cannot be written
+	 */
+	public String[] write(File directory)
+	throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory: " + directory);
+		}
+		Random r = new Random(seed + 1);
+		File docsFile = new File(directory, "docs.txt");
+		PrintWriter docs = new PrintWriter(new FileWriter(docsFile));
+		try {
+			for (int d = 0; d < documents; d++) {
+				File doc = new File(directory, "doc" + d + ".txt");
+				docs.println(doc.getPath());
+				PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(doc)));
+				try {
+					for (int w = 0; w < wordsPerDocument; w++) {
+						out.print(word(r));
+						out.print(w % 12 == 11 ? '\n' : ' ');
+					}
+					out.println();
+				} finally {
+					out.close();
+				}
+			}
+		} finally {
+			docs.close();
+		}
+
+		File noiseFile = new File(directory, "noisewords.txt");
+		PrintWriter noise = new PrintWriter(new FileWriter(noiseFile));
+		try {
+			for (int i = 0; i < noiseWords; i++) {
+				noise.println(vocabulary[i]);
+			}
+		} finally {
+			noise.close();
+		}
+		return new String[] {docsFile.getPath(), noiseFile.getPath()};
+	}
+}
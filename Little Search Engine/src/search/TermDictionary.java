@@ -0,0 +1,343 @@
+package search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * This class is a sorted dictionary of all keywords, which expands prefix and wildcard
+ * patterns such as "rabb*" or "qu?en" into the keywords they match, in time proportional
+ * to the number of keywords that share the pattern's literal prefix.
+ *
+ * The keywords are front-coded: they are sorted, cut into blocks of BLOCK_SIZE, and each
+ * keyword after the first in a block is stored as the number of leading characters it
+ * shares with the keyword before it, followed by the rest of its characters. All blocks
+ * are kept in one char array, and the first keyword of each block, which is stored whole,
+ * is found by binary search.
+ *
+ * A dictionary is never changed once it has been created. Keywords added to the index
+ * since the front-coded part was built are kept in a small sorted array next to it, which
+ * is folded into a new front-coded part once it grows past an eighth of its size, so that
+ * adding a document costs little more than a lookup per keyword.
+ *
+ */
+class TermDictionary {
+
+	/**
+	 * Number of keywords in a front-coded block.
+	 */
+	static final int BLOCK_SIZE = 16;
+
+	/**
+	 * Smallest number of added keywords that is folded into the front-coded part.
+	 */
+	static final int MIN_FOLD = 256;
+
+	/**
+	 * The dictionary with no keywords.
+	 */
+	static final TermDictionary EMPTY = new TermDictionary(new char[0], new int[0], 0, new String[0]);
+
+	/**
+	 * Front-coded keywords, the start of each block in data, and the number of keywords.
+	 */
+	private final char[] data;
+	private final int[] blocks;
+	private final int size;
+
+	/**
+	 * Keywords added since the front-coded part was built, in sorted order.
+	 */
+	private final String[] added;
+
+	private TermDictionary(char[] data, int[] blocks, int size, String[] added) {
+		this.data = data;
+		this.blocks = blocks;
+		this.size = size;
+		this.added = added;
+	}
+
+	/**
+	 * Returns the number of keywords in this dictionary.
+	 *
+	 * @return Number of keywords
+	 */
+	int size() {
+		return size + added.length;
+	}
+
+	/**
+	 * Returns this dictionary with keywords added to it. Keywords it already has are ignored.
+	 *
+	 * @param keywords Keywords (lower case)
+	 * @return This dictionary if it has all the keywords, otherwise a new dictionary
+	 */
+	TermDictionary with(Collection<String> keywords) {
+		ArrayList<String> missing = new ArrayList<String>();
+		for (String kw : keywords) {
+			if (!contains(kw)) {
+				missing.add(kw);
+			}
+		}
+		if (missing.isEmpty()) {
+			return this;
+		}
+		String[] fresh = missing.toArray(new String[missing.size()]);
+		Arrays.sort(fresh);
+		String[] merged = merge(added, dedup(fresh));
+		if (merged.length < Math.max(MIN_FOLD, size / 8)) {
+			return new TermDictionary(data, blocks, size, merged);
+		}
+		return build(merge(terms(), merged));
+	}
+
+	/**
+	 * Returns true if this dictionary has a keyword.
+	 *
+	 * @param kw Keyword (lower case)
+	 * @return True if the keyword is in this dictionary
+	 */
+	boolean contains(String kw) {
+		if (Arrays.binarySearch(added, kw) >= 0) {
+			return true;
+		}
+		if (size == 0) {
+			return false;
+		}
+		int block = block(kw);
+		char[] term = new char[16];
+		int p = blocks[block];
+		int end = Math.min(size, (block + 1) * BLOCK_SIZE);
+		for (int i = block * BLOCK_SIZE; i < end; i++) {
+			int shared = data[p++];
+			int rest = data[p++];
+			if (shared + rest > term.length) {
+				term = Arrays.copyOf(term, Math.max(term.length * 2, shared + rest));
+			}
+			System.arraycopy(data, p, term, shared, rest);
+			p += rest;
+			if (shared + rest == kw.length() && compare(term, kw.length(), kw) == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the keywords that match a pattern, in sorted order. In the pattern, '*' matches
+	 * any run of characters (including none) and '?' matches any one character; all other
+	 * characters match themselves. A pattern that starts with a wildcard has no literal prefix,
+	 * so expanding it takes a pass over the whole dictionary.
+	 *
+	 * @param pattern Pattern (lower case)
+	 * @return Matching keywords
+	 */
+	ArrayList<String> expand(String pattern) {
+		int prefix = 0;
+		while (prefix < pattern.length() && pattern.charAt(prefix) != '*' && pattern.charAt(prefix) != '?') {
+			prefix++;
+		}
+		ArrayList<String> matches = new ArrayList<String>();
+		expand(pattern.substring(0, prefix), prefix, pattern, matches);
+		// the added keywords are few, so they are all tested
+		for (String kw : added) {
+			if (kw.startsWith(pattern.substring(0, prefix)) && matches(pattern, prefix, kw, prefix)) {
+				matches.add(kw);
+			}
+		}
+		if (added.length > 0) {
+			String[] sorted = matches.toArray(new String[matches.size()]);
+			Arrays.sort(sorted);
+			matches = new ArrayList<String>(Arrays.asList(sorted));
+		}
+		return matches;
+	}
+
+	/**
+	 * Adds the front-coded keywords that start with a prefix and match a pattern (or all
+	 * those that start with the prefix, if there is no pattern) to a list.
+	 */
+	private void expand(String prefix, int length, String pattern, ArrayList<String> matches) {
+		if (size == 0) {
+			return;
+		}
+		int low = block(prefix);
+		char[] term = new char[16];
+		int termLength = 0;
+		int p = blocks[low];
+		for (int i = low * BLOCK_SIZE; i < size; i++) {
+			int shared = data[p++];
+			int rest = data[p++];
+			if (shared + rest > term.length) {
+				term = Arrays.copyOf(term, Math.max(term.length * 2, shared + rest));
+			}
+			System.arraycopy(data, p, term, shared, rest);
+			p += rest;
+			termLength = shared + rest;
+			int c = compare(term, Math.min(termLength, length), prefix);
+			if (c < 0 || (c == 0 && termLength < length)) {
+				continue;
+			}
+			if (c > 0) {
+				break;
+			}
+			String kw = new String(term, 0, termLength);
+			if (pattern == null || matches(pattern, length, kw, length)) {
+				matches.add(kw);
+			}
+		}
+	}
+
+	/**
+	 * Returns the last block whose first keyword is not greater than a string (or the first
+	 * block, if they all are).
+	 */
+	private int block(String s) {
+		int low = 0;
+		int high = blocks.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (compareFirst(mid, s) <= 0) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Compares the first keyword of a block with a string.
+	 */
+	private int compareFirst(int block, String s) {
+		int p = blocks[block] + 1;
+		int length = data[p++];
+		int n = Math.min(length, s.length());
+		for (int i = 0; i < n; i++) {
+			int c = data[p+i] - s.charAt(i);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return length - s.length();
+	}
+
+	/**
+	 * Compares the first length characters of a keyword with the same number of characters
+	 * of a prefix (which has at least that many).
+	 */
+	private static int compare(char[] term, int length, String prefix) {
+		for (int i = 0; i < length; i++) {
+			int c = term[i] - prefix.charAt(i);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns true if a keyword, from position k on, matches a pattern from position p on.
+	 * A '*' is matched greedily, backtracking to the most recent '*' on a mismatch.
+	 */
+	static boolean matches(String pattern, int p, String kw, int k) {
+		int star = -1;
+		int resume = 0;
+		while (k < kw.length()) {
+			if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == kw.charAt(k))) {
+				p++;
+				k++;
+			} else if (p < pattern.length() && pattern.charAt(p) == '*') {
+				star = p++;
+				resume = k;
+			} else if (star >= 0) {
+				p = star + 1;
+				k = ++resume;
+			} else {
+				return false;
+			}
+		}
+		while (p < pattern.length() && pattern.charAt(p) == '*') {
+			p++;
+		}
+		return p == pattern.length();
+	}
+
+	/**
+	 * Returns all the front-coded keywords, in sorted order.
+	 */
+	private String[] terms() {
+		ArrayList<String> all = new ArrayList<String>(size);
+		expand("", 0, null, all);
+		return all.toArray(new String[all.size()]);
+	}
+
+	/**
+	 * Builds a dictionary of keywords.
+	 *
+	 * @param keywords Keywords (lower case)
+	 * @return Dictionary of the keywords
+	 */
+	static TermDictionary build(Collection<String> keywords) {
+		String[] sorted = keywords.toArray(new String[keywords.size()]);
+		Arrays.sort(sorted);
+		return build(dedup(sorted));
+	}
+
+	/**
+	 * Front-codes keywords that are sorted and distinct.
+	 */
+	private static TermDictionary build(String[] sorted) {
+		int chars = 0;
+		for (String kw : sorted) {
+			chars += kw.length() + 2;
+		}
+		char[] data = new char[chars];
+		int[] blocks = new int[(sorted.length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+		int p = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			String kw = sorted[i];
+			int shared = 0;
+			if (i % BLOCK_SIZE == 0) {
+				blocks[i / BLOCK_SIZE] = p;
+			} else {
+				String prev = sorted[i-1];
+				int n = Math.min(prev.length(), kw.length());
+				while (shared < n && prev.charAt(shared) == kw.charAt(shared)) {
+					shared++;
+				}
+			}
+			data[p++] = (char)shared;
+			data[p++] = (char)(kw.length() - shared);
+			kw.getChars(shared, kw.length(), data, p);
+			p += kw.length() - shared;
+		}
+		return new TermDictionary(Arrays.copyOf(data, p), blocks, sorted.length, new String[0]);
+	}
+
+	/**
+	 * Returns sorted strings without repeats.
+	 */
+	private static String[] dedup(String[] sorted) {
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (n == 0 || !sorted[i].equals(sorted[n-1])) {
+				sorted[n++] = sorted[i];
+			}
+		}
+		return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+	}
+
+	/**
+	 * Merges two sorted arrays of distinct strings, which have no string in common.
+	 */
+	private static String[] merge(String[] a, String[] b) {
+		String[] merged = new String[a.length + b.length];
+		int i = 0;
+		int j = 0;
+		for (int n = 0; n < merged.length; n++) {
+			merged[n] = j == b.length || (i < a.length && a[i].compareTo(b[j]) < 0) ? a[i++] : b[j++];
+		}
+		return merged;
+	}
+}
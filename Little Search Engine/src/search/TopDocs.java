@@ -0,0 +1,106 @@
+package search;
+
+/**
+ * This class is a bounded min-heap that keeps the k best (score, document) pairs seen, ties
+ * in score going to the lower document id. Boolean and phrase queries score documents with
+ * sums of frequencies, which a double holds exactly, and BM25 with real numbers, so one heap
+ * serves all of them.
+ *
+ */
+class TopDocs {
+
+	private final int[] docs;
+	private final double[] scores;
+	private int size;
+
+	/**
+	 * Initializes an empty heap.
+	 *
+	 * @param k Number of documents to keep
+	 */
+	TopDocs(int k) {
+		docs = new int[k];
+		scores = new double[k];
+		size = 0;
+	}
+
+	/**
+	 * Returns true if the heap holds k documents.
+	 */
+	boolean isFull() {
+		return size == docs.length;
+	}
+
+	/**
+	 * Returns the lowest score in the heap, which a document must beat to get in.
+	 */
+	double minScore() {
+		return scores[0];
+	}
+
+	/**
+	 * Returns true if entry a ranks below entry b.
+	 */
+	private boolean worse(int a, int b) {
+		return scores[a] < scores[b] || (scores[a] == scores[b] && docs[a] > docs[b]);
+	}
+
+	/**
+	 * Adds a document to the heap if it is among the k best seen so far.
+	 *
+	 * @param doc Document id
+	 * @param score Score of the document
+	 */
+	void offer(int doc, double score) {
+		if (size < docs.length) {
+			docs[size] = doc;
+			scores[size] = score;
+			int k = size++;
+			while (k > 0 && worse(k, (k-1)/2)) {
+				swap(k, (k-1)/2);
+				k = (k-1)/2;
+			}
+		} else if (score > scores[0] || (score == scores[0] && doc < docs[0])) {
+			docs[0] = doc;
+			scores[0] = score;
+			siftDown(0, size);
+		}
+	}
+
+	/**
+	 * Empties the heap, returning its documents best first.
+	 */
+	int[] docs() {
+		int[] result = new int[size];
+		for (int n = size; n > 0; n--) {
+			result[n-1] = docs[0];
+			swap(0, n-1);
+			siftDown(0, n-1);
+		}
+		size = 0;
+		return result;
+	}
+
+	private void siftDown(int k, int n) {
+		while (2*k+1 < n) {
+			int c = 2*k+1;
+			if (c+1 < n && worse(c+1, c)) {
+				c++;
+			}
+			if (!worse(c, k)) {
+				break;
+			}
+			swap(k, c);
+			k = c;
+		}
+	}
+
+	private void swap(int a, int b) {
+		int d = docs[a];
+		docs[a] = docs[b];
+		docs[b] = d;
+		double s = scores[a];
+		scores[a] = scores[b];
+		scores[b] = s;
+	}
+}
@@ -0,0 +1,116 @@
+package search;
+
+/**
+ * This class finds the top K documents for a set of keywords, by doing a k-way merge of
+ * the keywords' posting lists. A max-heap holds one cursor per posting list, ordered on
+ * the frequency at the cursor, with ties broken in favor of the keyword that comes first
+ * in the query. Each document is taken the first time it comes off the heap (which is at
+ * its highest frequency), and later postings of the same document are skipped, as are
+ * postings of documents that are not visible in the snapshot being searched.
+ *
+ */
+class TopKSearch {
+
+	/**
+	 * Posting lists being merged, in query order.
+	 */
+	private final PostingList[] lists;
+
+	/**
+	 * Heap of list numbers; pos[l] is the cursor into list l.
+	 */
+	private final int[] heap;
+	private final int[] pos;
+	private int heapSize;
+
+	/**
+	 * Document ids already taken.
+	 */
+	private final DocIdSet seen;
+
+	private TopKSearch(PostingList[] lists) {
+		this.lists = lists;
+		heap = new int[lists.length];
+		pos = new int[lists.length];
+		seen = new DocIdSet();
+		heapSize = 0;
+		for (int l = 0; l < lists.length; l++) {
+			if (lists[l] != null && lists[l].size() > 0) {
+				heap[heapSize++] = l;
+			}
+		}
+		for (int i = heapSize/2 - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+	}
+
+	/**
+	 * Returns the ids of the top k documents in which any of the keywords occur, in
+	 * descending order of frequency. Ties in frequency are broken in favor of the earlier
+	 * list, and then by position within a list.
+	 *
+	 * @param snapshot Snapshot the lists come from, which tells which documents are visible
+	 * @param lists Posting lists of the keywords, in query order (null for keywords not indexed)
+	 * @param k Maximum number of documents
+	 * @return Document ids, at most k of them
+	 */
+	static int[] search(IndexSnapshot snapshot, PostingList[] lists, int k) {
+		TopKSearch merge = new TopKSearch(lists);
+		int[] docs = new int[Math.min(k, merge.maxResults())];
+		int n = 0;
+		while (n < docs.length && merge.heapSize > 0) {
+			int l = merge.heap[0];
+			int doc = lists[l].doc(merge.pos[l]);
+			if (snapshot.isVisible(doc) && merge.seen.add(doc)) {
+				docs[n++] = doc;
+			}
+			merge.pos[l]++;
+			if (merge.pos[l] == lists[l].size()) {
+				merge.heap[0] = merge.heap[--merge.heapSize];
+			}
+			merge.siftDown(0);
+		}
+		if (n < docs.length) {
+			int[] all = new int[n];
+			System.arraycopy(docs, 0, all, 0, n);
+			docs = all;
+		}
+		return docs;
+	}
+
+	/**
+	 * Returns an upper bound on the number of distinct documents in the lists.
+	 */
+	private int maxResults() {
+		long total = 0;
+		for (int i = 0; i < heapSize; i++) {
+			total += lists[heap[i]].size();
+		}
+		return (int)Math.min(total, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns true if the cursor of list a comes before the cursor of list b.
+	 */
+	private boolean before(int a, int b) {
+		int fa = lists[a].frequency(pos[a]);
+		int fb = lists[b].frequency(pos[b]);
+		return fa > fb || (fa == fb && a < b);
+	}
+
+	private void siftDown(int i) {
+		while (2*i+1 < heapSize) {
+			int c = 2*i+1;
+			if (c+1 < heapSize && before(heap[c+1], heap[c])) {
+				c++;
+			}
+			if (!before(heap[c], heap[i])) {
+				break;
+			}
+			int temp = heap[i];
+			heap[i] = heap[c];
+			heap[c] = temp;
+			i = c;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package search;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This codec writes each document id as a varint of its gap from the one before (the first
+ * id is its gap from 0). Gaps in the lists of frequent keywords are small, so most take one
+ * byte. It is the default codec.
+ *
+ */
+class VarintCodec extends PostingCodec {
+
+	VarintCodec() {
+		super(1, "varint");
+	}
+
+	void encode(int[] docs, int n, DataOutput out)
+	throws IOException {
+		int prev = 0;
+		for (int i = 0; i < n; i++) {
+			MappedIndex.writeVarint(out, docs[i] - prev);
+			prev = docs[i];
+		}
+	}
+
+	void decode(ByteBuffer b, int[] docs, int n) {
+		int doc = 0;
+		for (int i = 0; i < n; i++) {
+			doc += MappedIndex.readVarint(b);
+			docs[i] = doc;
+		}
+	}
+}